@@ -0,0 +1,21 @@
+package ru.somber.clientutil.opengl;
+
+import cpw.mods.fml.relauncher.Side;
+import cpw.mods.fml.relauncher.SideOnly;
+
+/**
+ * Что делать с содержимым прикрепления фреймбуфера при его очистке ({@link CustomFramebuffer#framebufferClear()}).
+ */
+@SideOnly(Side.CLIENT)
+public enum ClearPolicy {
+    /** Очистить своим цветом (глубиной). */
+    CLEAR,
+    /**
+     * Старое содержимое не нужно, но и очищать не обязательно: проход перезапишет прикрепление целиком.
+     * Если поддерживается glInvalidateFramebuffer, то прикрепление объявляется недействительным,
+     * и видеокарта может не загружать и не сохранять его данные.
+     */
+    DONT_CARE,
+    /** Не трогать содержимое. */
+    KEEP
+}
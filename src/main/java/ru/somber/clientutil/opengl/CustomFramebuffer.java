@@ -3,15 +3,18 @@ package ru.somber.clientutil.opengl;
 import cpw.mods.fml.relauncher.Side;
 import cpw.mods.fml.relauncher.SideOnly;
 import net.minecraft.client.renderer.OpenGlHelper;
-import net.minecraft.client.renderer.Tessellator;
 import net.minecraft.client.renderer.texture.TextureUtil;
 import org.lwjgl.BufferUtils;
+import org.lwjgl.opengl.ContextCapabilities;
 import org.lwjgl.opengl.GL11;
 import org.lwjgl.opengl.GL14;
 import org.lwjgl.opengl.GL20;
 import org.lwjgl.opengl.GL30;
+import org.lwjgl.opengl.GL43;
+import org.lwjgl.opengl.GLContext;
 import ru.somber.clientutil.opengl.texture.Texture;
 
+import java.nio.FloatBuffer;
 import java.nio.IntBuffer;
 import java.util.*;
 
@@ -34,6 +37,18 @@ public class CustomFramebuffer {
      * [0] - red, [1] - green, [2] - blue, [3] - alpha.
      */
     private float[] clearColor;
+    /**
+     * Цвета очистки отдельных слотов. Слоты без своего цвета очищаются цветом clearColor.
+     */
+    private Map<Integer, float[]> attachmentClearColors;
+    /**
+     * Значение, которым очищается буфер глубины.
+     */
+    private float clearDepth;
+    /**
+     * Политики очистки по слотам (GL_COLOR_ATTACHMENT_N или GL_DEPTH_ATTACHMENT). Слоты без политики очищаются.
+     */
+    private Map<Integer, ClearPolicy> clearPolicies;
 
     /**
      * Флаг для определения используется ли буфер глубины в буфере.
@@ -41,9 +56,35 @@ public class CustomFramebuffer {
      */
     private boolean isUsedDepth;
     /**
-     * ID буфера глубины. Он равен -1, если isUsedDepth = false или буфер не создан.
+     * ID буфера глубины. Он равен -1, если isUsedDepth = false, буфер не создан или вместо него прикреплена текстура глубины.
      */
     private int depthBufferID;
+    /**
+     * Текстура глубины (см. {@link #attachDepthTexture(Texture)}). Может быть общей для нескольких буферов, поэтому буфер ее не удаляет.
+     */
+    private Texture depthTexture;
+    /**
+     * ID, с которым текстура глубины прикреплена к буферу. Нужен, чтобы заметить, что текстуру пересоздал другой буфер.
+     */
+    private int attachedDepthTextureID;
+    /**
+     * Слот прикрепления глубины: GL_DEPTH_ATTACHMENT или GL_DEPTH_STENCIL_ATTACHMENT для текстуры с трафаретом.
+     */
+    private int depthAttachSlot;
+
+    /**
+     * Количество сэмплов на пиксель. 0 - обычный (не мультисэмплированный) буфер.
+     */
+    private int samples;
+    /**
+     * ID фреймбуфера, в который разрешается мультисэмплированный буфер (см. {@link #resolve()}).
+     * К нему прикреплены текстуры из attachmentsTexture. Равен -1, если буфер не мультисэмплированный.
+     */
+    private int resolveFramebufferID;
+    /**
+     * Мультисэмплированные рендербуферы цвета по слотам прикрепления. Текстура в том же слоте служит их целью разрешения.
+     */
+    private Map<Integer, Integer> multisampleRenderbuffers;
 
     /**
      * Флаг для определения создан ли фактически буфер.
@@ -56,19 +97,61 @@ public class CustomFramebuffer {
      * Texture - объект соответствуеющего класса, где хранятся данные об этой текстуре.
      */
     private Map<Integer, Texture> attachmentsTexture;
+    /**
+     * Отсортированные слоты из attachmentsTexture. null, если набор прикреплений изменился и их нужно пересчитать.
+     */
+    private int[] sortedAttachSlots;
+
+    /** Буферы для передачи значений очистки, набора draw buffer'ов и списка недействительных прикреплений. */
+    private final FloatBuffer clearValueBuffer;
+    private final IntBuffer drawBuffersBuffer;
+    private final IntBuffer invalidateBuffer;
+
+    /**
+     * Кольцо PBO для асинхронного чтения пикселей. Создается при первом запросе.
+     */
+    private PixelReadbackRing readbackRing;
+    /**
+     * Глубина кольца PBO (количество PBO в нем).
+     */
+    private int readbackRingDepth;
 
 
     public CustomFramebuffer(int width, int height, boolean isUsedDepth) {
+        this(width, height, isUsedDepth, 0);
+    }
+
+    /**
+     * Мультисэмплированный буфер (MSAA), если samples > 1. Количество сэмплов ограничивается GL_MAX_SAMPLES.
+     * <p>
+     * В таком буфере рисование идет в мультисэмплированные рендербуферы, а прикрепленные текстуры
+     * ({@link #attachTexture(int, Texture)}) становятся целью разрешения: они получают картинку только после {@link #resolve()}.
+     */
+    public CustomFramebuffer(int width, int height, boolean isUsedDepth, int samples) {
         this.framebufferID = -1;
         this.width = width;
         this.height = height;
         this.framebufferFilter = GL11.GL_NEAREST;
         this.clearColor = new float[] {1.0F, 1.0F, 1.0F, 1.0F};
+        this.attachmentClearColors = new HashMap<>();
+        this.clearDepth = 1.0F;
+        this.clearPolicies = new HashMap<>();
 
         this.isUsedDepth = isUsedDepth;
         this.depthBufferID = -1;
+        this.attachedDepthTextureID = -1;
+        this.depthAttachSlot = GL30.GL_DEPTH_ATTACHMENT;
+
+        this.samples = (samples > 1) ? Math.min(samples, getMaxSamples()) : 0;
+        this.resolveFramebufferID = -1;
+        this.multisampleRenderbuffers = new HashMap<>();
 
         this.attachmentsTexture = new HashMap<>();
+        this.clearValueBuffer = BufferUtils.createFloatBuffer(4);
+        this.drawBuffersBuffer = BufferUtils.createIntBuffer(16);
+        this.invalidateBuffer = BufferUtils.createIntBuffer(17);
+
+        this.readbackRingDepth = 3;
 
         initBuffer();
     }
@@ -80,17 +163,21 @@ public class CustomFramebuffer {
         setAlive(true);
 
         this.framebufferID = GL30.glGenFramebuffers();
+        if (isMultisampled()) {
+            this.resolveFramebufferID = GL30.glGenFramebuffers();
+        }
         bindFramebuffer(true);
 
         if (isUsedDepth) {
             depthBufferID = GL30.glGenRenderbuffers();
-            GL30.glBindRenderbuffer(GL30.GL_RENDERBUFFER, depthBufferID);
-            GL30.glRenderbufferStorage(GL30.GL_RENDERBUFFER, GL14.GL_DEPTH_COMPONENT24, width, height);
+            allocateRenderbuffer(depthBufferID, GL14.GL_DEPTH_COMPONENT24);
             GL30.glFramebufferRenderbuffer(GL30.GL_FRAMEBUFFER, GL30.GL_DEPTH_ATTACHMENT, GL30.GL_RENDERBUFFER, depthBufferID);
-            GL30.glBindRenderbuffer(GL30.GL_RENDERBUFFER, 0);
         }
 
-        checkFramebufferComplete();
+        //без буфера глубины у фреймбуфера пока нет ни одного прикрепления, а значит он заведомо неполный.
+        if (isUsedDepth) {
+            checkFramebufferComplete();
+        }
         setFramebufferFilter(framebufferFilter);
         framebufferClear();
 
@@ -109,16 +196,56 @@ public class CustomFramebuffer {
         return height;
     }
 
+    /**
+     * Количество сэмплов на пиксель, 0 - буфер не мультисэмплированный.
+     */
+    public int getSamples() {
+        return samples;
+    }
+
+    public boolean isMultisampled() {
+        return samples > 1;
+    }
+
+    /**
+     * ID фреймбуфера с прикрепленными текстурами: для мультисэмплированного буфера - фреймбуфер разрешения, иначе сам буфер.
+     * Из него можно читать пиксели и копировать.
+     */
+    public int getResolvedFramebufferID() {
+        return isMultisampled() ? resolveFramebufferID : framebufferID;
+    }
+
+    /**
+     * Максимальное количество сэмплов, которое поддерживает видеокарта.
+     */
+    public static int getMaxSamples() {
+        return GL11.glGetInteger(GL30.GL_MAX_SAMPLES);
+    }
+
     public void attachTexture(int attachSlot, Texture texture) {
         if (! isAlive()) {
             throw new IllegalStateException("Буфер еще не создан!");
         }
 
-        GL30.glBindFramebuffer(OpenGlHelper.field_153198_e, framebufferID);
-        GL30.glFramebufferTexture2D(OpenGlHelper.field_153198_e, attachSlot, GL11.GL_TEXTURE_2D, texture.getTextureID(), 0);
-        GL30.glBindFramebuffer(OpenGlHelper.field_153198_e, 0);
+        if (isMultisampled()) {
+            Integer renderbufferID = multisampleRenderbuffers.get(attachSlot);
+            if (renderbufferID == null) {
+                renderbufferID = GL30.glGenRenderbuffers();
+                multisampleRenderbuffers.put(attachSlot, renderbufferID);
+            }
+
+            GLStateCache.bindFramebuffer(GL30.GL_FRAMEBUFFER, framebufferID);
+            allocateRenderbuffer(renderbufferID, texture.getInternalFormatColorGL());
+            GL30.glFramebufferRenderbuffer(GL30.GL_FRAMEBUFFER, attachSlot, GL30.GL_RENDERBUFFER, renderbufferID);
+            GLStateCache.bindFramebuffer(GL30.GL_FRAMEBUFFER, resolveFramebufferID);
+        } else {
+            GLStateCache.bindFramebuffer(GL30.GL_FRAMEBUFFER, framebufferID);
+        }
+        GL30.glFramebufferTexture2D(GL30.GL_FRAMEBUFFER, attachSlot, GL11.GL_TEXTURE_2D, texture.getTextureID(), 0);
+        GLStateCache.bindFramebuffer(GL30.GL_FRAMEBUFFER, 0);
 
         attachmentsTexture.put(attachSlot, texture);
+        sortedAttachSlots = null;
 
         setFramebufferFilter(framebufferFilter);
     }
@@ -128,11 +255,87 @@ public class CustomFramebuffer {
             throw new IllegalStateException("Буфер еще не создан!");
         }
 
-        GL30.glBindFramebuffer(GL30.GL_FRAMEBUFFER, framebufferID);
+        if (isMultisampled()) {
+            Integer renderbufferID = multisampleRenderbuffers.remove(attachSlot);
+            if (renderbufferID != null) {
+                GLStateCache.bindFramebuffer(GL30.GL_FRAMEBUFFER, framebufferID);
+                GL30.glFramebufferRenderbuffer(GL30.GL_FRAMEBUFFER, attachSlot, GL30.GL_RENDERBUFFER, 0);
+                GL30.glDeleteRenderbuffers(renderbufferID);
+            }
+        }
+
+        GLStateCache.bindFramebuffer(GL30.GL_FRAMEBUFFER, getResolvedFramebufferID());
         GL30.glFramebufferTexture2D(GL30.GL_FRAMEBUFFER, attachSlot, GL11.GL_TEXTURE_2D, 0, 0);
-        GL30.glBindFramebuffer(GL30.GL_FRAMEBUFFER, 0);
+        GLStateCache.bindFramebuffer(GL30.GL_FRAMEBUFFER, 0);
 
         attachmentsTexture.remove(attachSlot);
+        sortedAttachSlots = null;
+    }
+
+    /**
+     * Буфер без своего буфера глубины, который использует текстуру глубины depthTexture (см. {@link #attachDepthTexture(Texture)}).
+     */
+    public CustomFramebuffer(int width, int height, Texture depthTexture) {
+        this(width, height, false, 0);
+        attachDepthTexture(depthTexture);
+    }
+
+    /**
+     * Прикрепляет текстуру глубины (или глубины с трафаретом) вместо собственного буфера глубины, который при этом удаляется.
+     * <p>
+     * Одну текстуру можно прикрепить к нескольким буферам одного размера - тогда они используют общую глубину и не держат копии в видеопамяти,
+     * а шейдеры могут читать глубину как обычную текстуру (пока она не прикреплена к привязанному для рисования буферу).
+     * При изменении размера буфера текстура меняет размер вместе с ним. Буфер не удаляет текстуру глубины, это делает ее владелец.
+     * Если текстура общая, то очищать ее лучше только в одном буфере, а в остальных выставить политику {@link ClearPolicy#KEEP}.
+     */
+    public void attachDepthTexture(Texture texture) {
+        if (! isAlive()) {
+            throw new IllegalStateException("Буфер еще не создан!");
+        }
+        if (isMultisampled()) {
+            throw new IllegalStateException("К мультисэмплированному буферу нельзя прикрепить обычную текстуру глубины.");
+        }
+
+        int format = Texture.getFormatForInternalFormat(texture.getInternalFormatColorGL());
+        if (format != GL11.GL_DEPTH_COMPONENT && format != GL30.GL_DEPTH_STENCIL) {
+            throw new IllegalArgumentException(texture + " не является текстурой глубины.");
+        }
+
+        GLStateCache.bindFramebuffer(GL30.GL_FRAMEBUFFER, framebufferID);
+        detachDepth();
+
+        depthAttachSlot = (format == GL30.GL_DEPTH_STENCIL) ? GL30.GL_DEPTH_STENCIL_ATTACHMENT : GL30.GL_DEPTH_ATTACHMENT;
+        GL30.glFramebufferTexture2D(GL30.GL_FRAMEBUFFER, depthAttachSlot, GL11.GL_TEXTURE_2D, texture.getTextureID(), 0);
+        GLStateCache.bindFramebuffer(GL30.GL_FRAMEBUFFER, 0);
+
+        depthTexture = texture;
+        attachedDepthTextureID = texture.getTextureID();
+        isUsedDepth = true;
+    }
+
+    /**
+     * Открепляет текстуру глубины. Буфер после этого остается без глубины, текстура не удаляется.
+     */
+    public void detachDepthTexture() {
+        if (! isAlive()) {
+            throw new IllegalStateException("Буфер еще не создан!");
+        }
+        if (depthTexture == null) {
+            return;
+        }
+
+        GLStateCache.bindFramebuffer(GL30.GL_FRAMEBUFFER, framebufferID);
+        detachDepth();
+        GLStateCache.bindFramebuffer(GL30.GL_FRAMEBUFFER, 0);
+
+        isUsedDepth = false;
+    }
+
+    /**
+     * Текстура глубины буфера или null, если глубины нет или она хранится в собственном (не читаемом шейдерами) буфере глубины.
+     */
+    public Texture getDepthTexture() {
+        return depthTexture;
     }
 
     public Texture getFramebufferTexture(int attachSlot) {
@@ -151,7 +354,7 @@ public class CustomFramebuffer {
         Texture texture = attachmentsTexture.get(attachSlot);
         int textureID = (texture == null) ? 0 : texture.getTextureID();
 
-        GL11.glBindTexture(GL11.GL_TEXTURE_2D, textureID);
+        GLStateCache.bindTexture(textureID);
     }
 
     public float[] getClearColor() {
@@ -165,6 +368,40 @@ public class CustomFramebuffer {
         clearColor[3] = alpha;
     }
 
+    /**
+     * Цвет очистки отдельного слота attachSlot (GL_COLOR_ATTACHMENT_N). Остальные слоты очищаются общим цветом.
+     */
+    public void setAttachmentClearColor(int attachSlot, float red, float green, float blue, float alpha) {
+        attachmentClearColors.put(attachSlot, new float[] {red, green, blue, alpha});
+    }
+
+    /**
+     * Возвращает слот к общему цвету очистки.
+     */
+    public void resetAttachmentClearColor(int attachSlot) {
+        attachmentClearColors.remove(attachSlot);
+    }
+
+    public float getClearDepth() {
+        return clearDepth;
+    }
+
+    public void setClearDepth(float clearDepth) {
+        this.clearDepth = clearDepth;
+    }
+
+    public ClearPolicy getClearPolicy(int attachSlot) {
+        ClearPolicy policy = clearPolicies.get(attachSlot);
+        return (policy == null) ? ClearPolicy.CLEAR : policy;
+    }
+
+    /**
+     * Политика очистки слота attachSlot (GL_COLOR_ATTACHMENT_N или GL_DEPTH_ATTACHMENT), см. {@link ClearPolicy}.
+     */
+    public void setClearPolicy(int attachSlot, ClearPolicy policy) {
+        clearPolicies.put(attachSlot, policy);
+    }
+
     public int getFramebufferFilter() {
         return framebufferFilter;
     }
@@ -176,14 +413,14 @@ public class CustomFramebuffer {
         this.framebufferFilter = filter;
 
         attachmentsTexture.forEach((colorAttachment, texture) -> {
-            GL11.glBindTexture(GL11.GL_TEXTURE_2D, texture.getTextureID());
+            GLStateCache.bindTexture(texture.getTextureID());
 
             GL11.glTexParameteri(GL11.GL_TEXTURE_2D, GL11.GL_TEXTURE_MIN_FILTER, filter);
             GL11.glTexParameteri(GL11.GL_TEXTURE_2D, GL11.GL_TEXTURE_MAG_FILTER, filter);
             GL11.glTexParameteri(GL11.GL_TEXTURE_2D, GL11.GL_TEXTURE_WRAP_S, GL11.GL_CLAMP);
             GL11.glTexParameteri(GL11.GL_TEXTURE_2D, GL11.GL_TEXTURE_WRAP_T, GL11.GL_CLAMP);
         });
-        GL11.glBindTexture(GL11.GL_TEXTURE_2D, 0);
+        GLStateCache.bindTexture(0);
     }
 
     public void bindFramebuffer(boolean rewriteViewportSize) {
@@ -191,15 +428,15 @@ public class CustomFramebuffer {
             throw new IllegalStateException("Буфер еще не создан!");
         }
 
-        GL30.glBindFramebuffer(GL30.GL_FRAMEBUFFER, framebufferID);
+        GLStateCache.bindFramebuffer(GL30.GL_FRAMEBUFFER, framebufferID);
 
         if (rewriteViewportSize) {
-            GL11.glViewport(0, 0, this.width, this.height);
+            GLStateCache.viewport(0, 0, this.width, this.height);
         }
     }
 
     public void unbindFramebuffer() {
-        GL30.glBindFramebuffer(GL30.GL_FRAMEBUFFER, 0);
+        GLStateCache.bindFramebuffer(GL30.GL_FRAMEBUFFER, 0);
     }
 
     public void resizeFramebuffer(int width, int height) {
@@ -210,81 +447,297 @@ public class CustomFramebuffer {
         this.width = width;
         this.height = height;
 
-        bindFramebuffer(true);
-        if (isUsedDepth()) {
-            GL30.glFramebufferRenderbuffer(GL30.GL_FRAMEBUFFER, GL30.GL_DEPTH_ATTACHMENT, GL30.GL_RENDERBUFFER, 0);
-            GL30.glDeleteRenderbuffers(depthBufferID);
-            depthBufferID = GL30.glGenRenderbuffers();
-            GL30.glBindRenderbuffer(GL30.GL_RENDERBUFFER, depthBufferID);
-            GL30.glRenderbufferStorage(GL30.GL_RENDERBUFFER, GL14.GL_DEPTH_COMPONENT24, width, height);
-            GL30.glFramebufferRenderbuffer(GL30.GL_FRAMEBUFFER, GL30.GL_DEPTH_ATTACHMENT, GL30.GL_RENDERBUFFER, depthBufferID);
-            GL30.glBindRenderbuffer(GL30.GL_RENDERBUFFER, 0);
+        //хранилище рендербуфера можно переопределить на месте, прикрепление к фреймбуферу при этом сохраняется.
+        if (depthBufferID > 0) {
+            allocateRenderbuffer(depthBufferID, GL14.GL_DEPTH_COMPONENT24);
+        }
+        multisampleRenderbuffers.forEach((attachSlot, renderbufferID) ->
+                allocateRenderbuffer(renderbufferID, attachmentsTexture.get(attachSlot).getInternalFormatColorGL()));
+
+        //общую текстуру глубины мог уже пересоздать другой буфер, тогда recreateTexture ничего не сделает, но ID будет другим.
+        if (depthTexture != null) {
+            Texture.recreateTexture(depthTexture, width, height);
+            if (depthTexture.getTextureID() != attachedDepthTextureID) {
+                GLStateCache.bindFramebuffer(GL30.GL_FRAMEBUFFER, framebufferID);
+                GL30.glFramebufferTexture2D(GL30.GL_FRAMEBUFFER, depthAttachSlot, GL11.GL_TEXTURE_2D, depthTexture.getTextureID(), 0);
+                attachedDepthTextureID = depthTexture.getTextureID();
+            }
         }
 
+        GLStateCache.bindFramebuffer(GL30.GL_FRAMEBUFFER, getResolvedFramebufferID());
         attachmentsTexture.forEach((attachSlot, texture) -> {
+            int oldTextureID = texture.getTextureID();
             Texture.recreateTexture(texture, width, height);
 
-            GL11.glBindTexture(GL11.GL_TEXTURE_2D, texture.getTextureID());
-            OpenGlHelper.func_153171_g(OpenGlHelper.field_153198_e, framebufferID);
-            OpenGlHelper.func_153188_a(OpenGlHelper.field_153198_e, attachSlot, GL11.GL_TEXTURE_2D, texture.getTextureID(), 0);
-            OpenGlHelper.func_153171_g(OpenGlHelper.field_153198_e, 0);
-            GL11.glBindTexture(GL11.GL_TEXTURE_2D, 0);
+            //переприкреплять текстуру нужно, только если она была создана заново.
+            if (texture.getTextureID() != oldTextureID) {
+                GL30.glFramebufferTexture2D(GL30.GL_FRAMEBUFFER, attachSlot, GL11.GL_TEXTURE_2D, texture.getTextureID(), 0);
+            }
         });
 
+        bindFramebuffer(true);
         checkFramebufferComplete();
 
         setFramebufferFilter(framebufferFilter);
         framebufferClear();
     }
 
+    /**
+     * Разрешает мультисэмплированный буфер: копирует каждый слот цвета через glBlitFramebuffer
+     * в прикрепленную к этому слоту текстуру. Для обычного буфера ничего не делает.
+     */
+    public void resolve() {
+        if (! isAlive()) {
+            throw new IllegalStateException("Буфер еще не создан!");
+        }
+        if (! isMultisampled()) {
+            return;
+        }
+
+        GLStateCache.bindFramebuffer(GL30.GL_READ_FRAMEBUFFER, framebufferID);
+        GLStateCache.bindFramebuffer(GL30.GL_DRAW_FRAMEBUFFER, resolveFramebufferID);
+        for (int attachSlot : attachmentsTexture.keySet()) {
+            blitResolve(attachSlot);
+        }
+        GLStateCache.bindFramebuffer(GL30.GL_FRAMEBUFFER, 0);
+    }
+
+    /**
+     * Разрешает один слот цвета мультисэмплированного буфера в прикрепленную к нему текстуру.
+     */
+    public void resolve(int attachSlot) {
+        if (! isAlive()) {
+            throw new IllegalStateException("Буфер еще не создан!");
+        }
+        if (! isMultisampled()) {
+            return;
+        }
+        if (! attachmentsTexture.containsKey(attachSlot)) {
+            throw new RuntimeException("Текстура в attachSlot " + attachSlot + " отсутсвует.");
+        }
+
+        GLStateCache.bindFramebuffer(GL30.GL_READ_FRAMEBUFFER, framebufferID);
+        GLStateCache.bindFramebuffer(GL30.GL_DRAW_FRAMEBUFFER, resolveFramebufferID);
+        blitResolve(attachSlot);
+        GLStateCache.bindFramebuffer(GL30.GL_FRAMEBUFFER, 0);
+    }
+
+    /**
+     * Очищает прикрепления по их политикам ({@link #setClearPolicy(int, ClearPolicy)}): каждый слот своим цветом через glClearBuffer,
+     * а слоты с {@link ClearPolicy#DONT_CARE} объявляются недействительными, если это поддерживается.
+     * Viewport не меняется, т.к. glClearBuffer от него не зависит. После очистки draw buffer - GL_COLOR_ATTACHMENT0.
+     */
     public void framebufferClear() {
         if (! isAlive()) {
             throw new IllegalStateException("Буфер еще не создан!");
         }
 
-        this.bindFramebuffer(true);
+        this.bindFramebuffer(false);
 
-        setDefaultAllDrawBuffer();
+        int[] attachSlots = getSortedAttachSlots();
+        if (attachSlots.length > 0) {
+            setArrayDrawBuffer(attachSlots);
+        }
 
-        GL11.glClearColor(clearColor[0], clearColor[1], clearColor[2], clearColor[3]);
-        int clearBufferBit = GL11.GL_COLOR_BUFFER_BIT;
+        invalidateBuffer.clear();
+        for (int i = 0; i < attachSlots.length; i++) {
+            ClearPolicy policy = getClearPolicy(attachSlots[i]);
+            if (policy == ClearPolicy.CLEAR) {
+                float[] color = attachmentClearColors.get(attachSlots[i]);
+                clearValueBuffer.clear();
+                clearValueBuffer.put((color == null) ? clearColor : color).flip();
+                //номер в glClearBuffer - это индекс в наборе draw buffer'ов, а не номер слота.
+                GL30.glClearBuffer(GL11.GL_COLOR, i, clearValueBuffer);
+                PassProfiler.countClear();
+            } else if (policy == ClearPolicy.DONT_CARE) {
+                invalidateBuffer.put(attachSlots[i]);
+            }
+        }
 
         if (this.isUsedDepth) {
-            GL11.glClearDepth(1.0);
-            clearBufferBit |= GL11.GL_DEPTH_BUFFER_BIT;
+            ClearPolicy policy = getClearPolicy(GL30.GL_DEPTH_ATTACHMENT);
+            if (policy == ClearPolicy.CLEAR) {
+                if (depthAttachSlot == GL30.GL_DEPTH_STENCIL_ATTACHMENT) {
+                    GL30.glClearBufferfi(GL30.GL_DEPTH_STENCIL, 0, clearDepth, 0);
+                } else {
+                    clearValueBuffer.clear();
+                    clearValueBuffer.put(clearDepth).flip();
+                    GL30.glClearBuffer(GL11.GL_DEPTH, 0, clearValueBuffer);
+                }
+                PassProfiler.countClear();
+            } else if (policy == ClearPolicy.DONT_CARE) {
+                invalidateBuffer.put(depthAttachSlot);
+            }
         }
 
-        GL11.glClear(clearBufferBit);
+        invalidateBuffer.flip();
+        if (invalidateBuffer.hasRemaining() && isInvalidateSupported()) {
+            GL43.glInvalidateFramebuffer(GL30.GL_FRAMEBUFFER, invalidateBuffer);
+        }
 
-        setOneDrawBuffer(GL30.GL_COLOR_ATTACHMENT0);
+        if (attachSlots.length != 1 || attachSlots[0] != GL30.GL_COLOR_ATTACHMENT0) {
+            setOneDrawBuffer(GL30.GL_COLOR_ATTACHMENT0);
+        }
 
         this.unbindFramebuffer();
     }
 
+    /**
+     * Объявляет недействительными прикрепления с политикой {@link ClearPolicy#DONT_CARE}.
+     * Вызывать после последнего использования их содержимого в кадре, чтобы видеокарта не сохраняла его в память.
+     * Если glInvalidateFramebuffer не поддерживается, то ничего не делает.
+     */
+    public void invalidateAttachments() {
+        if (! isAlive()) {
+            throw new IllegalStateException("Буфер еще не создан!");
+        }
+        if (! isInvalidateSupported()) {
+            return;
+        }
+
+        invalidateBuffer.clear();
+        for (int attachSlot : getSortedAttachSlots()) {
+            if (getClearPolicy(attachSlot) == ClearPolicy.DONT_CARE) {
+                invalidateBuffer.put(attachSlot);
+            }
+        }
+        if (isUsedDepth && getClearPolicy(GL30.GL_DEPTH_ATTACHMENT) == ClearPolicy.DONT_CARE) {
+            invalidateBuffer.put(depthAttachSlot);
+        }
+        invalidateBuffer.flip();
+
+        if (invalidateBuffer.hasRemaining()) {
+            bindFramebuffer(false);
+            GL43.glInvalidateFramebuffer(GL30.GL_FRAMEBUFFER, invalidateBuffer);
+            unbindFramebuffer();
+        }
+    }
+
+    /**
+     * Объявляет недействительными указанные слоты (GL_COLOR_ATTACHMENT_N, GL_DEPTH_ATTACHMENT) независимо от их политик.
+     * Если glInvalidateFramebuffer не поддерживается, то ничего не делает.
+     */
+    public void invalidateAttachments(int... attachSlots) {
+        if (! isAlive()) {
+            throw new IllegalStateException("Буфер еще не создан!");
+        }
+        if (! isInvalidateSupported() || attachSlots.length == 0) {
+            return;
+        }
+
+        invalidateBuffer.clear();
+        invalidateBuffer.put(attachSlots).flip();
+
+        bindFramebuffer(false);
+        GL43.glInvalidateFramebuffer(GL30.GL_FRAMEBUFFER, invalidateBuffer);
+        unbindFramebuffer();
+    }
+
+    /**
+     * Проверяет поддержку glInvalidateFramebuffer.
+     */
+    public static boolean isInvalidateSupported() {
+        ContextCapabilities capabilities = GLContext.getCapabilities();
+        return capabilities.OpenGL43 || capabilities.GL_ARB_invalidate_subdata;
+    }
+
     public void deleteFramebuffer() {
         if (! isAlive()) {
             throw new IllegalStateException("Буфер еще не создан!");
         }
 
-        GL30.glBindFramebuffer(GL30.GL_FRAMEBUFFER, 0);
-        GL11.glBindTexture(GL11.GL_TEXTURE_2D, 0);
+        GLStateCache.bindFramebuffer(GL30.GL_FRAMEBUFFER, 0);
+        GLStateCache.bindTexture(0);
 
         GL30.glDeleteFramebuffers(framebufferID);
+        GLStateCache.onFramebufferDeleted(framebufferID);
         framebufferID = -1;
 
-        if (isUsedDepth()) {
+        if (depthBufferID > 0) {
             GL30.glDeleteRenderbuffers(depthBufferID);
             depthBufferID = -1;
         }
+        //текстура глубины может быть общей, ее удаляет владелец.
+        depthTexture = null;
+        attachedDepthTextureID = -1;
+
+        if (isMultisampled()) {
+            GL30.glDeleteFramebuffers(resolveFramebufferID);
+            GLStateCache.onFramebufferDeleted(resolveFramebufferID);
+            resolveFramebufferID = -1;
+
+            multisampleRenderbuffers.forEach((attachSlot, renderbufferID) -> GL30.glDeleteRenderbuffers(renderbufferID));
+            multisampleRenderbuffers.clear();
+        }
 
         attachmentsTexture.forEach((colorAttachment, texture) -> {
             TextureUtil.deleteTexture(texture.getTextureID());
+            GLStateCache.onTextureDeleted(texture.getTextureID());
         });
         attachmentsTexture.clear();
+        sortedAttachSlots = null;
+
+        if (readbackRing != null) {
+            readbackRing.delete();
+            readbackRing = null;
+        }
 
         setAlive(false);
     }
 
+    /**
+     * Ставит в очередь асинхронное чтение всей текстуры в слоте attachSlot.
+     * Данные будут доступны через несколько кадров (см. {@link #updateReadback()}).
+     */
+    public ReadbackRequest readPixelsAsync(int attachSlot) {
+        return readPixelsAsync(attachSlot, 0, 0, width, height);
+    }
+
+    /**
+     * Ставит в очередь асинхронное чтение прямоугольника из текстуры в слоте attachSlot.
+     * Формат и тип данных берутся из текстуры. Мультисэмплированный буфер перед этим нужно разрешить ({@link #resolve()}).
+     * Данные будут доступны через несколько кадров (см. {@link #updateReadback()}).
+     */
+    public ReadbackRequest readPixelsAsync(int attachSlot, int x, int y, int width, int height) {
+        Texture texture = getFramebufferTexture(attachSlot);
+        if (texture == null) {
+            throw new RuntimeException("Текстура в attachSlot " + attachSlot + " отсутсвует.");
+        }
+
+        if (readbackRing == null) {
+            readbackRing = new PixelReadbackRing(readbackRingDepth);
+        }
+        return readbackRing.request(getResolvedFramebufferID(), attachSlot, x, y, width, height, texture.getFormatColorGL(), texture.getInternalTypeGL());
+    }
+
+    /**
+     * Забирает данные готовых запросов на чтение. Вызывать раз в кадр, если используется {@link #readPixelsAsync(int)}.
+     */
+    public void updateReadback() {
+        if (readbackRing != null) {
+            readbackRing.update();
+        }
+    }
+
+    public int getReadbackRingDepth() {
+        return readbackRingDepth;
+    }
+
+    /**
+     * Меняет глубину кольца PBO. Незавершенные запросы при этом отменяются.
+     */
+    public void setReadbackRingDepth(int readbackRingDepth) {
+        if (readbackRingDepth < 1) {
+            throw new IllegalArgumentException("Глубина кольца должна быть не меньше 1.");
+        }
+        this.readbackRingDepth = readbackRingDepth;
+
+        if (readbackRing != null) {
+            readbackRing.delete();
+            readbackRing = null;
+        }
+    }
+
     public void checkFramebufferComplete() {
         int i = OpenGlHelper.func_153167_i(OpenGlHelper.field_153198_e);
 
@@ -317,10 +770,10 @@ public class CustomFramebuffer {
      * (аля GL_COLOR_ATTACHMENT_N)
      */
     public void setOneDrawBuffer(int attachSlot) {
-        IntBuffer drawBuff = BufferUtils.createIntBuffer(1);
-        drawBuff.put(attachSlot);
-        drawBuff.flip();
-        GL20.glDrawBuffers(drawBuff);
+        drawBuffersBuffer.clear();
+        drawBuffersBuffer.put(attachSlot);
+        drawBuffersBuffer.flip();
+        GL20.glDrawBuffers(drawBuffersBuffer);
     }
 
     /**
@@ -328,7 +781,8 @@ public class CustomFramebuffer {
      * (аля GL_COLOR_ATTACHMENT_N)
      */
     public void setArrayDrawBuffer(int[] attachSlots) {
-        IntBuffer drawBuff = BufferUtils.createIntBuffer(attachSlots.length);
+        IntBuffer drawBuff = (attachSlots.length <= drawBuffersBuffer.capacity()) ? drawBuffersBuffer : BufferUtils.createIntBuffer(attachSlots.length);
+        drawBuff.clear();
         drawBuff.put(attachSlots);
         drawBuff.flip();
         GL20.glDrawBuffers(drawBuff);
@@ -339,9 +793,7 @@ public class CustomFramebuffer {
             return;
         }
 
-        List<Integer> attachSlots = new ArrayList<>(attachmentsTexture.keySet());
-        attachSlots.sort(Comparator.comparingInt(n -> n));
-        setOneDrawBuffer(attachSlots.get(0));
+        setOneDrawBuffer(getSortedAttachSlots()[0]);
     }
 
     public void setDefaultAllDrawBuffer() {
@@ -349,14 +801,7 @@ public class CustomFramebuffer {
             return;
         }
 
-        List<Integer> attachSlots = new ArrayList<>(attachmentsTexture.keySet());
-        attachSlots.sort(Comparator.comparingInt(n -> n));
-        int[] arr = new int[attachSlots.size()];
-        for (int i = 0; i < arr.length; i++) {
-            arr[i] = attachSlots.get(i);
-        }
-
-        setArrayDrawBuffer(arr);
+        setArrayDrawBuffer(getSortedAttachSlots());
     }
 
     public void drawColorInTextureAttachSlot(int attachSlot, float r, float g, float b, float a) {
@@ -368,80 +813,159 @@ public class CustomFramebuffer {
         bindFramebuffer(true);
         setOneDrawBuffer(attachSlot);
 
-        GL11.glDisable(GL11.GL_TEXTURE_2D);
-        GL11.glDisable(GL11.GL_DEPTH_TEST);
-        GL11.glDisable(GL11.GL_LIGHTING);
-        GL11.glEnable(GL11.GL_CULL_FACE);
-
-        GL11.glPushMatrix();
+        GLStateCache.disable(GL11.GL_DEPTH_TEST);
 
-        GL11.glMatrixMode(GL11.GL_PROJECTION);
-        GL11.glLoadIdentity();
-        GL11.glMatrixMode(GL11.GL_MODELVIEW);
-        GL11.glLoadIdentity();
+        FullscreenPass.drawColor(r, g, b, a);
 
-        Tessellator tessellator = Tessellator.instance;
-        tessellator.startDrawingQuads();
-        tessellator.setColorRGBA_F(r, g, b, a);
-        tessellator.addVertex(-1, -1, 0.2F);
-        tessellator.addVertex(1, -1, 0.2F);
-        tessellator.addVertex(1, 1, 0.2F);
-        tessellator.addVertex(-1, 1, 0.2F);
-        tessellator.draw();
-
-        GL11.glPopMatrix();
-
-        GL11.glEnable(GL11.GL_TEXTURE_2D);
-        GL11.glEnable(GL11.GL_DEPTH_TEST);
-        GL11.glEnable(GL11.GL_LIGHTING);
-        GL11.glDisable(GL11.GL_CULL_FACE);
+        GLStateCache.enable(GL11.GL_TEXTURE_2D);
+        GLStateCache.enable(GL11.GL_DEPTH_TEST);
+        GLStateCache.enable(GL11.GL_LIGHTING);
+        GLStateCache.disable(GL11.GL_CULL_FACE);
 
         setFirstLowDrawBuffer();
         unbindFramebuffer();
     }
 
+    /**
+     * Копирует текстуру в слот attachSlot (с растяжением на весь слот).
+     * Копирование идет через glCopyImageSubData или glBlitFramebuffer, если формат текстуры это позволяет, иначе рисуется прямоугольник.
+     * В мультисэмплированный буфер аппаратно копируется только текстура того же размера и формата.
+     */
     public void drawTextureInTextureAttachSlot(int attachSlot, Texture texture) {
         Texture textureAttachSlot = getFramebufferTexture(attachSlot);
         if (textureAttachSlot == null) {
             throw new RuntimeException("Текстура в attachSlot " + attachSlot + " отсутсвует.");
         }
 
-        bindFramebuffer(true);
-        setOneDrawBuffer(attachSlot);
+        int filter = (texture.getWidthTexture() == width && texture.getHeightTexture() == height) ? GL11.GL_NEAREST : GL11.GL_LINEAR;
+        boolean isCopied = FramebufferCopy.copy(
+                texture, -1, 0, 0, 0, texture.getWidthTexture(), texture.getHeightTexture(),
+                textureAttachSlot, framebufferID, attachSlot, 0, 0, width, height,
+                filter, isMultisampled());
+
+        if (! isCopied) {
+            drawTextureQuad(attachSlot, texture.getTextureID(), 0, 0, width, height);
+        }
+    }
+
+    /**
+     * Копирует слот srcSlot этого буфера целиком в слот dstSlot буфера target (с масштабированием, если размеры разные).
+     */
+    public void copyTo(CustomFramebuffer target, int srcSlot, int dstSlot) {
+        copyTo(target, srcSlot, 0, 0, width, height, dstSlot, 0, 0, target.getWidth(), target.getHeight(), GL11.GL_LINEAR);
+    }
+
+    /**
+     * Копирует прямоугольник слота srcSlot этого буфера в прямоугольник слота dstSlot буфера target.
+     * Если размеры прямоугольников разные, то картинка масштабируется с фильтром filter (GL_NEAREST или GL_LINEAR).
+     * <p>
+     * Путь выбирается по форматам и размерам (см. {@link FramebufferCopy}). Мультисэмплированный буфер-источник
+     * перед копированием разрешается, а в мультисэмплированный буфер-приемник копирование идет через glBlitFramebuffer,
+     * но только без масштабирования и при одинаковых форматах (иначе рисуется прямоугольник).
+     * Если аппаратное копирование невозможно, то прямоугольник рисуется шейдером - в этом случае копировать можно только весь слот источника.
+     */
+    public void copyTo(CustomFramebuffer target, int srcSlot, int srcX, int srcY, int srcWidth, int srcHeight,
+                       int dstSlot, int dstX, int dstY, int dstWidth, int dstHeight, int filter) {
+        Texture srcTexture = getFramebufferTexture(srcSlot);
+        if (srcTexture == null) {
+            throw new RuntimeException("Текстура в attachSlot " + srcSlot + " отсутсвует.");
+        }
+        Texture dstTexture = target.getFramebufferTexture(dstSlot);
+        if (dstTexture == null) {
+            throw new RuntimeException("Текстура в attachSlot " + dstSlot + " отсутсвует.");
+        }
 
-        GL11.glEnable(GL11.GL_TEXTURE_2D);
-        GL11.glDisable(GL11.GL_DEPTH_TEST);
-        GL11.glDisable(GL11.GL_LIGHTING);
-        GL11.glEnable(GL11.GL_CULL_FACE);
+        resolve(srcSlot);
 
-        GL11.glPushMatrix();
+        boolean isCopied = FramebufferCopy.copy(
+                srcTexture, getResolvedFramebufferID(), srcSlot, srcX, srcY, srcWidth, srcHeight,
+                dstTexture, target.getFramebufferID(), dstSlot, dstX, dstY, dstWidth, dstHeight,
+                filter, target.isMultisampled());
 
-        GL11.glMatrixMode(GL11.GL_PROJECTION);
-        GL11.glLoadIdentity();
-        GL11.glMatrixMode(GL11.GL_MODELVIEW);
-        GL11.glLoadIdentity();
+        if (! isCopied) {
+            if (srcX != 0 || srcY != 0 || srcWidth != width || srcHeight != height) {
+                throw new IllegalArgumentException("Формат " + srcTexture + " не позволяет аппаратное копирование, а шейдером можно скопировать только весь слот.");
+            }
+            target.drawTextureQuad(dstSlot, srcTexture.getTextureID(), dstX, dstY, dstWidth, dstHeight);
+        }
+    }
 
-        GL11.glBindTexture(GL11.GL_TEXTURE_2D, texture.getTextureID());
-        Tessellator tessellator = Tessellator.instance;
-        tessellator.setColorRGBA_F(1, 1, 1, 1);
-        tessellator.startDrawingQuads();
-        tessellator.addVertexWithUV(-1, -1, 0.2F, 0, 0);
-        tessellator.addVertexWithUV(1, -1, 0.2F, 1, 0);
-        tessellator.addVertexWithUV(1, 1, 0.2F, 1, 1);
-        tessellator.addVertexWithUV(-1, 1, 0.2F, 0, 1);
-        tessellator.draw();
-        GL11.glBindTexture(GL11.GL_TEXTURE_2D, 0);
 
-        GL11.glPopMatrix();
+    /**
+     * Рисует текстуру в прямоугольник слота attachSlot. Запасной путь для копирования, когда аппаратное невозможно.
+     */
+    private void drawTextureQuad(int attachSlot, int textureID, int x, int y, int width, int height) {
+        bindFramebuffer(false);
+        GLStateCache.viewport(x, y, width, height);
+        setOneDrawBuffer(attachSlot);
+
+        GLStateCache.enable(GL11.GL_TEXTURE_2D);
+        GLStateCache.disable(GL11.GL_DEPTH_TEST);
 
-        GL11.glEnable(GL11.GL_DEPTH_TEST);
-        GL11.glEnable(GL11.GL_LIGHTING);
-        GL11.glDisable(GL11.GL_CULL_FACE);
+        FullscreenPass.drawTexture(textureID);
+
+        GLStateCache.enable(GL11.GL_DEPTH_TEST);
+        GLStateCache.enable(GL11.GL_LIGHTING);
+        GLStateCache.disable(GL11.GL_CULL_FACE);
 
         setFirstLowDrawBuffer();
         unbindFramebuffer();
     }
 
+    /**
+     * Открепляет от привязанного буфера текущую глубину (рендербуфер удаляется, текстура - нет).
+     */
+    private void detachDepth() {
+        if (depthBufferID > 0) {
+            GL30.glFramebufferRenderbuffer(GL30.GL_FRAMEBUFFER, GL30.GL_DEPTH_ATTACHMENT, GL30.GL_RENDERBUFFER, 0);
+            GL30.glDeleteRenderbuffers(depthBufferID);
+            depthBufferID = -1;
+        }
+        if (depthTexture != null) {
+            GL30.glFramebufferTexture2D(GL30.GL_FRAMEBUFFER, depthAttachSlot, GL11.GL_TEXTURE_2D, 0, 0);
+            depthTexture = null;
+            attachedDepthTextureID = -1;
+        }
+        depthAttachSlot = GL30.GL_DEPTH_ATTACHMENT;
+    }
+
+    /**
+     * Слоты прикрепленных текстур по возрастанию. Пересчитываются только при изменении набора прикреплений.
+     */
+    private int[] getSortedAttachSlots() {
+        if (sortedAttachSlots == null) {
+            List<Integer> attachSlots = new ArrayList<>(attachmentsTexture.keySet());
+            attachSlots.sort(Comparator.comparingInt(n -> n));
+            sortedAttachSlots = new int[attachSlots.size()];
+            for (int i = 0; i < sortedAttachSlots.length; i++) {
+                sortedAttachSlots[i] = attachSlots.get(i);
+            }
+        }
+        return sortedAttachSlots;
+    }
+
+    /**
+     * Выделяет хранилище рендербуферу под текущий размер и количество сэмплов буфера.
+     */
+    private void allocateRenderbuffer(int renderbufferID, int internalFormat) {
+        GL30.glBindRenderbuffer(GL30.GL_RENDERBUFFER, renderbufferID);
+        if (isMultisampled()) {
+            GL30.glRenderbufferStorageMultisample(GL30.GL_RENDERBUFFER, samples, internalFormat, width, height);
+        } else {
+            GL30.glRenderbufferStorage(GL30.GL_RENDERBUFFER, internalFormat, width, height);
+        }
+        GL30.glBindRenderbuffer(GL30.GL_RENDERBUFFER, 0);
+    }
+
+    /**
+     * Копирует слот attachSlot из привязанного GL_READ_FRAMEBUFFER в тот же слот GL_DRAW_FRAMEBUFFER.
+     * Набор draw buffer'ов фреймбуфера разрешения меняется только здесь, поэтому его можно не восстанавливать.
+     */
+    private void blitResolve(int attachSlot) {
+        GL11.glReadBuffer(attachSlot);
+        GL11.glDrawBuffer(attachSlot);
+        GL30.glBlitFramebuffer(0, 0, width, height, 0, 0, width, height, GL11.GL_COLOR_BUFFER_BIT, GL11.GL_NEAREST);
+    }
 
     protected void setAlive(boolean alive) {
         this.isAlive = alive;
@@ -0,0 +1,117 @@
+package ru.somber.clientutil.opengl;
+
+import cpw.mods.fml.relauncher.Side;
+import cpw.mods.fml.relauncher.SideOnly;
+import org.lwjgl.BufferUtils;
+import org.lwjgl.opengl.GL11;
+
+import java.nio.FloatBuffer;
+
+/**
+ * Общий для всех шейдерных программ uniform-блок с данными кадра: матрицы проекции и вида, время и размер экрана.
+ * Блок загружается один раз за кадр ({@link #update(float, float, int, int)}) и привязан к точке {@link #BINDING_POINT},
+ * поэтому программам не нужно загружать эти значения по отдельности.
+ * <p>
+ * В шейдере (GLSL 140 и выше) блок объявляется так, как в {@link #GLSL_DECLARATION}.
+ */
+@SideOnly(Side.CLIENT)
+public final class FrameUniformBlock {
+    private FrameUniformBlock() {}
+
+    public static final String BLOCK_NAME = "SomberFrameData";
+    /** Точка привязки блока. Другим uniform-буферам ее лучше не занимать. */
+    public static final int BINDING_POINT = 0;
+
+    public static final String GLSL_DECLARATION =
+            "layout(std140) uniform " + BLOCK_NAME + " {\n" +
+            "    mat4 frameProjection;\n" +
+            "    mat4 frameModelView;\n" +
+            "    float frameTime;\n" +
+            "    float framePartialTicks;\n" +
+            "    vec2 frameScreenSize;\n" +
+            "};\n";
+
+    private static final UniformBlockLayout layout = new UniformBlockLayout(BLOCK_NAME)
+            .addMat4("frameProjection")
+            .addMat4("frameModelView")
+            .addFloat("frameTime")
+            .addFloat("framePartialTicks")
+            .addVec2("frameScreenSize");
+
+    private static final int PROJECTION_OFFSET = layout.getOffset("frameProjection");
+    private static final int MODEL_VIEW_OFFSET = layout.getOffset("frameModelView");
+    private static final int TIME_OFFSET = layout.getOffset("frameTime");
+    private static final int PARTIAL_TICKS_OFFSET = layout.getOffset("framePartialTicks");
+    private static final int SCREEN_SIZE_OFFSET = layout.getOffset("frameScreenSize");
+
+    private static UniformBuffer buffer;
+    private static FloatBuffer matrixBuffer;
+
+
+    public static UniformBlockLayout getLayout() {
+        return layout;
+    }
+
+    /**
+     * Создает буфер блока. Вызывается автоматически при первом обновлении,
+     * но программы, слинкованные до создания буфера, к точке привязки не привязываются, поэтому лучше вызвать его до загрузки шейдеров.
+     */
+    public static void init() {
+        if (buffer == null) {
+            buffer = new UniformBuffer(layout, BINDING_POINT);
+            matrixBuffer = BufferUtils.createFloatBuffer(16);
+        }
+    }
+
+    /**
+     * Обновляет блок текущими матрицами проекции и вида из OpenGL и загружает его.
+     */
+    public static void update(float time, float partialTicks, int screenWidth, int screenHeight) {
+        init();
+
+        matrixBuffer.clear();
+        GL11.glGetFloat(GL11.GL_PROJECTION_MATRIX, matrixBuffer);
+        buffer.setMat4(PROJECTION_OFFSET, matrixBuffer);
+
+        matrixBuffer.clear();
+        GL11.glGetFloat(GL11.GL_MODELVIEW_MATRIX, matrixBuffer);
+        buffer.setMat4(MODEL_VIEW_OFFSET, matrixBuffer);
+
+        setValuesAndUpload(time, partialTicks, screenWidth, screenHeight);
+    }
+
+    /**
+     * Обновляет блок переданными матрицами (16 значений по столбцам, начиная с позиции буфера) и загружает его.
+     */
+    public static void update(FloatBuffer projection, FloatBuffer modelView, float time, float partialTicks, int screenWidth, int screenHeight) {
+        init();
+
+        buffer.setMat4(PROJECTION_OFFSET, projection);
+        buffer.setMat4(MODEL_VIEW_OFFSET, modelView);
+
+        setValuesAndUpload(time, partialTicks, screenWidth, screenHeight);
+    }
+
+    /**
+     * Возвращает буфер блока или null, если он еще не создан.
+     */
+    public static UniformBuffer getBuffer() {
+        return buffer;
+    }
+
+    public static void delete() {
+        if (buffer != null) {
+            buffer.delete();
+            buffer = null;
+        }
+    }
+
+
+    private static void setValuesAndUpload(float time, float partialTicks, int screenWidth, int screenHeight) {
+        buffer.setFloat(TIME_OFFSET, time);
+        buffer.setFloat(PARTIAL_TICKS_OFFSET, partialTicks);
+        buffer.setVec2(SCREEN_SIZE_OFFSET, screenWidth, screenHeight);
+        buffer.upload();
+    }
+
+}
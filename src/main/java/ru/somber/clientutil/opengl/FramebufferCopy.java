@@ -0,0 +1,230 @@
+package ru.somber.clientutil.opengl;
+
+import cpw.mods.fml.relauncher.Side;
+import cpw.mods.fml.relauncher.SideOnly;
+import org.lwjgl.opengl.ContextCapabilities;
+import org.lwjgl.opengl.GL11;
+import org.lwjgl.opengl.GL30;
+import org.lwjgl.opengl.GL43;
+import org.lwjgl.opengl.GLContext;
+import ru.somber.clientutil.opengl.texture.Texture;
+
+/**
+ * Аппаратное копирование прямоугольников между текстурами без отрисовки.
+ * <p>
+ * Из доступных путей выбирается самый дешевый:
+ * <ul>
+ *     <li>glCopyImageSubData - без масштабирования, при одинаковом формате и если поддерживается (OpenGL 4.3 или ARB_copy_image);</li>
+ *     <li>glBlitFramebuffer - с масштабированием и фильтром, если обе текстуры можно прикрепить к фреймбуферу как цвет;</li>
+ *     <li>иначе копирование не выполняется, и вызывающий код рисует прямоугольник шейдером сам (см. {@link CustomFramebuffer#copyTo}).</li>
+ * </ul>
+ * Текстуры, которые не прикреплены ни к одному фреймбуферу, на время копирования прикрепляются к служебным фреймбуферам.
+ * Копирование внутри одной текстуры с перекрытием прямоугольников не определено.
+ */
+@SideOnly(Side.CLIENT)
+public final class FramebufferCopy {
+    /** Служебные фреймбуферы для текстур без своего фреймбуфера. */
+    private static int readFramebufferID = -1;
+    private static int drawFramebufferID = -1;
+
+    private static long countCopyImage;
+    private static long countBlits;
+    private static long countFallbacks;
+
+
+    private FramebufferCopy() {}
+
+    /**
+     * Проверяет поддержку glCopyImageSubData.
+     */
+    public static boolean isCopyImageSupported() {
+        ContextCapabilities capabilities = GLContext.getCapabilities();
+        return capabilities.OpenGL43 || capabilities.GL_ARB_copy_image;
+    }
+
+    /**
+     * Копирует прямоугольник текстуры src в прямоугольник текстуры dst.
+     * <p>
+     * srcFramebufferID / dstFramebufferID - фреймбуфер, к которому текстура уже прикреплена в слоте srcSlot / dstSlot,
+     * или -1, если текстура ни к чему не прикреплена. Если dst - цель разрешения мультисэмплированного буфера,
+     * то копировать нужно в сам мультисэмплированный буфер, а не в текстуру (иначе копию затрет {@link CustomFramebuffer#resolve()}),
+     * поэтому для него передается forceBlit = true.
+     * Blit в мультисэмплированный фреймбуфер OpenGL разрешает только без масштабирования и при одинаковых форматах
+     * (иначе GL_INVALID_OPERATION и ничего не копируется), поэтому с forceBlit масштабированное копирование
+     * или копирование между разными форматами не выполняется, и возвращается false.
+     * <p>
+     * filter - GL_NEAREST или GL_LINEAR, используется только при масштабировании.
+     *
+     * @return true, если копирование выполнено аппаратно, false - если прямоугольник нужно нарисовать шейдером.
+     */
+    public static boolean copy(Texture src, int srcFramebufferID, int srcSlot, int srcX, int srcY, int srcWidth, int srcHeight,
+                               Texture dst, int dstFramebufferID, int dstSlot, int dstX, int dstY, int dstWidth, int dstHeight,
+                               int filter, boolean forceBlit) {
+        checkRect(src, srcX, srcY, srcWidth, srcHeight);
+        checkRect(dst, dstX, dstY, dstWidth, dstHeight);
+
+        boolean isScaled = srcWidth != dstWidth || srcHeight != dstHeight;
+        boolean isSameFormat = src.getInternalFormatColorGL() == dst.getInternalFormatColorGL();
+
+        if (forceBlit && (isScaled || ! isSameFormat)) {
+            countFallbacks++;
+            return false;
+        }
+
+        if (! forceBlit && ! isScaled && isSameFormat && src.getTextureID() != dst.getTextureID() && isCopyImageSupported()) {
+            GL43.glCopyImageSubData(
+                    src.getTextureID(), GL11.GL_TEXTURE_2D, 0, srcX, srcY, 0,
+                    dst.getTextureID(), GL11.GL_TEXTURE_2D, 0, dstX, dstY, 0,
+                    srcWidth, srcHeight, 1);
+            countCopyImage++;
+            return true;
+        }
+
+        if (! isColorRenderable(src.getInternalFormatColorGL()) || ! isColorRenderable(dst.getInternalFormatColorGL())) {
+            countFallbacks++;
+            return false;
+        }
+
+        boolean isSrcScratch = srcFramebufferID < 0;
+        if (isSrcScratch) {
+            srcFramebufferID = attachScratch(true, src);
+            srcSlot = GL30.GL_COLOR_ATTACHMENT0;
+        }
+        boolean isDstScratch = dstFramebufferID < 0;
+        if (isDstScratch) {
+            dstFramebufferID = attachScratch(false, dst);
+            dstSlot = GL30.GL_COLOR_ATTACHMENT0;
+        }
+
+        GLStateCache.bindFramebuffer(GL30.GL_READ_FRAMEBUFFER, srcFramebufferID);
+        GLStateCache.bindFramebuffer(GL30.GL_DRAW_FRAMEBUFFER, dstFramebufferID);
+        GL11.glReadBuffer(srcSlot);
+        GL11.glDrawBuffer(dstSlot);
+
+        GL30.glBlitFramebuffer(
+                srcX, srcY, srcX + srcWidth, srcY + srcHeight,
+                dstX, dstY, dstX + dstWidth, dstY + dstHeight,
+                GL11.GL_COLOR_BUFFER_BIT, isScaled ? filter : GL11.GL_NEAREST);
+        countBlits++;
+
+        //у чужого фреймбуфера возвращаем draw buffer по умолчанию, как это делает CustomFramebuffer.
+        if (! isDstScratch && dstSlot != GL30.GL_COLOR_ATTACHMENT0) {
+            GL11.glDrawBuffer(GL30.GL_COLOR_ATTACHMENT0);
+        }
+
+        //прикрепление к служебному фреймбуферу не должно держать текстуру, которую могут удалить.
+        if (isSrcScratch) {
+            GL30.glFramebufferTexture2D(GL30.GL_READ_FRAMEBUFFER, GL30.GL_COLOR_ATTACHMENT0, GL11.GL_TEXTURE_2D, 0, 0);
+        }
+        if (isDstScratch) {
+            GL30.glFramebufferTexture2D(GL30.GL_DRAW_FRAMEBUFFER, GL30.GL_COLOR_ATTACHMENT0, GL11.GL_TEXTURE_2D, 0, 0);
+        }
+
+        GLStateCache.bindFramebuffer(GL30.GL_FRAMEBUFFER, 0);
+        return true;
+    }
+
+    /**
+     * Копирует текстуру src целиком в текстуру dst целиком (с масштабированием, если размеры разные).
+     */
+    public static boolean copy(Texture src, Texture dst, int filter) {
+        return copy(src, -1, 0, 0, 0, src.getWidthTexture(), src.getHeightTexture(),
+                dst, -1, 0, 0, 0, dst.getWidthTexture(), dst.getHeightTexture(),
+                filter, false);
+    }
+
+    public static long getCountCopyImage() {
+        return countCopyImage;
+    }
+
+    public static long getCountBlits() {
+        return countBlits;
+    }
+
+    public static long getCountFallbacks() {
+        return countFallbacks;
+    }
+
+    public static void resetCounters() {
+        countCopyImage = 0;
+        countBlits = 0;
+        countFallbacks = 0;
+    }
+
+    public static void printStatistics() {
+        System.out.println("FramebufferCopy: copyImage " + countCopyImage + ", blit " + countBlits + ", fallback " + countFallbacks);
+    }
+
+    /**
+     * Удаляет служебные фреймбуферы (например, при выгрузке ресурсов).
+     */
+    public static void delete() {
+        if (readFramebufferID > 0) {
+            GL30.glDeleteFramebuffers(readFramebufferID);
+            GLStateCache.onFramebufferDeleted(readFramebufferID);
+            readFramebufferID = -1;
+        }
+        if (drawFramebufferID > 0) {
+            GL30.glDeleteFramebuffers(drawFramebufferID);
+            GLStateCache.onFramebufferDeleted(drawFramebufferID);
+            drawFramebufferID = -1;
+        }
+    }
+
+
+    /**
+     * Прикрепляет текстуру к служебному фреймбуферу чтения или записи и возвращает его ID.
+     */
+    private static int attachScratch(boolean isRead, Texture texture) {
+        int target = isRead ? GL30.GL_READ_FRAMEBUFFER : GL30.GL_DRAW_FRAMEBUFFER;
+        int framebufferID;
+        if (isRead) {
+            if (readFramebufferID < 0) {
+                readFramebufferID = GL30.glGenFramebuffers();
+            }
+            framebufferID = readFramebufferID;
+        } else {
+            if (drawFramebufferID < 0) {
+                drawFramebufferID = GL30.glGenFramebuffers();
+            }
+            framebufferID = drawFramebufferID;
+        }
+
+        GLStateCache.bindFramebuffer(target, framebufferID);
+        GL30.glFramebufferTexture2D(target, GL30.GL_COLOR_ATTACHMENT0, GL11.GL_TEXTURE_2D, texture.getTextureID(), 0);
+        return framebufferID;
+    }
+
+    private static void checkRect(Texture texture, int x, int y, int width, int height) {
+        if (x < 0 || y < 0 || width <= 0 || height <= 0 ||
+                x + width > texture.getWidthTexture() || y + height > texture.getHeightTexture()) {
+            throw new IllegalArgumentException("Прямоугольник (" + x + ", " + y + ", " + width + ", " + height + ") выходит за границы " + texture + ".");
+        }
+    }
+
+    /**
+     * Можно ли прикрепить текстуру с таким внутренним форматом к фреймбуферу как цвет.
+     * Неизвестные форматы (сжатые, устаревшие вроде GL_LUMINANCE) считаются неподходящими.
+     */
+    private static boolean isColorRenderable(int internalFormatColorGL) {
+        switch (internalFormatColorGL) {
+            case GL11.GL_RGBA8:
+            case GL11.GL_RGB8:
+            case GL30.GL_R8:
+            case GL30.GL_RG8:
+            case GL30.GL_RGBA16F:
+            case GL30.GL_RGB16F:
+            case GL30.GL_RG16F:
+            case GL30.GL_R16F:
+            case GL30.GL_RGBA32F:
+            case GL30.GL_RGB32F:
+            case GL30.GL_RG32F:
+            case GL30.GL_R32F:
+            case GL30.GL_R11F_G11F_B10F:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+}
@@ -0,0 +1,205 @@
+package ru.somber.clientutil.opengl;
+
+import cpw.mods.fml.relauncher.Side;
+import cpw.mods.fml.relauncher.SideOnly;
+import org.lwjgl.BufferUtils;
+import org.lwjgl.opengl.GL11;
+import org.lwjgl.opengl.GL15;
+import org.lwjgl.opengl.GL20;
+import org.lwjgl.opengl.GL30;
+
+import java.nio.FloatBuffer;
+
+/**
+ * Отрисовка на весь экран (фреймбуфер) одним треугольником, который лежит в видеопамяти.
+ * Треугольник загружается один раз, а каждый проход стоит одного glDrawArrays.
+ * Шейдеры не используют матрицы, поэтому стек матриц не трогается.
+ * После отрисовки привязан VAO 0, как и после остальных классов пакета (майнкрафт VAO не использует).
+ * <p>
+ * Для своих шейдеров: позиция вершины приходит в атрибут {@link #POSITION_ATTRIBUTE} (vec2, от -1 до 3),
+ * текстурные координаты считаются как position * 0.5 + 0.5.
+ */
+@SideOnly(Side.CLIENT)
+public final class FullscreenPass {
+    private FullscreenPass() {}
+
+    /** Номер атрибута позиции вершины. */
+    public static final int POSITION_ATTRIBUTE = 0;
+    /** Имя атрибута позиции вершины в шейдерах. */
+    public static final String POSITION_ATTRIBUTE_NAME = "position";
+
+    private static final String VERTEX_SHADER_CODE =
+            "#version 120\n" +
+            "attribute vec2 position;\n" +
+            "varying vec2 textureCoord;\n" +
+            "void main() {\n" +
+            "    textureCoord = position * 0.5 + 0.5;\n" +
+            "    gl_Position = vec4(position, 0.0, 1.0);\n" +
+            "}\n";
+
+    private static final String TEXTURE_FRAGMENT_SHADER_CODE =
+            "#version 120\n" +
+            "uniform sampler2D texture;\n" +
+            "varying vec2 textureCoord;\n" +
+            "void main() {\n" +
+            "    gl_FragColor = texture2D(texture, textureCoord);\n" +
+            "}\n";
+
+    private static final String COLOR_FRAGMENT_SHADER_CODE =
+            "#version 120\n" +
+            "uniform vec4 color;\n" +
+            "void main() {\n" +
+            "    gl_FragColor = color;\n" +
+            "}\n";
+
+    private static boolean isInit;
+
+    private static int vertexArrayID;
+    private static int vertexBufferID;
+
+    private static ShaderProgram textureProgram;
+    private static ShaderProgram colorProgram;
+    private static int colorUniformHandle;
+
+
+    /**
+     * Создает треугольник и шейдеры. Вызывается автоматически при первой отрисовке.
+     */
+    public static void init() {
+        if (isInit) {
+            return;
+        }
+
+        FloatBuffer vertices = BufferUtils.createFloatBuffer(6);
+        vertices.put(new float[] {-1, -1, 3, -1, -1, 3});
+        vertices.flip();
+
+        vertexArrayID = GL30.glGenVertexArrays();
+        vertexBufferID = GL15.glGenBuffers();
+
+        GL30.glBindVertexArray(vertexArrayID);
+        GL15.glBindBuffer(GL15.GL_ARRAY_BUFFER, vertexBufferID);
+        GL15.glBufferData(GL15.GL_ARRAY_BUFFER, vertices, GL15.GL_STATIC_DRAW);
+        GL20.glEnableVertexAttribArray(POSITION_ATTRIBUTE);
+        GL20.glVertexAttribPointer(POSITION_ATTRIBUTE, 2, GL11.GL_FLOAT, false, 0, 0);
+        GL30.glBindVertexArray(0);
+        GL15.glBindBuffer(GL15.GL_ARRAY_BUFFER, 0);
+
+        textureProgram = createProgram(TEXTURE_FRAGMENT_SHADER_CODE);
+        colorProgram = createProgram(COLOR_FRAGMENT_SHADER_CODE);
+
+        //сэмплер texture после линковки и так равен 0 (юнит 0).
+        colorUniformHandle = colorProgram.getUniformHandle("color");
+
+        isInit = true;
+    }
+
+    /**
+     * Удаляет треугольник и шейдеры.
+     */
+    public static void delete() {
+        if (! isInit) {
+            return;
+        }
+
+        GL30.glDeleteVertexArrays(vertexArrayID);
+        GL15.glDeleteBuffers(vertexBufferID);
+        textureProgram.deleteProgram();
+        colorProgram.deleteProgram();
+
+        isInit = false;
+    }
+
+    /**
+     * Рисует треугольник на весь экран с текущей шейдерной программой. После вызова привязан VAO 0.
+     */
+    public static void draw() {
+        init();
+
+        GL30.glBindVertexArray(vertexArrayID);
+        GL11.glDrawArrays(GL11.GL_TRIANGLES, 0, 3);
+        PassProfiler.countDrawCall();
+        GL30.glBindVertexArray(0);
+    }
+
+    /**
+     * Рисует текстуру на весь экран. Текстура привязывается к юниту 0.
+     * Шейдерная программа и активный текстурный юнит после отрисовки восстанавливаются.
+     */
+    public static void drawTexture(int textureID) {
+        init();
+
+        GLStateCache.beginSequence();
+        try {
+            int previousProgramID = getCurrentProgramID();
+            int previousTextureUnit = GLStateCache.getActiveTextureUnit();
+            GLStateCache.useProgram(textureProgram.getShaderProgramID());
+            GLStateCache.bindTexture(0, textureID);
+
+            draw();
+
+            GLStateCache.bindTexture(0);
+            GLStateCache.activeTexture(previousTextureUnit);
+            GLStateCache.useProgram(previousProgramID);
+        } finally {
+            GLStateCache.endSequence();
+        }
+    }
+
+    /**
+     * Заливает весь экран цветом. Шейдерная программа после отрисовки восстанавливается.
+     */
+    public static void drawColor(float r, float g, float b, float a) {
+        init();
+
+        GLStateCache.beginSequence();
+        try {
+            int previousProgramID = getCurrentProgramID();
+            GLStateCache.useProgram(colorProgram.getShaderProgramID());
+
+            colorProgram.setUniform(colorUniformHandle, r, g, b, a);
+
+            draw();
+
+            GLStateCache.useProgram(previousProgramID);
+        } finally {
+            GLStateCache.endSequence();
+        }
+    }
+
+
+    private static ShaderProgram createProgram(String fragmentShaderCode) {
+        Shader vertexShader = new Shader(GL20.GL_VERTEX_SHADER, VERTEX_SHADER_CODE);
+        Shader fragmentShader = new Shader(GL20.GL_FRAGMENT_SHADER, fragmentShaderCode);
+        if (! vertexShader.compileShader()) {
+            throw new RuntimeException("Не удалось скомпилировать вершинный шейдер: " + vertexShader.getInfoLog());
+        }
+        if (! fragmentShader.compileShader()) {
+            throw new RuntimeException("Не удалось скомпилировать фрагментный шейдер: " + fragmentShader.getInfoLog());
+        }
+
+        ShaderProgram program = new ShaderProgram();
+        program.attachShader(vertexShader);
+        program.attachShader(fragmentShader);
+        GL20.glBindAttribLocation(program.getShaderProgramID(), POSITION_ATTRIBUTE, POSITION_ATTRIBUTE_NAME);
+        if (! program.linkProgram()) {
+            throw new RuntimeException("Не удалось слинковать шейдерную программу: " + program.getInfoLog());
+        }
+
+        //шейдеры после линковки больше не нужны.
+        program.detachAllShader();
+        vertexShader.deleteShader();
+        fragmentShader.deleteShader();
+
+        return program;
+    }
+
+    static int getCurrentProgramID() {
+        int programID = GLStateCache.getProgramID();
+        if (programID < 0) {
+            programID = GL11.glGetInteger(GL20.GL_CURRENT_PROGRAM);
+        }
+        return programID;
+    }
+
+}
@@ -0,0 +1,296 @@
+package ru.somber.clientutil.opengl;
+
+import cpw.mods.fml.relauncher.Side;
+import cpw.mods.fml.relauncher.SideOnly;
+import org.lwjgl.opengl.ContextCapabilities;
+import org.lwjgl.opengl.GL11;
+import org.lwjgl.opengl.GL32;
+import org.lwjgl.opengl.GLContext;
+import org.lwjgl.opengl.GLSync;
+import ru.somber.clientutil.opengl.texture.Texture;
+
+import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Очередь команд OpenGL, в которую можно писать из любого потока, а выполняются команды в потоке рендера.
+ * <p>
+ * Очередь без блокировок для многих писателей и одного читателя: писатель подменяет хвост одним getAndSet,
+ * поток рендера забирает команды с головы в {@link #drain(long)} в пределах бюджета времени.
+ * <p>
+ * {@link #submit(Callable)} возвращает CompletableFuture, который завершается в потоке рендера. Цепочки команд OpenGL
+ * строятся через async-методы с этой очередью в качестве Executor'а, например {@code queue.submit(a).thenAcceptAsync(b, queue)}.
+ * <p>
+ * Удаление объектов ({@link #deleteTexture(Texture)}, {@link #deleteFramebuffer(CustomFramebuffer)} и т.д.) откладывается,
+ * пока видеокарта не выполнит все команды, отправленные до удаления: за удалениями ставится fence,
+ * и они выполняются, когда он сработал. Без поддержки fence'ов удаление откладывается на несколько кадров.
+ */
+@SideOnly(Side.CLIENT)
+public class GLCommandQueue implements Executor {
+    /** Через сколько вызовов drain выполнять удаления, если fence'ы не поддерживаются. */
+    private static final int DELETE_LATENCY_FRAMES = 3;
+
+    private final Thread renderThread;
+    private final boolean isSyncSupported;
+
+    /** Последний узел очереди. Общий для всех писателей. */
+    private final AtomicReference<Node> tail;
+    /** Узел-заглушка перед первой невыполненной командой. Используется только потоком рендера. */
+    private Node head;
+
+    /** Удаления, снятые с очереди, но еще не привязанные к fence'у. */
+    private final List<Runnable> collectedDeletes;
+    /** Группы удалений, ждущие своих fence'ов, в порядке отправки. */
+    private final ArrayDeque<PendingDeletes> pendingDeletes;
+    private long frameIndex;
+
+    private long countExecuted;
+    private long countDeleted;
+    private long countFailed;
+
+
+    /**
+     * Создавать в потоке рендера - он запоминается как поток, в котором выполняются команды.
+     */
+    public GLCommandQueue() {
+        this.renderThread = Thread.currentThread();
+        ContextCapabilities capabilities = GLContext.getCapabilities();
+        this.isSyncSupported = capabilities.OpenGL32 || capabilities.GL_ARB_sync;
+
+        this.head = new Node(null, false);
+        this.tail = new AtomicReference<>(head);
+
+        this.collectedDeletes = new ArrayList<>();
+        this.pendingDeletes = new ArrayDeque<>();
+    }
+
+    public boolean isRenderThread() {
+        return Thread.currentThread() == renderThread;
+    }
+
+    /**
+     * Ставит команду в очередь. Можно вызывать из любого потока.
+     */
+    @Override
+    public void execute(Runnable command) {
+        enqueue(new Node(command, false));
+    }
+
+    /**
+     * Ставит команду в очередь и возвращает ее результат в виде CompletableFuture. Можно вызывать из любого потока.
+     */
+    public <T> CompletableFuture<T> submit(Callable<T> command) {
+        CompletableFuture<T> future = new CompletableFuture<>();
+        execute(() -> {
+            if (future.isDone()) {
+                return;
+            }
+            try {
+                future.complete(command.call());
+            } catch (Throwable e) {
+                future.completeExceptionally(e);
+            }
+        });
+        return future;
+    }
+
+    /**
+     * Выполняет команду сразу, если вызвана в потоке рендера, иначе ставит в очередь.
+     */
+    public void executeOrEnqueue(Runnable command) {
+        if (isRenderThread()) {
+            command.run();
+        } else {
+            execute(command);
+        }
+    }
+
+    /**
+     * Ставит в очередь удаление, которое выполнится, когда видеокарта закончит все ранее отправленные команды.
+     * Можно вызывать из любого потока (в том числе из finalize).
+     */
+    public void deleteDeferred(Runnable deleteAction) {
+        enqueue(new Node(deleteAction, true));
+    }
+
+    public void deleteTexture(Texture texture) {
+        deleteDeferred(() -> Texture.deleteTexture(texture));
+    }
+
+    public void deleteFramebuffer(CustomFramebuffer framebuffer) {
+        deleteDeferred(() -> {
+            if (framebuffer.isAlive()) {
+                framebuffer.deleteFramebuffer();
+            }
+        });
+    }
+
+    public void deleteShader(Shader shader) {
+        deleteDeferred(shader::deleteShader);
+    }
+
+    public void deleteProgram(ShaderProgram program) {
+        deleteDeferred(program::deleteProgram);
+    }
+
+    /**
+     * Выполняет команды из очереди, пока не истечет budgetNanos (хотя бы одну команду, если очередь не пуста),
+     * и удаления, fence'ы которых уже сработали. Возвращает количество выполненных команд.
+     * Вызывать в потоке рендера раз в кадр (например, в начале или в конце кадра).
+     */
+    public int drain(long budgetNanos) {
+        checkRenderThread();
+        frameIndex++;
+
+        long startTime = System.nanoTime();
+        int countCommands = 0;
+        Node next;
+        while ((next = head.next) != null) {
+            head = next;
+            Runnable command = next.command;
+            next.command = null;
+
+            if (next.isDelete) {
+                collectedDeletes.add(command);
+            } else {
+                runCommand(command);
+                countExecuted++;
+                countCommands++;
+            }
+
+            if (System.nanoTime() - startTime >= budgetNanos) {
+                break;
+            }
+        }
+
+        if (! collectedDeletes.isEmpty()) {
+            GLSync fence = isSyncSupported ? GL32.glFenceSync(GL32.GL_SYNC_GPU_COMMANDS_COMPLETE, 0) : null;
+            pendingDeletes.add(new PendingDeletes(new ArrayList<>(collectedDeletes), fence, frameIndex));
+            collectedDeletes.clear();
+        }
+        processPendingDeletes(false);
+
+        return countCommands;
+    }
+
+    /**
+     * Выполняет все команды и удаления, дожидаясь видеокарты. Для выгрузки ресурсов или выхода из игры.
+     */
+    public void flush() {
+        checkRenderThread();
+
+        drain(Long.MAX_VALUE);
+        GL11.glFinish();
+        processPendingDeletes(true);
+    }
+
+    public boolean isSyncSupported() {
+        return isSyncSupported;
+    }
+
+    public int getCountPendingDeletes() {
+        int count = collectedDeletes.size();
+        for (PendingDeletes deletes : pendingDeletes) {
+            count += deletes.actions.size();
+        }
+        return count;
+    }
+
+    public long getCountExecuted() {
+        return countExecuted;
+    }
+
+    public long getCountDeleted() {
+        return countDeleted;
+    }
+
+    public long getCountFailed() {
+        return countFailed;
+    }
+
+    public void printStatistics() {
+        System.out.println("GLCommandQueue: executed " + countExecuted + ", deleted " + countDeleted + ", failed " + countFailed +
+                ", pending deletes " + getCountPendingDeletes());
+    }
+
+
+    private void enqueue(Node node) {
+        //писатель сначала занимает место в хвосте, потом связывает предыдущий узел с новым.
+        //между этими шагами поток рендера просто не видит новый узел и заберет его в следующий раз.
+        Node previous = tail.getAndSet(node);
+        previous.next = node;
+    }
+
+    private void processPendingDeletes(boolean isForce) {
+        while (! pendingDeletes.isEmpty()) {
+            PendingDeletes deletes = pendingDeletes.peek();
+
+            if (! isForce) {
+                boolean isReady;
+                if (deletes.fence != null) {
+                    int status = GL32.glClientWaitSync(deletes.fence, 0, 0L);
+                    isReady = status == GL32.GL_ALREADY_SIGNALED || status == GL32.GL_CONDITION_SATISFIED || status == GL32.GL_WAIT_FAILED;
+                } else {
+                    isReady = frameIndex - deletes.frameIndex >= DELETE_LATENCY_FRAMES;
+                }
+                //fence'ы срабатывают по порядку, так что если этот не сработал, то и следующие тоже.
+                if (! isReady) {
+                    break;
+                }
+            }
+
+            pendingDeletes.poll();
+            if (deletes.fence != null) {
+                GL32.glDeleteSync(deletes.fence);
+            }
+            for (Runnable action : deletes.actions) {
+                runCommand(action);
+                countDeleted++;
+            }
+        }
+    }
+
+    private void runCommand(Runnable command) {
+        try {
+            command.run();
+        } catch (Exception e) {
+            countFailed++;
+            System.out.println("Ошибка при выполнении команды OpenGL: " + e);
+            e.printStackTrace();
+        }
+    }
+
+    private void checkRenderThread() {
+        if (! isRenderThread()) {
+            throw new IllegalStateException("Очередь команд OpenGL можно выполнять только в потоке рендера.");
+        }
+    }
+
+
+    private static final class Node {
+        private Runnable command;
+        private final boolean isDelete;
+        private volatile Node next;
+
+        private Node(Runnable command, boolean isDelete) {
+            this.command = command;
+            this.isDelete = isDelete;
+        }
+    }
+
+    private static final class PendingDeletes {
+        private final List<Runnable> actions;
+        private final GLSync fence;
+        private final long frameIndex;
+
+        private PendingDeletes(List<Runnable> actions, GLSync fence, long frameIndex) {
+            this.actions = actions;
+            this.fence = fence;
+            this.frameIndex = frameIndex;
+        }
+    }
+
+}
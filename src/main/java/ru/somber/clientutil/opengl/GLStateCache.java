@@ -0,0 +1,427 @@
+package ru.somber.clientutil.opengl;
+
+import cpw.mods.fml.relauncher.Side;
+import cpw.mods.fml.relauncher.SideOnly;
+import org.lwjgl.opengl.GL11;
+import org.lwjgl.opengl.GL13;
+import org.lwjgl.opengl.GL20;
+import org.lwjgl.opengl.GL30;
+
+import java.util.Arrays;
+
+/**
+ * Теневая копия состояния OpenGL (привязанные фреймбуферы, текстуры по юнитам, шейдерная программа, вьюпорт, флаги glEnable).
+ * Все классы пакета ходят в OpenGL через этот класс.
+ * <p>
+ * Майнкрафт и другие моды меняют состояние OpenGL в обход этого класса, поэтому сам по себе он ничего не отбрасывает:
+ * каждый вызов уходит в OpenGL, а геттеры спрашивают OpenGL (или возвращают -1).
+ * Повторные вызовы с тем же значением отбрасываются только внутри последовательности
+ * {@link #beginSequence()} ... {@link #endSequence()}, в которой нет чужого кода. В начале последовательности кэш сбрасывается.
+ * Работает только в потоке рендера.
+ */
+@SideOnly(Side.CLIENT)
+public final class GLStateCache {
+    private GLStateCache() {}
+
+    /** Значение, означающее, что состояние неизвестно (кэш сброшен). */
+    private static final int UNKNOWN = -1;
+    /** Количество текстурных юнитов, которые отслеживаются кэшем. Для остальных юнитов вызовы идут без проверок. */
+    private static final int MAX_TRACKED_TEXTURE_UNITS = 32;
+    /** Максимальное количество флагов glEnable/glDisable, которые отслеживаются кэшем. */
+    private static final int MAX_TRACKED_CAPABILITIES = 64;
+
+    private static final byte CAPABILITY_UNKNOWN = 0, CAPABILITY_ENABLED = 1, CAPABILITY_DISABLED = 2;
+
+    /** Включено ли отбрасывание лишних вызовов. Если false - все вызовы идут в OpenGL, но состояние продолжает отслеживаться. */
+    private static boolean isEnabled = true;
+    /** Глубина вложенности последовательностей. Состояние отслеживается, только если она больше 0. */
+    private static int sequenceDepth;
+
+    private static int readFramebufferID = UNKNOWN;
+    private static int drawFramebufferID = UNKNOWN;
+    private static int activeTextureUnit = UNKNOWN;
+    /** ID текстур, привязанных к GL_TEXTURE_2D, по номеру текстурного юнита. */
+    private static final int[] boundTextures2D = new int[MAX_TRACKED_TEXTURE_UNITS];
+    /** Флаг GL_TEXTURE_2D у каждого текстурного юнита свой, поэтому он хранится отдельно от остальных флагов. */
+    private static final byte[] texture2DStates = new byte[MAX_TRACKED_TEXTURE_UNITS];
+    private static int shaderProgramID = UNKNOWN;
+    /** [0] - x, [1] - y, [2] - width, [3] - height. */
+    private static final int[] viewport = new int[4];
+
+    /** Отслеживаемые флаги (GL_DEPTH_TEST и т.д.) и их состояние. Поиск линейный, флагов используется немного. */
+    private static final int[] capabilities = new int[MAX_TRACKED_CAPABILITIES];
+    private static final byte[] capabilityStates = new byte[MAX_TRACKED_CAPABILITIES];
+    private static int countCapabilities;
+
+    /** Количество вызовов, которые были переданы в OpenGL. */
+    private static long callsMade;
+    /** Количество вызовов, которые были отброшены, т.к. состояние уже было таким. */
+    private static long callsSkipped;
+    /** Количество привязок фреймбуферов, которые были переданы в OpenGL. */
+    private static long framebufferBindsMade;
+
+    static {
+        invalidate();
+    }
+
+
+    /**
+     * Сбрасывает всё закэшированное состояние. Следующий вызов любого метода гарантированно уйдет в OpenGL.
+     * Вызывать после кода, который меняет состояние в обход кэша.
+     */
+    public static void invalidate() {
+        readFramebufferID = UNKNOWN;
+        drawFramebufferID = UNKNOWN;
+        activeTextureUnit = UNKNOWN;
+        Arrays.fill(boundTextures2D, UNKNOWN);
+        Arrays.fill(texture2DStates, CAPABILITY_UNKNOWN);
+        shaderProgramID = UNKNOWN;
+        Arrays.fill(viewport, UNKNOWN);
+        Arrays.fill(capabilityStates, CAPABILITY_UNKNOWN);
+    }
+
+    /**
+     * Начинает последовательность вызовов, внутри которой состояние меняется только через этот класс.
+     * Внешняя последовательность сбрасывает кэш, вложенные - нет. На каждый вызов должен приходиться {@link #endSequence()} (в finally).
+     * Чужой код (рендер майнкрафта, колбеки пользователя) внутри последовательности вызывать нельзя.
+     */
+    public static void beginSequence() {
+        if (sequenceDepth++ == 0) {
+            invalidate();
+        }
+    }
+
+    public static void endSequence() {
+        if (sequenceDepth == 0) {
+            throw new IllegalStateException("Последовательность не начата.");
+        }
+        sequenceDepth--;
+    }
+
+    public static boolean isInSequence() {
+        return sequenceDepth > 0;
+    }
+
+    public static boolean isEnabled() {
+        return isEnabled;
+    }
+
+    public static void setEnabled(boolean enabled) {
+        isEnabled = enabled;
+    }
+
+
+    /**
+     * target - GL_FRAMEBUFFER, GL_READ_FRAMEBUFFER или GL_DRAW_FRAMEBUFFER.
+     */
+    public static void bindFramebuffer(int target, int framebufferID) {
+        if (sequenceDepth > 0 && isSkipFramebuffer(target, framebufferID)) {
+            return;
+        }
+
+        callsMade++;
+        framebufferBindsMade++;
+        GL30.glBindFramebuffer(target, framebufferID);
+    }
+
+    private static boolean isSkipFramebuffer(int target, int framebufferID) {
+        switch (target) {
+            case GL30.GL_READ_FRAMEBUFFER:
+                if (isSkip(readFramebufferID == framebufferID)) {
+                    return true;
+                }
+                readFramebufferID = framebufferID;
+                return false;
+            case GL30.GL_DRAW_FRAMEBUFFER:
+                if (isSkip(drawFramebufferID == framebufferID)) {
+                    return true;
+                }
+                drawFramebufferID = framebufferID;
+                return false;
+            default:
+                if (isSkip(readFramebufferID == framebufferID && drawFramebufferID == framebufferID)) {
+                    return true;
+                }
+                readFramebufferID = framebufferID;
+                drawFramebufferID = framebufferID;
+                return false;
+        }
+    }
+
+    public static void bindFramebuffer(int framebufferID) {
+        bindFramebuffer(GL30.GL_FRAMEBUFFER, framebufferID);
+    }
+
+    /**
+     * Возвращает ID фреймбуфера, привязанного к GL_DRAW_FRAMEBUFFER, или -1, если он неизвестен (в том числе вне последовательности).
+     */
+    public static int getDrawFramebufferID() {
+        return (sequenceDepth > 0) ? drawFramebufferID : UNKNOWN;
+    }
+
+    /**
+     * Возвращает ID фреймбуфера, привязанного к GL_READ_FRAMEBUFFER, или -1, если он неизвестен (в том числе вне последовательности).
+     */
+    public static int getReadFramebufferID() {
+        return (sequenceDepth > 0) ? readFramebufferID : UNKNOWN;
+    }
+
+    /**
+     * Сюда передается номер юнита (0, 1, 2...), а не GL_TEXTURE0 + N.
+     */
+    public static void activeTexture(int textureUnit) {
+        if (sequenceDepth > 0) {
+            if (isSkip(activeTextureUnit == textureUnit)) {
+                return;
+            }
+            activeTextureUnit = textureUnit;
+        }
+
+        callsMade++;
+        GL13.glActiveTexture(GL13.GL_TEXTURE0 + textureUnit);
+    }
+
+    /**
+     * Возвращает номер активного текстурного юнита. Если он неизвестен, то запрашивается у OpenGL
+     * (внутри последовательности - один раз, дальше он запоминается).
+     */
+    public static int getActiveTextureUnit() {
+        if (sequenceDepth == 0) {
+            return GL11.glGetInteger(GL13.GL_ACTIVE_TEXTURE) - GL13.GL_TEXTURE0;
+        }
+        if (activeTextureUnit == UNKNOWN) {
+            activeTextureUnit = GL11.glGetInteger(GL13.GL_ACTIVE_TEXTURE) - GL13.GL_TEXTURE0;
+        }
+        return activeTextureUnit;
+    }
+
+    /**
+     * Привязывает текстуру к GL_TEXTURE_2D текущего активного юнита.
+     * Если внутри последовательности активный юнит неизвестен, то он один раз запрашивается у OpenGL.
+     */
+    public static void bindTexture(int textureID) {
+        if (sequenceDepth > 0) {
+            int unit = getActiveTextureUnit();
+            if (unit < MAX_TRACKED_TEXTURE_UNITS) {
+                if (isSkip(boundTextures2D[unit] == textureID)) {
+                    return;
+                }
+                boundTextures2D[unit] = textureID;
+            }
+        }
+
+        callsMade++;
+        GL11.glBindTexture(GL11.GL_TEXTURE_2D, textureID);
+    }
+
+    /**
+     * Привязывает текстуру к GL_TEXTURE_2D указанного юнита. Активным юнитом после вызова становится textureUnit.
+     */
+    public static void bindTexture(int textureUnit, int textureID) {
+        activeTexture(textureUnit);
+        bindTexture(textureID);
+    }
+
+    public static void useProgram(int programID) {
+        if (sequenceDepth > 0) {
+            if (isSkip(shaderProgramID == programID)) {
+                return;
+            }
+            shaderProgramID = programID;
+        }
+
+        callsMade++;
+        GL20.glUseProgram(programID);
+    }
+
+    /**
+     * Возвращает ID текущей шейдерной программы или -1, если она неизвестна (в том числе вне последовательности).
+     */
+    public static int getProgramID() {
+        return (sequenceDepth > 0) ? shaderProgramID : UNKNOWN;
+    }
+
+    public static void viewport(int x, int y, int width, int height) {
+        if (sequenceDepth > 0) {
+            if (isSkip(viewport[0] == x && viewport[1] == y && viewport[2] == width && viewport[3] == height)) {
+                return;
+            }
+            viewport[0] = x;
+            viewport[1] = y;
+            viewport[2] = width;
+            viewport[3] = height;
+        }
+
+        callsMade++;
+        GL11.glViewport(x, y, width, height);
+    }
+
+    public static void enable(int capability) {
+        setCapability(capability, true);
+    }
+
+    public static void disable(int capability) {
+        setCapability(capability, false);
+    }
+
+    /**
+     * GL_TEXTURE_2D включается и выключается у текущего активного юнита.
+     */
+    public static void setCapability(int capability, boolean enable) {
+        if (sequenceDepth > 0 && isSkipCapability(capability, enable ? CAPABILITY_ENABLED : CAPABILITY_DISABLED)) {
+            return;
+        }
+
+        callsMade++;
+        if (enable) {
+            GL11.glEnable(capability);
+        } else {
+            GL11.glDisable(capability);
+        }
+    }
+
+    private static boolean isSkipCapability(int capability, byte newState) {
+        if (capability == GL11.GL_TEXTURE_2D) {
+            int unit = getActiveTextureUnit();
+            if (unit < MAX_TRACKED_TEXTURE_UNITS) {
+                if (isSkip(texture2DStates[unit] == newState)) {
+                    return true;
+                }
+                texture2DStates[unit] = newState;
+            }
+        } else {
+            int index = getCapabilityIndex(capability);
+            if (index >= 0) {
+                if (isSkip(capabilityStates[index] == newState)) {
+                    return true;
+                }
+                capabilityStates[index] = newState;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Возвращает состояние флага. Если кэш его не знает (или вызов вне последовательности),
+     * то состояние запрашивается у OpenGL (это медленно) и внутри последовательности запоминается.
+     */
+    public static boolean isCapabilityEnabled(int capability) {
+        if (sequenceDepth == 0) {
+            return GL11.glIsEnabled(capability);
+        }
+        if (capability == GL11.GL_TEXTURE_2D) {
+            int unit = getActiveTextureUnit();
+            if (unit < MAX_TRACKED_TEXTURE_UNITS && texture2DStates[unit] != CAPABILITY_UNKNOWN) {
+                return texture2DStates[unit] == CAPABILITY_ENABLED;
+            }
+            boolean enabled = GL11.glIsEnabled(capability);
+            if (unit < MAX_TRACKED_TEXTURE_UNITS) {
+                texture2DStates[unit] = enabled ? CAPABILITY_ENABLED : CAPABILITY_DISABLED;
+            }
+            return enabled;
+        }
+
+        int index = getCapabilityIndex(capability);
+        if (index >= 0 && capabilityStates[index] != CAPABILITY_UNKNOWN) {
+            return capabilityStates[index] == CAPABILITY_ENABLED;
+        }
+
+        boolean enabled = GL11.glIsEnabled(capability);
+        if (index >= 0) {
+            capabilityStates[index] = enabled ? CAPABILITY_ENABLED : CAPABILITY_DISABLED;
+        }
+        return enabled;
+    }
+
+    /**
+     * Помечает флаг как неизвестный. Нужно после glPopAttrib и подобных вызовов, которые меняют флаг в обход кэша.
+     */
+    public static void invalidateCapability(int capability) {
+        if (capability == GL11.GL_TEXTURE_2D) {
+            Arrays.fill(texture2DStates, CAPABILITY_UNKNOWN);
+            return;
+        }
+
+        int index = getCapabilityIndex(capability);
+        if (index >= 0) {
+            capabilityStates[index] = CAPABILITY_UNKNOWN;
+        }
+    }
+
+
+    /**
+     * Вызывать при удалении текстуры, чтобы ее ID не остался в кэше (OpenGL может выдать этот ID новой текстуре).
+     */
+    public static void onTextureDeleted(int textureID) {
+        for (int i = 0; i < boundTextures2D.length; i++) {
+            if (boundTextures2D[i] == textureID) {
+                boundTextures2D[i] = UNKNOWN;
+            }
+        }
+    }
+
+    public static void onFramebufferDeleted(int framebufferID) {
+        if (readFramebufferID == framebufferID) {
+            readFramebufferID = UNKNOWN;
+        }
+        if (drawFramebufferID == framebufferID) {
+            drawFramebufferID = UNKNOWN;
+        }
+    }
+
+    public static void onProgramDeleted(int programID) {
+        if (shaderProgramID == programID) {
+            shaderProgramID = UNKNOWN;
+        }
+    }
+
+
+    public static long getCallsMade() {
+        return callsMade;
+    }
+
+    public static long getCallsSkipped() {
+        return callsSkipped;
+    }
+
+    public static long getFramebufferBindsMade() {
+        return framebufferBindsMade;
+    }
+
+    public static void resetCounters() {
+        callsMade = 0;
+        callsSkipped = 0;
+        framebufferBindsMade = 0;
+    }
+
+
+    /**
+     * Решает, отбросить ли вызов, и считает отброшенные вызовы.
+     */
+    private static boolean isSkip(boolean isSameState) {
+        if (isSameState && isEnabled) {
+            callsSkipped++;
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Возвращает индекс флага в массиве отслеживаемых флагов. Новые флаги добавляются, пока есть место, иначе возвращается -1.
+     */
+    private static int getCapabilityIndex(int capability) {
+        for (int i = 0; i < countCapabilities; i++) {
+            if (capabilities[i] == capability) {
+                return i;
+            }
+        }
+
+        if (countCapabilities < MAX_TRACKED_CAPABILITIES) {
+            capabilities[countCapabilities] = capability;
+            capabilityStates[countCapabilities] = CAPABILITY_UNKNOWN;
+            return countCapabilities++;
+        }
+        return -1;
+    }
+
+}
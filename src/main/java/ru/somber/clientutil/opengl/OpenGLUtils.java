@@ -3,95 +3,84 @@ package ru.somber.clientutil.opengl;
 import cpw.mods.fml.relauncher.Side;
 import cpw.mods.fml.relauncher.SideOnly;
 import net.minecraft.client.Minecraft;
-import net.minecraft.client.renderer.Tessellator;
+import net.minecraft.client.resources.IReloadableResourceManager;
+import net.minecraft.client.resources.IResourceManager;
 import net.minecraft.util.ResourceLocation;
 import org.lwjgl.opengl.GL11;
-import org.lwjgl.opengl.GL20;
 import ru.somber.clientutil.opengl.texture.Texture;
 
 import java.io.IOException;
 import java.nio.FloatBuffer;
-import java.util.Scanner;
+import java.util.Map;
 
 @SideOnly(Side.CLIENT)
 public final class OpenGLUtils {
     private OpenGLUtils() {}
 
+    /** Общий препроцессор для {@link #loadShaderCode(ResourceLocation)}. Его кэш сбрасывается при перезагрузке ресурсов. */
+    private static final ShaderPreprocessor shaderPreprocessor = new ShaderPreprocessor();
+    private static boolean isReloadListenerRegistered;
+
+    /**
+     * Загружает код шейдера с подстановкой #include (см. {@link ShaderPreprocessor}).
+     */
     public static String loadShaderCode(ResourceLocation rs) throws IOException {
-        try (Scanner reader = new Scanner(Minecraft.getMinecraft().getResourceManager().getResource(rs).getInputStream())) {
-            StringBuilder sb = new StringBuilder();
-            while (reader.hasNextLine()) {
-                sb.append(reader.nextLine()).append("\n");
+        return getShaderPreprocessor().process(rs).getCode();
+    }
+
+    /**
+     * Загружает код шейдера с подстановкой #include и define'ами для перестановки.
+     */
+    public static String loadShaderCode(ResourceLocation rs, Map<String, String> defines) throws IOException {
+        return getShaderPreprocessor().process(rs, defines).getCode();
+    }
+
+    /**
+     * Общий препроцессор. При первом обращении подписывает его на перезагрузку ресурсов (смену ресурспака),
+     * чтобы после нее шейдеры читались заново, а не брались из кэша.
+     */
+    public static ShaderPreprocessor getShaderPreprocessor() {
+        if (! isReloadListenerRegistered) {
+            IResourceManager resourceManager = Minecraft.getMinecraft().getResourceManager();
+            if (resourceManager instanceof IReloadableResourceManager) {
+                ((IReloadableResourceManager) resourceManager).registerReloadListener(manager -> shaderPreprocessor.clearCache());
+                isReloadListenerRegistered = true;
             }
-            return sb.toString();
         }
+        return shaderPreprocessor;
     }
 
     public static void useShaderProgram(ShaderProgram shaderProgram) {
-        GL20.glUseProgram(shaderProgram.getShaderProgramID());
+        GLStateCache.useProgram(shaderProgram.getShaderProgramID());
     }
 
     public static void useNoneShaderProgram() {
-        GL20.glUseProgram(0);
+        GLStateCache.useProgram(0);
     }
 
+    /**
+     * Заливает цветом весь текущий фреймбуфер (см. {@link FullscreenPass#drawColor(float, float, float, float)}).
+     */
     public static void drawColorOverFramebuffer(float r, float g, float b, float a) {
-        GL11.glDisable(GL11.GL_TEXTURE_2D);
-        GL11.glDisable(GL11.GL_DEPTH_TEST);
-        GL11.glDisable(GL11.GL_LIGHTING);
-
-        GL11.glPushMatrix();
-
-        GL11.glMatrixMode(GL11.GL_PROJECTION);
-        GL11.glLoadIdentity();
-        GL11.glMatrixMode(GL11.GL_MODELVIEW);
-        GL11.glLoadIdentity();
-
-        Tessellator tessellator = Tessellator.instance;
-        tessellator.startDrawingQuads();
-        tessellator.setColorRGBA_F(r, g, b, a);
-        tessellator.addVertex(-1, -1, 0.2F);
-        tessellator.addVertex(1, -1, 0.2F);
-        tessellator.addVertex(1, 1, 0.2F);
-        tessellator.addVertex(-1, 1, 0.2F);
-        tessellator.draw();
-
-        GL11.glPopMatrix();
-
-        GL11.glEnable(GL11.GL_TEXTURE_2D);
-        GL11.glEnable(GL11.GL_DEPTH_TEST);
-        GL11.glEnable(GL11.GL_LIGHTING);
+        GLStateCache.disable(GL11.GL_DEPTH_TEST);
+
+        FullscreenPass.drawColor(r, g, b, a);
+
+        GLStateCache.enable(GL11.GL_TEXTURE_2D);
+        GLStateCache.enable(GL11.GL_DEPTH_TEST);
+        GLStateCache.enable(GL11.GL_LIGHTING);
     }
 
+    /**
+     * Рисует текстуру на весь текущий фреймбуфер (см. {@link FullscreenPass#drawTexture(int)}).
+     */
     public static void drawTextureOverFramebuffer(int textureID) {
-        GL11.glEnable(GL11.GL_TEXTURE_2D);
-        GL11.glDisable(GL11.GL_DEPTH_TEST);
-
-        GL11.glPushAttrib(GL11.GL_LIGHTING_BIT);
-        GL11.glDisable(GL11.GL_LIGHTING);
-
-        GL11.glPushMatrix();
-
-        GL11.glMatrixMode(GL11.GL_PROJECTION);
-        GL11.glLoadIdentity();
-        GL11.glMatrixMode(GL11.GL_MODELVIEW);
-        GL11.glLoadIdentity();
-
-        GL11.glBindTexture(GL11.GL_TEXTURE_2D, textureID);
-        Tessellator tessellator = Tessellator.instance;
-        tessellator.startDrawingQuads();
-        tessellator.setColorRGBA_F(1, 1, 1, 1);
-        tessellator.addVertexWithUV(-1, -1, 0.2F, 0, 0);
-        tessellator.addVertexWithUV(1, -1, 0.2F, 1, 0);
-        tessellator.addVertexWithUV(1, 1, 0.2F, 1, 1);
-        tessellator.addVertexWithUV(-1, 1, 0.2F, 0, 1);
-        tessellator.draw();
-        GL11.glBindTexture(GL11.GL_TEXTURE_2D, 0);
-
-        GL11.glPopMatrix();
-
-        GL11.glPopAttrib();
-        GL11.glEnable(GL11.GL_DEPTH_TEST);
+        GLStateCache.enable(GL11.GL_TEXTURE_2D);
+        GLStateCache.disable(GL11.GL_DEPTH_TEST);
+
+        FullscreenPass.drawTexture(textureID);
+
+        GLStateCache.enable(GL11.GL_DEPTH_TEST);
     }
 
     public static void drawColorInTextureAttachSlotFramebuffer(CustomFramebuffer customFramebuffer, int attachSlot, float r, float g, float b, float a) {
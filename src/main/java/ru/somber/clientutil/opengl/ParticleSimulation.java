@@ -0,0 +1,452 @@
+package ru.somber.clientutil.opengl;
+
+import cpw.mods.fml.relauncher.Side;
+import cpw.mods.fml.relauncher.SideOnly;
+import ru.somber.commonutil.SomberUtils;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Симуляция частиц для {@link SpriteInstanceRenderer}.
+ * <p>
+ * Частицы хранятся не объектами, а в массивах примитивов по полям (позиция, скорость, возраст...),
+ * размер массивов задается один раз, поэтому ни спавн, ни обновление, ни отрисовка не выделяют память.
+ * Массивы - кольцо: новые частицы добавляются в конец, а места умерших каждый тик освобождаются сдвигом живых частиц
+ * с сохранением их порядка. Если кольцо заполнено живыми частицами, новая частица заменяет самую старую.
+ * <p>
+ * {@link #tick()} (раз в игровой тик) и {@link #writeInstances(SpriteInstanceRenderer, float)} (раз в кадр) обрабатывают частицы
+ * кусками по {@link #CHUNK_SIZE} параллельно в ForkJoinPool. Интерполированные позиции пишутся сразу в буфер экземпляров рендера.
+ * Каждая частица считается независимо, а место частицы в буфере определяется ее порядком в кольце,
+ * поэтому результат не зависит от количества потоков.
+ * <p>
+ * Все методы вызываются из одного потока (обычно потока рендера), параллельность только внутри вызова.
+ */
+@SideOnly(Side.CLIENT)
+public class ParticleSimulation {
+    /** Количество частиц в одной параллельной задаче. Не зависит от количества потоков, чтобы разбиение было одинаковым. */
+    public static final int CHUNK_SIZE = 4096;
+
+    private static final int PHASE_STEP = 0;
+    private static final int PHASE_COUNT = 1;
+    private static final int PHASE_WRITE = 2;
+
+    private static final int STRIDE = SpriteInstanceRenderer.INSTANCE_FORMAT.getStride();
+    private static final int POSITION_OFFSET = SpriteInstanceRenderer.INSTANCE_FORMAT.getAttributes().get(0).getOffset();
+    private static final int SIZE_OFFSET = SpriteInstanceRenderer.INSTANCE_FORMAT.getAttributes().get(1).getOffset();
+    private static final int COLOR_OFFSET = SpriteInstanceRenderer.INSTANCE_FORMAT.getAttributes().get(2).getOffset();
+    private static final int FRAME_OFFSET = SpriteInstanceRenderer.INSTANCE_FORMAT.getAttributes().get(3).getOffset();
+
+    private final int capacity;
+    /** null - все считается в вызывающем потоке. */
+    private final ForkJoinPool pool;
+
+    private final float[] prevX, prevY, prevZ;
+    private final float[] x, y, z;
+    private final float[] velocityX, velocityY, velocityZ;
+    private final float[] size;
+    /** Цвет, упакованный как 0xRRGGBBAA. */
+    private final int[] color;
+    /** Возраст и время жизни в тиках. */
+    private final int[] age, lifetime;
+    private final int[] firstFrame, countFrames;
+
+    /** Слот первой (самой старой) частицы кольца. */
+    private int head;
+    /** Количество частиц в кольце (после тика - только живые). */
+    private int count;
+
+    private float gravity;
+    private float drag;
+
+    private final ChunkTask[] chunkTasks;
+    private final RootTask rootTask;
+    private int phase;
+    private int countChunks;
+    /** Количество живых частиц в каждом куске и номер первой из них в буфере экземпляров. */
+    private final int[] chunkAlive, chunkOffsets;
+    private ByteBuffer writeBuffer;
+    private int writeBase;
+    private float partialTicks;
+
+    private long countTicks;
+    private long countOverwritten;
+    private long tickNanos;
+    private long writeNanos;
+    private long countWrittenParticles;
+
+
+    public ParticleSimulation(int capacity, ForkJoinPool pool) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("Вместимость должна быть положительной.");
+        }
+
+        this.capacity = capacity;
+        this.pool = pool;
+
+        this.prevX = new float[capacity];
+        this.prevY = new float[capacity];
+        this.prevZ = new float[capacity];
+        this.x = new float[capacity];
+        this.y = new float[capacity];
+        this.z = new float[capacity];
+        this.velocityX = new float[capacity];
+        this.velocityY = new float[capacity];
+        this.velocityZ = new float[capacity];
+        this.size = new float[capacity];
+        this.color = new int[capacity];
+        this.age = new int[capacity];
+        this.lifetime = new int[capacity];
+        this.firstFrame = new int[capacity];
+        this.countFrames = new int[capacity];
+
+        this.drag = 1.0F;
+
+        int maxChunks = (capacity + CHUNK_SIZE - 1) / CHUNK_SIZE;
+        this.chunkAlive = new int[maxChunks];
+        this.chunkOffsets = new int[maxChunks];
+        this.chunkTasks = new ChunkTask[maxChunks];
+        for (int i = 0; i < maxChunks; i++) {
+            chunkTasks[i] = new ChunkTask(i);
+        }
+        this.rootTask = new RootTask();
+    }
+
+    /**
+     * Считает в общем ForkJoinPool.
+     */
+    public ParticleSimulation(int capacity) {
+        this(capacity, ForkJoinPool.commonPool());
+    }
+
+    /**
+     * Ускорение, добавляемое к скорости по Y каждый тик (для падения - отрицательное).
+     */
+    public void setGravity(float gravity) {
+        this.gravity = gravity;
+    }
+
+    /**
+     * Множитель скорости каждый тик (1 - без сопротивления).
+     */
+    public void setDrag(float drag) {
+        this.drag = drag;
+    }
+
+    /**
+     * Добавляет частицу. Цвет - от 0 до 255, lifetime - в тиках,
+     * кадры анимации firstFrame ... firstFrame + countFrames - 1 равномерно сменяются за время жизни.
+     */
+    public void spawn(float posX, float posY, float posZ, float motionX, float motionY, float motionZ,
+                      float particleSize, int r, int g, int b, int a, int particleLifetime, int particleFirstFrame, int particleCountFrames) {
+        int slot;
+        if (count == capacity) {
+            slot = head;
+            head = nextSlot(head);
+            countOverwritten++;
+        } else {
+            slot = getSlot(count);
+            count++;
+        }
+
+        prevX[slot] = x[slot] = posX;
+        prevY[slot] = y[slot] = posY;
+        prevZ[slot] = z[slot] = posZ;
+        velocityX[slot] = motionX;
+        velocityY[slot] = motionY;
+        velocityZ[slot] = motionZ;
+        size[slot] = particleSize;
+        color[slot] = (r & 0xFF) << 24 | (g & 0xFF) << 16 | (b & 0xFF) << 8 | (a & 0xFF);
+        age[slot] = 0;
+        lifetime[slot] = Math.max(1, particleLifetime);
+        firstFrame[slot] = particleFirstFrame;
+        countFrames[slot] = Math.max(1, particleCountFrames);
+    }
+
+    /**
+     * Игровой тик: сдвигает все частицы и освобождает места умерших.
+     */
+    public void tick() {
+        long startTime = System.nanoTime();
+
+        runPhase(PHASE_STEP);
+        compact();
+
+        countTicks++;
+        tickNanos += System.nanoTime() - startTime;
+    }
+
+    /**
+     * Начинает пачку в renderer и пишет в нее живые частицы, интерполированные между тиками по partialTicks.
+     * После этого пачку рисует {@link SpriteInstanceRenderer#draw}. Возвращает количество записанных частиц.
+     */
+    public int writeInstances(SpriteInstanceRenderer renderer, float partialTicks) {
+        int countAlive = countAlive();
+        if (countAlive == 0) {
+            return 0;
+        }
+
+        renderer.begin(countAlive);
+        VertexWriter writer = renderer.getWriter();
+        ByteBuffer buffer = writer.getBuffer();
+        writeAlive(buffer, buffer.position(), partialTicks);
+        writer.skipVertices(countAlive);
+        return countAlive;
+    }
+
+    /**
+     * То же, но в произвольный буфер (в формате {@link SpriteInstanceRenderer#INSTANCE_FORMAT}, с порядком байт буфера) начиная с offset байт.
+     * Буфер должен вмещать {@link #getCountParticles()} частиц.
+     */
+    public int writeInstances(ByteBuffer buffer, int offset, float partialTicks) {
+        countAlive();
+        return writeAlive(buffer, offset, partialTicks);
+    }
+
+    /**
+     * Количество частиц в кольце. Частицы, умершие между тиками, не считаются только после следующего тика.
+     */
+    public int getCountParticles() {
+        return count;
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * Удаляет все частицы.
+     */
+    public void clear() {
+        head = 0;
+        count = 0;
+    }
+
+    public long getCountOverwritten() {
+        return countOverwritten;
+    }
+
+    public void printStatistics() {
+        double tickMillis = countTicks == 0 ? 0 : tickNanos / 1_000_000.0 / countTicks;
+        double particlesPerMillis = writeNanos == 0 ? 0 : countWrittenParticles / (writeNanos / 1_000_000.0);
+        System.out.println("ParticleSimulation: particles " + count + "/" + capacity + ", threads " + (pool == null ? 1 : pool.getParallelism()) +
+                ", tick " + String.format("%.3f", tickMillis) + " ms, write " + String.format("%.0f", particlesPerMillis) + " particles/ms" +
+                ", overwritten " + countOverwritten);
+    }
+
+
+    private int countAlive() {
+        runPhase(PHASE_COUNT);
+
+        int countAlive = 0;
+        for (int i = 0; i < countChunks; i++) {
+            chunkOffsets[i] = countAlive;
+            countAlive += chunkAlive[i];
+        }
+        return countAlive;
+    }
+
+    /**
+     * Убирает умерших частиц из кольца, сдвигая живые к началу с сохранением порядка.
+     * Куски без умерших частиц (по количествам из {@link #countAlive()}) в начале кольца не трогаются.
+     * Сдвиг последовательный, поэтому порядок частиц, а значит и результат, не зависит от количества потоков.
+     */
+    private void compact() {
+        int countAlive = countAlive();
+        if (countAlive == count) {
+            return;
+        }
+
+        int firstChunk = 0;
+        while (chunkAlive[firstChunk] == Math.min(CHUNK_SIZE, count - firstChunk * CHUNK_SIZE)) {
+            firstChunk++;
+        }
+
+        int write = firstChunk * CHUNK_SIZE;
+        int writeSlot = getSlot(write);
+        int readSlot = writeSlot;
+        for (int i = write; i < count; i++) {
+            if (age[readSlot] < lifetime[readSlot]) {
+                if (readSlot != writeSlot) {
+                    moveParticle(readSlot, writeSlot);
+                }
+                writeSlot = nextSlot(writeSlot);
+            }
+            readSlot = nextSlot(readSlot);
+        }
+        count = countAlive;
+    }
+
+    private void moveParticle(int from, int to) {
+        prevX[to] = prevX[from];
+        prevY[to] = prevY[from];
+        prevZ[to] = prevZ[from];
+        x[to] = x[from];
+        y[to] = y[from];
+        z[to] = z[from];
+        velocityX[to] = velocityX[from];
+        velocityY[to] = velocityY[from];
+        velocityZ[to] = velocityZ[from];
+        size[to] = size[from];
+        color[to] = color[from];
+        age[to] = age[from];
+        lifetime[to] = lifetime[from];
+        firstFrame[to] = firstFrame[from];
+        countFrames[to] = countFrames[from];
+    }
+
+    /**
+     * Пишет живые частицы по смещениям из {@link #countAlive()}.
+     */
+    private int writeAlive(ByteBuffer buffer, int offset, float partialTicks) {
+        long startTime = System.nanoTime();
+
+        this.writeBuffer = buffer;
+        this.writeBase = offset;
+        this.partialTicks = partialTicks;
+        runPhase(PHASE_WRITE);
+        this.writeBuffer = null;
+
+        int countWritten = countChunks == 0 ? 0 : chunkOffsets[countChunks - 1] + chunkAlive[countChunks - 1];
+        countWrittenParticles += countWritten;
+        writeNanos += System.nanoTime() - startTime;
+        return countWritten;
+    }
+
+    private void runPhase(int phase) {
+        this.phase = phase;
+        this.countChunks = (count + CHUNK_SIZE - 1) / CHUNK_SIZE;
+
+        if (pool == null || countChunks <= 1) {
+            for (int i = 0; i < countChunks; i++) {
+                runChunk(i);
+            }
+        } else {
+            rootTask.reinitialize();
+            pool.invoke(rootTask);
+        }
+    }
+
+    private void runChunk(int chunk) {
+        int start = chunk * CHUNK_SIZE;
+        int end = Math.min(count, start + CHUNK_SIZE);
+        int slot = getSlot(start);
+
+        switch (phase) {
+            case PHASE_STEP:
+                stepChunk(slot, end - start);
+                break;
+            case PHASE_COUNT:
+                chunkAlive[chunk] = countChunk(slot, end - start);
+                break;
+            case PHASE_WRITE:
+                writeChunk(slot, end - start, chunkOffsets[chunk]);
+                break;
+        }
+    }
+
+    private void stepChunk(int slot, int length) {
+        for (int i = 0; i < length; i++) {
+            if (age[slot] < lifetime[slot]) {
+                prevX[slot] = x[slot];
+                prevY[slot] = y[slot];
+                prevZ[slot] = z[slot];
+
+                velocityY[slot] += gravity;
+                x[slot] += velocityX[slot];
+                y[slot] += velocityY[slot];
+                z[slot] += velocityZ[slot];
+                velocityX[slot] *= drag;
+                velocityY[slot] *= drag;
+                velocityZ[slot] *= drag;
+
+                age[slot]++;
+            }
+            slot = nextSlot(slot);
+        }
+    }
+
+    private int countChunk(int slot, int length) {
+        int alive = 0;
+        for (int i = 0; i < length; i++) {
+            if (age[slot] < lifetime[slot]) {
+                alive++;
+            }
+            slot = nextSlot(slot);
+        }
+        return alive;
+    }
+
+    private void writeChunk(int slot, int length, int firstInstance) {
+        ByteBuffer buffer = writeBuffer;
+        float factor = partialTicks;
+        int index = writeBase + firstInstance * STRIDE;
+
+        for (int i = 0; i < length; i++) {
+            if (age[slot] < lifetime[slot]) {
+                buffer.putFloat(index + POSITION_OFFSET, SomberUtils.interpolateBetween(prevX[slot], x[slot], factor));
+                buffer.putFloat(index + POSITION_OFFSET + 4, SomberUtils.interpolateBetween(prevY[slot], y[slot], factor));
+                buffer.putFloat(index + POSITION_OFFSET + 8, SomberUtils.interpolateBetween(prevZ[slot], z[slot], factor));
+                buffer.putFloat(index + SIZE_OFFSET, size[slot]);
+
+                int packedColor = color[slot];
+                buffer.put(index + COLOR_OFFSET, (byte) (packedColor >>> 24));
+                buffer.put(index + COLOR_OFFSET + 1, (byte) (packedColor >>> 16));
+                buffer.put(index + COLOR_OFFSET + 2, (byte) (packedColor >>> 8));
+                buffer.put(index + COLOR_OFFSET + 3, (byte) packedColor);
+
+                int frame = (int) ((age[slot] + factor) * countFrames[slot] / lifetime[slot]);
+                buffer.putFloat(index + FRAME_OFFSET, firstFrame[slot] + Math.min(frame, countFrames[slot] - 1));
+
+                index += STRIDE;
+            }
+            slot = nextSlot(slot);
+        }
+    }
+
+    /**
+     * Слот частицы с номером index от начала кольца.
+     */
+    private int getSlot(int index) {
+        int slot = head + index;
+        return slot >= capacity ? slot - capacity : slot;
+    }
+
+    private int nextSlot(int slot) {
+        slot++;
+        return slot == capacity ? 0 : slot;
+    }
+
+
+    /**
+     * Запускает задачи всех кусков текущей фазы. Задачи создаются один раз и переиспользуются.
+     */
+    private final class RootTask extends RecursiveAction {
+        @Override
+        protected void compute() {
+            for (int i = 1; i < countChunks; i++) {
+                chunkTasks[i].reinitialize();
+                chunkTasks[i].fork();
+            }
+            runChunk(0);
+            for (int i = countChunks - 1; i >= 1; i--) {
+                chunkTasks[i].join();
+            }
+        }
+    }
+
+    private final class ChunkTask extends RecursiveAction {
+        private final int chunk;
+
+        private ChunkTask(int chunk) {
+            this.chunk = chunk;
+        }
+
+        @Override
+        protected void compute() {
+            runChunk(chunk);
+        }
+    }
+
+}
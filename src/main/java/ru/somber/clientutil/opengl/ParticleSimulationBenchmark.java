@@ -0,0 +1,90 @@
+package ru.somber.clientutil.opengl;
+
+import cpw.mods.fml.relauncher.Side;
+import cpw.mods.fml.relauncher.SideOnly;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Бенчмарк {@link ParticleSimulation} без контекста OpenGL: тик и запись в буфер экземпляров
+ * на ForkJoinPool'ах из 1 ... N потоков (N - аргумент или количество ядер).
+ * Печатает частицы в миллисекунду для каждого количества потоков и проверяет,
+ * что записанный буфер совпадает с однопоточным.
+ */
+@SideOnly(Side.CLIENT)
+public final class ParticleSimulationBenchmark {
+    private static final int WARMUP_TICKS = 100;
+    private static final int MEASURED_TICKS = 200;
+
+    private ParticleSimulationBenchmark() {}
+
+    public static void main(String[] args) {
+        int maxThreads = args.length > 0 ? Integer.parseInt(args[0]) : Runtime.getRuntime().availableProcessors();
+        int capacity = args.length > 1 ? Integer.parseInt(args[1]) : 1_000_000;
+
+        ByteBuffer buffer = ByteBuffer.allocateDirect(capacity * SpriteInstanceRenderer.INSTANCE_FORMAT.getStride()).order(ByteOrder.nativeOrder());
+        ByteBuffer reference = null;
+
+        for (int threads = 1; threads <= maxThreads; threads++) {
+            ForkJoinPool pool = new ForkJoinPool(threads);
+            ParticleSimulation simulation = new ParticleSimulation(capacity, pool);
+            simulation.setGravity(-0.04F);
+            simulation.setDrag(0.98F);
+            Random random = new Random(42);
+
+            //каждый тик спавнится столько, чтобы кольцо держалось почти полным.
+            int spawnPerTick = capacity / 60;
+            for (int i = 0; i < WARMUP_TICKS; i++) {
+                spawn(simulation, random, spawnPerTick);
+                simulation.tick();
+                simulation.writeInstances(buffer, 0, 0.5F);
+            }
+
+            long tickNanos = 0;
+            long writeNanos = 0;
+            long tickedParticles = 0;
+            long writtenParticles = 0;
+            for (int i = 0; i < MEASURED_TICKS; i++) {
+                spawn(simulation, random, spawnPerTick);
+
+                tickedParticles += simulation.getCountParticles();
+                long startTime = System.nanoTime();
+                simulation.tick();
+                tickNanos += System.nanoTime() - startTime;
+
+                startTime = System.nanoTime();
+                writtenParticles += simulation.writeInstances(buffer, 0, 0.5F);
+                writeNanos += System.nanoTime() - startTime;
+            }
+
+            int countWritten = simulation.writeInstances(buffer, 0, 0.5F);
+            pool.shutdown();
+            ByteBuffer result = buffer.duplicate();
+            result.clear().limit(countWritten * SpriteInstanceRenderer.INSTANCE_FORMAT.getStride());
+            String check;
+            if (reference == null) {
+                reference = ByteBuffer.allocateDirect(result.remaining());
+                reference.put(result).flip();
+                check = "reference";
+            } else {
+                check = reference.equals(result) ? "same as 1 thread" : "DIFFERS from 1 thread";
+            }
+
+            System.out.println(String.format("threads %2d: tick %8.0f particles/ms, write %8.0f particles/ms, %s",
+                    threads, tickedParticles / (tickNanos / 1_000_000.0), writtenParticles / (writeNanos / 1_000_000.0), check));
+        }
+    }
+
+
+    private static void spawn(ParticleSimulation simulation, Random random, int count) {
+        for (int i = 0; i < count; i++) {
+            simulation.spawn(random.nextFloat() * 64, random.nextFloat() * 64, random.nextFloat() * 64,
+                    (random.nextFloat() - 0.5F) * 0.2F, random.nextFloat() * 0.2F, (random.nextFloat() - 0.5F) * 0.2F,
+                    0.25F, 255, 160, 64, 255, 20 + random.nextInt(40), 0, 16);
+        }
+    }
+
+}
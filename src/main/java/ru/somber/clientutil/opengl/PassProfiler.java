@@ -0,0 +1,390 @@
+package ru.somber.clientutil.opengl;
+
+import cpw.mods.fml.relauncher.Side;
+import cpw.mods.fml.relauncher.SideOnly;
+import net.minecraft.client.Minecraft;
+import net.minecraft.client.gui.FontRenderer;
+import org.lwjgl.opengl.ContextCapabilities;
+import org.lwjgl.opengl.GL15;
+import org.lwjgl.opengl.GL33;
+import org.lwjgl.opengl.GLContext;
+
+import java.util.*;
+
+/**
+ * Замер времени проходов рендера (bind / draw / unbind) на видеокарте и процессоре.
+ * <p>
+ * Каждый проход оборачивается в {@link #begin(String)} / {@link #end()}. Время на видеокарте меряется запросом GL_TIME_ELAPSED из пула,
+ * а результат забирается через несколько кадров в {@link #nextFrame()} и только если он уже готов, поэтому замер не останавливает конвейер
+ * (в отличие от glFinish). Запросы GL_TIME_ELAPSED не вкладываются друг в друга, поэтому и проходы вкладывать нельзя.
+ * <p>
+ * Вместе со временем на процессоре для каждого прохода считается количество вызовов OpenGL через {@link GLStateCache},
+ * привязок фреймбуферов, очисток и отрисовок ({@link #countClear()}, {@link #countDrawCall()}).
+ * По каждому проходу хранится скользящее окно последних замеров, из которого считаются min / avg / p99.
+ */
+@SideOnly(Side.CLIENT)
+public class PassProfiler {
+    /** Счетчики очисток и отрисовок, которые увеличивают классы этого пакета. */
+    private static long countClears;
+    private static long countDrawCalls;
+
+    private final int latencyFrames;
+    private final int windowSize;
+    private boolean isEnabled;
+    private final boolean isGpuTimingSupported;
+
+    private final Map<String, PassStatistics> statistics;
+    /** Свободные объекты запросов. */
+    private final ArrayDeque<Integer> freeQueries;
+    /** Запросы, результаты которых еще не забраны, в порядке отправки. */
+    private final ArrayDeque<PendingQuery> pendingQueries;
+    private long frameIndex;
+
+    /** Текущий проход (между begin и end). */
+    private PassStatistics currentPass;
+    private int currentQueryID;
+    private long currentCpuStart;
+    private long currentCallsStart;
+    private long currentBindsStart;
+    private long currentClearsStart;
+    private long currentDrawCallsStart;
+
+
+    /**
+     * latencyFrames - через сколько кадров забирать результаты запросов, windowSize - количество замеров в окне статистики.
+     */
+    public PassProfiler(int latencyFrames, int windowSize) {
+        this.latencyFrames = latencyFrames;
+        this.windowSize = windowSize;
+        this.isEnabled = true;
+        this.isGpuTimingSupported = isGpuTimingSupported();
+
+        this.statistics = new LinkedHashMap<>();
+        this.freeQueries = new ArrayDeque<>();
+        this.pendingQueries = new ArrayDeque<>();
+        this.currentQueryID = -1;
+    }
+
+    public PassProfiler() {
+        this(3, 120);
+    }
+
+    /**
+     * Проверяет поддержку запросов GL_TIME_ELAPSED. Без нее меряется только время на процессоре.
+     */
+    public static boolean isGpuTimingSupported() {
+        ContextCapabilities capabilities = GLContext.getCapabilities();
+        return capabilities.OpenGL33 || capabilities.GL_ARB_timer_query;
+    }
+
+    /**
+     * Учитывает очистку фреймбуфера в статистике текущего прохода.
+     */
+    public static void countClear() {
+        countClears++;
+    }
+
+    /**
+     * Учитывает вызов отрисовки в статистике текущего прохода.
+     */
+    public static void countDrawCall() {
+        countDrawCalls++;
+    }
+
+    public boolean isEnabled() {
+        return isEnabled;
+    }
+
+    public void setEnabled(boolean enabled) {
+        if (currentPass != null) {
+            throw new IllegalStateException("Нельзя выключать профайлер внутри прохода " + currentPass.name + ".");
+        }
+        isEnabled = enabled;
+    }
+
+    public void begin(String passName) {
+        if (! isEnabled) {
+            return;
+        }
+        if (currentPass != null) {
+            throw new IllegalStateException("Проход " + currentPass.name + " еще не закончен, проходы нельзя вкладывать.");
+        }
+
+        currentPass = statistics.get(passName);
+        if (currentPass == null) {
+            currentPass = new PassStatistics(passName, windowSize);
+            statistics.put(passName, currentPass);
+        }
+
+        if (isGpuTimingSupported) {
+            Integer queryID = freeQueries.poll();
+            currentQueryID = queryID != null ? queryID : GL15.glGenQueries();
+            GL15.glBeginQuery(GL33.GL_TIME_ELAPSED, currentQueryID);
+        }
+
+        currentCallsStart = GLStateCache.getCallsMade();
+        currentBindsStart = GLStateCache.getFramebufferBindsMade();
+        currentClearsStart = countClears;
+        currentDrawCallsStart = countDrawCalls;
+        currentCpuStart = System.nanoTime();
+    }
+
+    public void end() {
+        if (! isEnabled) {
+            return;
+        }
+        if (currentPass == null) {
+            throw new IllegalStateException("Нет начатого прохода.");
+        }
+
+        long cpuTime = System.nanoTime() - currentCpuStart;
+        if (isGpuTimingSupported) {
+            GL15.glEndQuery(GL33.GL_TIME_ELAPSED);
+            pendingQueries.add(new PendingQuery(currentPass, currentQueryID, frameIndex));
+            currentQueryID = -1;
+        }
+
+        currentPass.addCpuSample(cpuTime,
+                GLStateCache.getCallsMade() - currentCallsStart,
+                GLStateCache.getFramebufferBindsMade() - currentBindsStart,
+                countClears - currentClearsStart,
+                countDrawCalls - currentDrawCallsStart);
+        currentPass = null;
+    }
+
+    /**
+     * Переходит к следующему кадру и забирает готовые результаты запросов, не дожидаясь видеокарты.
+     */
+    public void nextFrame() {
+        frameIndex++;
+
+        while (! pendingQueries.isEmpty()) {
+            PendingQuery query = pendingQueries.peek();
+            if (frameIndex - query.frameIndex < latencyFrames) {
+                break;
+            }
+            //результаты готовятся в порядке отправки, так что если этот не готов, то и следующие тоже.
+            if (GL15.glGetQueryObjecti(query.queryID, GL15.GL_QUERY_RESULT_AVAILABLE) == 0) {
+                break;
+            }
+
+            long gpuTime = GL33.glGetQueryObjectui64(query.queryID, GL15.GL_QUERY_RESULT);
+            query.pass.addGpuSample(gpuTime);
+            freeQueries.add(query.queryID);
+            pendingQueries.poll();
+        }
+    }
+
+    public PassStatistics getStatistics(String passName) {
+        return statistics.get(passName);
+    }
+
+    public Collection<PassStatistics> getAllStatistics() {
+        return Collections.unmodifiableCollection(statistics.values());
+    }
+
+    /**
+     * Строки отчета по всем проходам (для лога или вывода на экран).
+     */
+    public List<String> getReportLines() {
+        List<String> lines = new ArrayList<>(statistics.size() + 1);
+        lines.add("pass: gpu min/avg/p99 ms | cpu avg ms | calls binds clears draws");
+        for (PassStatistics pass : statistics.values()) {
+            lines.add(pass.toReportLine());
+        }
+        return lines;
+    }
+
+    public void printStatistics() {
+        for (String line : getReportLines()) {
+            System.out.println(line);
+        }
+    }
+
+    /**
+     * Рисует отчет шрифтом майнкрафта в точке (x, y) экрана. Вызывать в 2D-режиме (например, в RenderGameOverlayEvent).
+     */
+    public void drawOverlay(int x, int y) {
+        FontRenderer fontRenderer = Minecraft.getMinecraft().fontRenderer;
+        for (String line : getReportLines()) {
+            fontRenderer.drawStringWithShadow(line, x, y, 0xFFFFFF);
+            y += fontRenderer.FONT_HEIGHT + 1;
+        }
+    }
+
+    /**
+     * Сбрасывает статистику всех проходов. Неготовые запросы остаются в очереди.
+     */
+    public void resetStatistics() {
+        for (PassStatistics pass : statistics.values()) {
+            pass.reset();
+        }
+    }
+
+    public void delete() {
+        for (PendingQuery query : pendingQueries) {
+            GL15.glDeleteQueries(query.queryID);
+        }
+        for (int queryID : freeQueries) {
+            GL15.glDeleteQueries(queryID);
+        }
+        pendingQueries.clear();
+        freeQueries.clear();
+    }
+
+
+    /**
+     * Статистика одного прохода по скользящему окну последних замеров.
+     */
+    public static class PassStatistics {
+        private final String name;
+        private final long[] gpuSamples;
+        private final long[] cpuSamples;
+        private int countGpuSamples;
+        private int countCpuSamples;
+        private int nextGpuSample;
+        private int nextCpuSample;
+        /** Буфер для сортировки при подсчете перцентиля. */
+        private final long[] sortBuffer;
+
+        /** Счетчики последнего замера. */
+        private long lastCalls;
+        private long lastBinds;
+        private long lastClears;
+        private long lastDrawCalls;
+
+        private PassStatistics(String name, int windowSize) {
+            this.name = name;
+            this.gpuSamples = new long[windowSize];
+            this.cpuSamples = new long[windowSize];
+            this.sortBuffer = new long[windowSize];
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public long getGpuMinNanos() {
+            return min(gpuSamples, countGpuSamples);
+        }
+
+        public long getGpuAvgNanos() {
+            return avg(gpuSamples, countGpuSamples);
+        }
+
+        public long getGpuP99Nanos() {
+            return percentile(gpuSamples, countGpuSamples, 0.99);
+        }
+
+        public long getCpuMinNanos() {
+            return min(cpuSamples, countCpuSamples);
+        }
+
+        public long getCpuAvgNanos() {
+            return avg(cpuSamples, countCpuSamples);
+        }
+
+        public long getCpuP99Nanos() {
+            return percentile(cpuSamples, countCpuSamples, 0.99);
+        }
+
+        public long getLastCalls() {
+            return lastCalls;
+        }
+
+        public long getLastBinds() {
+            return lastBinds;
+        }
+
+        public long getLastClears() {
+            return lastClears;
+        }
+
+        public long getLastDrawCalls() {
+            return lastDrawCalls;
+        }
+
+        public String toReportLine() {
+            return String.format(Locale.ROOT, "%s: %.3f/%.3f/%.3f | %.3f | %d %d %d %d",
+                    name,
+                    getGpuMinNanos() / 1_000_000.0, getGpuAvgNanos() / 1_000_000.0, getGpuP99Nanos() / 1_000_000.0,
+                    getCpuAvgNanos() / 1_000_000.0,
+                    lastCalls, lastBinds, lastClears, lastDrawCalls);
+        }
+
+        @Override
+        public String toString() {
+            return toReportLine();
+        }
+
+
+        private void addGpuSample(long nanos) {
+            gpuSamples[nextGpuSample] = nanos;
+            nextGpuSample = (nextGpuSample + 1) % gpuSamples.length;
+            countGpuSamples = Math.min(countGpuSamples + 1, gpuSamples.length);
+        }
+
+        private void addCpuSample(long nanos, long calls, long binds, long clears, long drawCalls) {
+            cpuSamples[nextCpuSample] = nanos;
+            nextCpuSample = (nextCpuSample + 1) % cpuSamples.length;
+            countCpuSamples = Math.min(countCpuSamples + 1, cpuSamples.length);
+
+            lastCalls = calls;
+            lastBinds = binds;
+            lastClears = clears;
+            lastDrawCalls = drawCalls;
+        }
+
+        private void reset() {
+            countGpuSamples = 0;
+            countCpuSamples = 0;
+            nextGpuSample = 0;
+            nextCpuSample = 0;
+        }
+
+        private static long min(long[] samples, int count) {
+            if (count == 0) {
+                return 0;
+            }
+            long min = Long.MAX_VALUE;
+            for (int i = 0; i < count; i++) {
+                min = Math.min(min, samples[i]);
+            }
+            return min;
+        }
+
+        private static long avg(long[] samples, int count) {
+            if (count == 0) {
+                return 0;
+            }
+            long sum = 0;
+            for (int i = 0; i < count; i++) {
+                sum += samples[i];
+            }
+            return sum / count;
+        }
+
+        private long percentile(long[] samples, int count, double percentile) {
+            if (count == 0) {
+                return 0;
+            }
+            System.arraycopy(samples, 0, sortBuffer, 0, count);
+            Arrays.sort(sortBuffer, 0, count);
+            int index = (int) Math.ceil(percentile * count) - 1;
+            return sortBuffer[Math.max(0, Math.min(count - 1, index))];
+        }
+    }
+
+    private static final class PendingQuery {
+        private final PassStatistics pass;
+        private final int queryID;
+        private final long frameIndex;
+
+        private PendingQuery(PassStatistics pass, int queryID, long frameIndex) {
+            this.pass = pass;
+            this.queryID = queryID;
+            this.frameIndex = frameIndex;
+        }
+    }
+
+}
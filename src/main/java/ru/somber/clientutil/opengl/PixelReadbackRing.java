@@ -0,0 +1,180 @@
+package ru.somber.clientutil.opengl;
+
+import cpw.mods.fml.relauncher.Side;
+import cpw.mods.fml.relauncher.SideOnly;
+import org.lwjgl.BufferUtils;
+import org.lwjgl.opengl.GL11;
+import org.lwjgl.opengl.GL15;
+import org.lwjgl.opengl.GL21;
+import org.lwjgl.opengl.GL30;
+import ru.somber.clientutil.opengl.texture.Texture;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Кольцо pixel buffer object'ов для чтения пикселей из фреймбуфера без остановки конвейера.
+ * glReadPixels пишет в PBO и сразу возвращает управление, а данные забираются из PBO через несколько кадров,
+ * когда видеокарта их уже гарантированно записала.
+ * <p>
+ * Раз в кадр нужно вызывать {@link #update()}.
+ * Если все слоты кольца заняты, то самый старый запрос завершается принудительно (с ожиданием видеокарты).
+ */
+@SideOnly(Side.CLIENT)
+public class PixelReadbackRing {
+    /** Слоты кольца. */
+    private Slot[] slots;
+    /** Индекс слота для следующего запроса. */
+    private int nextSlot;
+    /** Номер текущего кадра. */
+    private long frameIndex;
+
+
+    /**
+     * ringDepth - количество PBO в кольце. Запрос завершается через max(1, ringDepth - 1) кадров.
+     */
+    public PixelReadbackRing(int ringDepth) {
+        if (ringDepth < 1) {
+            throw new IllegalArgumentException("Глубина кольца должна быть не меньше 1.");
+        }
+
+        this.slots = new Slot[ringDepth];
+        for (int i = 0; i < ringDepth; i++) {
+            slots[i] = new Slot();
+        }
+    }
+
+    public int getRingDepth() {
+        return slots.length;
+    }
+
+    /**
+     * Количество кадров между запросом и получением данных.
+     */
+    public int getLatencyFrames() {
+        return Math.max(1, slots.length - 1);
+    }
+
+    /**
+     * Ставит в очередь чтение прямоугольника из слота attachSlot (GL_COLOR_ATTACHMENT_N) фреймбуфера framebufferID.
+     */
+    public ReadbackRequest request(int framebufferID, int attachSlot, int x, int y, int width, int height, int format, int type) {
+        Slot slot = slots[nextSlot];
+        nextSlot = (nextSlot + 1) % slots.length;
+
+        if (slot.request != null) {
+            //кольцо заполнено, освобождаем слот с ожиданием.
+            completeSlot(slot);
+        }
+
+        ReadbackRequest request = new ReadbackRequest(x, y, width, height, format, type);
+        int size = width * height * Texture.getPixelDataSize(format, type);
+
+        if (slot.pixelBufferID <= 0) {
+            slot.pixelBufferID = GL15.glGenBuffers();
+        }
+        GL15.glBindBuffer(GL21.GL_PIXEL_PACK_BUFFER, slot.pixelBufferID);
+        if (slot.capacity < size) {
+            GL15.glBufferData(GL21.GL_PIXEL_PACK_BUFFER, size, GL15.GL_STREAM_READ);
+            slot.capacity = size;
+        }
+
+        //чужое состояние (фреймбуфер чтения и выравнивание) возвращаем как было.
+        int previousReadFramebufferID = GLStateCache.getReadFramebufferID();
+        if (previousReadFramebufferID < 0) {
+            previousReadFramebufferID = GL11.glGetInteger(GL30.GL_READ_FRAMEBUFFER_BINDING);
+        }
+        int previousPackAlignment = GL11.glGetInteger(GL11.GL_PACK_ALIGNMENT);
+
+        GLStateCache.bindFramebuffer(GL30.GL_READ_FRAMEBUFFER, framebufferID);
+        GL11.glReadBuffer(attachSlot);
+        GL11.glPixelStorei(GL11.GL_PACK_ALIGNMENT, 1);
+        GL11.glReadPixels(x, y, width, height, format, type, 0L);
+        GL11.glPixelStorei(GL11.GL_PACK_ALIGNMENT, previousPackAlignment);
+        GLStateCache.bindFramebuffer(GL30.GL_READ_FRAMEBUFFER, previousReadFramebufferID);
+
+        //привязанный PBO перехватит чтение пикселей майнкрафтом (например, при скриншоте), поэтому отвязываем.
+        GL15.glBindBuffer(GL21.GL_PIXEL_PACK_BUFFER, 0);
+
+        slot.request = request;
+        slot.size = size;
+        slot.submitFrame = frameIndex;
+        return request;
+    }
+
+    /**
+     * Переходит к следующему кадру и забирает данные запросов, которые уже готовы.
+     */
+    public void update() {
+        frameIndex++;
+
+        int latency = getLatencyFrames();
+        for (Slot slot : slots) {
+            if (slot.request != null && frameIndex - slot.submitFrame >= latency) {
+                completeSlot(slot);
+            }
+        }
+    }
+
+    /**
+     * Удаляет все PBO. Незавершенные запросы отменяются ({@link ReadbackRequest#isCancelled()}).
+     */
+    public void delete() {
+        for (Slot slot : slots) {
+            if (slot.request != null) {
+                slot.request.cancel();
+            }
+            if (slot.pixelBufferID > 0) {
+                GL15.glDeleteBuffers(slot.pixelBufferID);
+            }
+            slot.pixelBufferID = -1;
+            slot.capacity = 0;
+            slot.request = null;
+        }
+    }
+
+
+    private void completeSlot(Slot slot) {
+        ReadbackRequest request = slot.request;
+        slot.request = null;
+
+        if (request.isCancelled()) {
+            return;
+        }
+
+        if (slot.data == null || slot.data.capacity() < slot.size) {
+            slot.data = BufferUtils.createByteBuffer(slot.size);
+        }
+
+        GL15.glBindBuffer(GL21.GL_PIXEL_PACK_BUFFER, slot.pixelBufferID);
+        slot.mappedBuffer = GL30.glMapBufferRange(GL21.GL_PIXEL_PACK_BUFFER, 0, slot.size, GL30.GL_MAP_READ_BIT, slot.mappedBuffer);
+
+        slot.data.clear();
+        if (slot.mappedBuffer != null) {
+            slot.mappedBuffer.clear().limit(slot.size);
+            slot.data.put(slot.mappedBuffer);
+        }
+        slot.data.flip();
+
+        GL15.glUnmapBuffer(GL21.GL_PIXEL_PACK_BUFFER);
+        GL15.glBindBuffer(GL21.GL_PIXEL_PACK_BUFFER, 0);
+
+        request.complete(slot.data);
+    }
+
+
+    private static final class Slot {
+        private int pixelBufferID = -1;
+        /** Размер выделенной памяти PBO. */
+        private int capacity;
+        /** Размер данных текущего запроса. */
+        private int size;
+        private long submitFrame;
+        private ReadbackRequest request;
+
+        /** Отображение PBO в память, переиспользуется LWJGL между вызовами glMapBufferRange. */
+        private ByteBuffer mappedBuffer;
+        /** Копия данных, которая отдается в запрос. */
+        private ByteBuffer data;
+    }
+
+}
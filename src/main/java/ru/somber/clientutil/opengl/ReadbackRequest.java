@@ -0,0 +1,94 @@
+package ru.somber.clientutil.opengl;
+
+import cpw.mods.fml.relauncher.Side;
+import cpw.mods.fml.relauncher.SideOnly;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Запрос на асинхронное чтение пикселей из фреймбуфера (см. {@link PixelReadbackRing}).
+ * Данные становятся доступны через несколько кадров после запроса.
+ */
+@SideOnly(Side.CLIENT)
+public class ReadbackRequest {
+    private final int x;
+    private final int y;
+    private final int width;
+    private final int height;
+    private final int format;
+    private final int type;
+
+    private boolean isDone;
+    private boolean isCancelled;
+    private ByteBuffer data;
+
+
+    ReadbackRequest(int x, int y, int width, int height, int format, int type) {
+        this.x = x;
+        this.y = y;
+        this.width = width;
+        this.height = height;
+        this.format = format;
+        this.type = type;
+    }
+
+    public int getX() {
+        return x;
+    }
+
+    public int getY() {
+        return y;
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    public int getFormat() {
+        return format;
+    }
+
+    public int getType() {
+        return type;
+    }
+
+    public boolean isDone() {
+        return isDone;
+    }
+
+    public boolean isCancelled() {
+        return isCancelled;
+    }
+
+    /**
+     * Отменяет запрос. Данные по нему не будут копироваться.
+     */
+    public void cancel() {
+        if (! isDone) {
+            isCancelled = true;
+        }
+    }
+
+    /**
+     * Возвращает прочитанные пиксели (строки снизу вверх, без выравнивания строк).
+     * Буфер принадлежит кольцу PBO и действителен, пока слот кольца не будет использован для нового запроса
+     * (то есть в течение ringDepth следующих запросов). Если данные нужны дольше, их нужно скопировать.
+     */
+    public ByteBuffer getData() {
+        if (! isDone) {
+            throw new IllegalStateException("Данные еще не прочитаны!");
+        }
+        return data;
+    }
+
+
+    void complete(ByteBuffer data) {
+        this.data = data;
+        this.isDone = true;
+    }
+
+}
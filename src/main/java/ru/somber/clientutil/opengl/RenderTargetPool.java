@@ -0,0 +1,265 @@
+package ru.somber.clientutil.opengl;
+
+import cpw.mods.fml.relauncher.Side;
+import cpw.mods.fml.relauncher.SideOnly;
+import org.lwjgl.opengl.GL30;
+import ru.somber.clientutil.opengl.texture.Texture;
+
+import java.util.*;
+
+/**
+ * Пул временных текстур и фреймбуферов (render target'ов).
+ * Вместо создания нового CustomFramebuffer или Texture на каждый проход эффекта цель берется из пула ({@code acquire...}),
+ * а после использования возвращается обратно ({@link #release(Object)}).
+ * Цели подбираются по ключу (ширина, высота, внутренний формат, наличие буфера глубины).
+ * <p>
+ * Раз в кадр нужно вызывать {@link #nextFrame()}. Цели, которые не брались из пула больше maxUnusedFrames кадров, удаляются.
+ * Поэтому после изменения размера окна старые цели постепенно уходят, а новые создаются один раз и дальше переиспользуются.
+ */
+@SideOnly(Side.CLIENT)
+public class RenderTargetPool {
+    /** Количество кадров, после которого неиспользуемая цель удаляется. */
+    private int maxUnusedFrames;
+    /** Номер текущего кадра. */
+    private long frameIndex;
+
+    /** Свободные цели по ключу. */
+    private Map<TargetKey, ArrayDeque<PooledTarget>> freeTargets;
+    /** Выданные цели. Ключ - выданный объект (Texture или CustomFramebuffer). */
+    private Map<Object, PooledTarget> usedTargets;
+    /** Ключ для поиска, чтобы не создавать новый объект на каждый запрос. */
+    private TargetKey lookupKey;
+
+    /** Примерный объем видеопамяти, занятый всеми целями пула (в байтах). */
+    private long residentBytes;
+    private int countAllocations;
+    private int countEvictions;
+
+
+    public RenderTargetPool(int maxUnusedFrames) {
+        this.maxUnusedFrames = maxUnusedFrames;
+        this.frameIndex = 0;
+
+        this.freeTargets = new HashMap<>();
+        this.usedTargets = new IdentityHashMap<>();
+        this.lookupKey = new TargetKey();
+    }
+
+    public RenderTargetPool() {
+        this(3);
+    }
+
+
+    public Texture acquireTexture(int width, int height, int internalFormat) {
+        PooledTarget target = acquire(width, height, internalFormat, false, false);
+        return target.texture;
+    }
+
+    /**
+     * Возвращает фреймбуфер с текстурой внутреннего формата internalFormat в слоте GL_COLOR_ATTACHMENT0.
+     * Фреймбуфер нужно вернуть в пул в том же виде (без дополнительных прикрепленных текстур).
+     */
+    public CustomFramebuffer acquireFramebuffer(int width, int height, int internalFormat, boolean isUsedDepth) {
+        PooledTarget target = acquire(width, height, internalFormat, isUsedDepth, true);
+        return target.framebuffer;
+    }
+
+    /**
+     * Возвращает в пул текстуру или фреймбуфер, полученные из этого пула.
+     */
+    public void release(Object target) {
+        PooledTarget pooledTarget = usedTargets.remove(target);
+        if (pooledTarget == null) {
+            throw new IllegalArgumentException("Объект " + target + " не был получен из этого пула.");
+        }
+
+        pooledTarget.lastUsedFrame = frameIndex;
+        freeTargets.computeIfAbsent(pooledTarget.key, key -> new ArrayDeque<>()).push(pooledTarget);
+    }
+
+    /**
+     * Переходит к следующему кадру и удаляет цели, которые давно не использовались.
+     */
+    public void nextFrame() {
+        frameIndex++;
+
+        Iterator<ArrayDeque<PooledTarget>> iterator = freeTargets.values().iterator();
+        while (iterator.hasNext()) {
+            ArrayDeque<PooledTarget> targets = iterator.next();
+
+            //в начале очереди лежат последние возвращенные цели, так что давно неиспользуемые - в конце.
+            while (! targets.isEmpty() && frameIndex - targets.peekLast().lastUsedFrame > maxUnusedFrames) {
+                deleteTarget(targets.pollLast());
+                countEvictions++;
+            }
+
+            if (targets.isEmpty()) {
+                iterator.remove();
+            }
+        }
+    }
+
+    /**
+     * Удаляет все свободные цели. Выданные цели не трогаются.
+     */
+    public void clearFree() {
+        freeTargets.values().forEach(targets -> targets.forEach(this::deleteTarget));
+        freeTargets.clear();
+    }
+
+    /**
+     * Удаляет все цели пула, в том числе выданные.
+     */
+    public void deletePool() {
+        clearFree();
+        usedTargets.values().forEach(this::deleteTarget);
+        usedTargets.clear();
+    }
+
+    public int getMaxUnusedFrames() {
+        return maxUnusedFrames;
+    }
+
+    public void setMaxUnusedFrames(int maxUnusedFrames) {
+        this.maxUnusedFrames = maxUnusedFrames;
+    }
+
+    /**
+     * Возвращает примерный объем видеопамяти, занятый всеми целями пула (в байтах).
+     */
+    public long getResidentBytes() {
+        return residentBytes;
+    }
+
+    public int getCountUsedTargets() {
+        return usedTargets.size();
+    }
+
+    public int getCountFreeTargets() {
+        int count = 0;
+        for (ArrayDeque<PooledTarget> targets : freeTargets.values()) {
+            count += targets.size();
+        }
+        return count;
+    }
+
+    /** Количество созданных пулом целей за всё время. */
+    public int getCountAllocations() {
+        return countAllocations;
+    }
+
+    /** Количество удаленных из-за простоя целей за всё время. */
+    public int getCountEvictions() {
+        return countEvictions;
+    }
+
+
+    private PooledTarget acquire(int width, int height, int internalFormat, boolean isUsedDepth, boolean isFramebuffer) {
+        lookupKey.set(width, height, internalFormat, isUsedDepth, isFramebuffer);
+
+        PooledTarget target;
+        ArrayDeque<PooledTarget> targets = freeTargets.get(lookupKey);
+        if (targets != null && ! targets.isEmpty()) {
+            target = targets.pop();
+        } else {
+            target = createTarget(lookupKey.copy());
+        }
+
+        target.lastUsedFrame = frameIndex;
+        usedTargets.put(isFramebuffer ? target.framebuffer : target.texture, target);
+        return target;
+    }
+
+    private PooledTarget createTarget(TargetKey key) {
+        Texture texture = Texture.createTexture(key.width, key.height, key.internalFormat);
+        CustomFramebuffer framebuffer = null;
+
+        if (key.isFramebuffer) {
+            framebuffer = new CustomFramebuffer(key.width, key.height, key.isUsedDepth);
+            framebuffer.attachTexture(GL30.GL_COLOR_ATTACHMENT0, texture);
+        }
+
+        PooledTarget target = new PooledTarget(key, texture, framebuffer);
+        residentBytes += target.getSizeBytes();
+        countAllocations++;
+        return target;
+    }
+
+    private void deleteTarget(PooledTarget target) {
+        if (target.framebuffer != null) {
+            //фреймбуфер удаляет и прикрепленные к нему текстуры.
+            target.framebuffer.deleteFramebuffer();
+        } else {
+            Texture.deleteTexture(target.texture);
+        }
+        residentBytes -= target.getSizeBytes();
+    }
+
+
+    private static final class PooledTarget {
+        private final TargetKey key;
+        private final Texture texture;
+        private final CustomFramebuffer framebuffer;
+        private long lastUsedFrame;
+
+        private PooledTarget(TargetKey key, Texture texture, CustomFramebuffer framebuffer) {
+            this.key = key;
+            this.texture = texture;
+            this.framebuffer = framebuffer;
+        }
+
+        private long getSizeBytes() {
+            long pixels = (long) key.width * key.height;
+            long size = pixels * Texture.getBytesPerPixel(key.internalFormat);
+            if (key.isUsedDepth) {
+                size += pixels * 4;
+            }
+            return size;
+        }
+    }
+
+    private static final class TargetKey {
+        private int width;
+        private int height;
+        private int internalFormat;
+        private boolean isUsedDepth;
+        private boolean isFramebuffer;
+
+        private void set(int width, int height, int internalFormat, boolean isUsedDepth, boolean isFramebuffer) {
+            this.width = width;
+            this.height = height;
+            this.internalFormat = internalFormat;
+            this.isUsedDepth = isUsedDepth;
+            this.isFramebuffer = isFramebuffer;
+        }
+
+        private TargetKey copy() {
+            TargetKey key = new TargetKey();
+            key.set(width, height, internalFormat, isUsedDepth, isFramebuffer);
+            return key;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (o == null || getClass() != o.getClass()) return false;
+            TargetKey that = (TargetKey) o;
+            return width == that.width &&
+                    height == that.height &&
+                    internalFormat == that.internalFormat &&
+                    isUsedDepth == that.isUsedDepth &&
+                    isFramebuffer == that.isFramebuffer;
+        }
+
+        @Override
+        public int hashCode() {
+            int result = width;
+            result = 31 * result + height;
+            result = 31 * result + internalFormat;
+            result = 31 * result + (isUsedDepth ? 1 : 0);
+            result = 31 * result + (isFramebuffer ? 1 : 0);
+            return result;
+        }
+    }
+
+}
@@ -40,12 +40,20 @@ public class Shader {
     }
 
     public boolean compileShader() {
-        GL20.glShaderSource(shaderID, sourceCode);
-        GL20.glCompileShader(shaderID);
+        startCompile();
 
         return getCompileStatus() == GL11.GL_TRUE;
     }
 
+    /**
+     * Отправляет шейдер на компиляцию, не дожидаясь ее окончания (статус компиляции не запрашивается).
+     * Драйвер может компилировать такие шейдеры параллельно (см. {@link ShaderBatchCompiler}).
+     */
+    public void startCompile() {
+        GL20.glShaderSource(shaderID, sourceCode);
+        GL20.glCompileShader(shaderID);
+    }
+
     public int getCompileStatus() {
         int compileStatus = GL20.glGetShaderi(shaderID, GL20.GL_COMPILE_STATUS);
         return compileStatus;
@@ -0,0 +1,315 @@
+package ru.somber.clientutil.opengl;
+
+import cpw.mods.fml.relauncher.Side;
+import cpw.mods.fml.relauncher.SideOnly;
+import org.lwjgl.opengl.GL11;
+import org.lwjgl.opengl.GL20;
+import org.lwjgl.opengl.GL41;
+import org.lwjgl.opengl.GLContext;
+
+import java.lang.reflect.Method;
+import java.util.*;
+
+/**
+ * Пакетная компиляция шейдеров и линковка программ.
+ * <p>
+ * Обычный путь ({@link Shader#compileShader()}, {@link ShaderProgram#attachShader(Shader)}, {@link ShaderProgram#linkProgram()})
+ * запрашивает статус сразу после каждой операции, и драйвер вынужден компилировать шейдеры по одному.
+ * Здесь все шейдеры и программы сначала отправляются драйверу ({@link #submit()}), а статусы запрашиваются только в конце ({@link #finish()}).
+ * <p>
+ * Если драйвер поддерживает GL_KHR_parallel_shader_compile (или GL_ARB_parallel_shader_compile),
+ * то готовность можно проверять без блокировки через {@link #poll()} - например, раз в кадр, пока рисуется экран загрузки.
+ */
+@SideOnly(Side.CLIENT)
+public class ShaderBatchCompiler {
+    /** GL_COMPLETION_STATUS_KHR (в LWJGL нет этой константы). */
+    private static final int GL_COMPLETION_STATUS = 0x91B1;
+    /** Количество потоков для glMaxShaderCompilerThreadsKHR, при котором драйвер выбирает его сам. */
+    private static final int MAX_COMPILER_THREADS_DEFAULT = 0xFFFFFFFF;
+
+    /** Флаг того, что драйверу уже разрешена параллельная компиляция (делается один раз на контекст). */
+    private static boolean isCompilerThreadsEnabled;
+
+    /** Кэш бинарников программ. Может быть null. */
+    private ShaderProgramBinaryCache binaryCache;
+    private List<ProgramReport> reports;
+    private boolean isSubmitted;
+    private boolean isFinished;
+    /** Поддерживает ли драйвер параллельную компиляцию. Проверяется при отправке пакета. */
+    private boolean isParallelCompile;
+
+
+    public ShaderBatchCompiler() {
+        this(null);
+    }
+
+    public ShaderBatchCompiler(ShaderProgramBinaryCache binaryCache) {
+        this.binaryCache = (binaryCache != null && ShaderProgramBinaryCache.isSupported()) ? binaryCache : null;
+        this.reports = new ArrayList<>();
+    }
+
+    /**
+     * Проверяет поддержку параллельной компиляции шейдеров драйвером.
+     */
+    public static boolean isParallelCompileSupported() {
+        String extensions = GL11.glGetString(GL11.GL_EXTENSIONS);
+        return extensions != null && (extensions.contains("GL_KHR_parallel_shader_compile") || extensions.contains("GL_ARB_parallel_shader_compile"));
+    }
+
+    /**
+     * Вызывает glMaxShaderCompilerThreadsKHR (или ARB), если он еще не вызывался: некоторые драйверы (Mesa, часть драйверов NVIDIA)
+     * компилируют параллельно только после этого вызова.
+     * <p>
+     * В LWJGL 2 этой функции нет, поэтому она вызывается по адресу из драйвера через нативный метод glClear,
+     * у которого та же сигнатура (один int, без результата). Если это не удалось, то компиляция просто идет так, как решит драйвер.
+     */
+    public static void enableCompilerThreads() {
+        if (isCompilerThreadsEnabled) {
+            return;
+        }
+        isCompilerThreadsEnabled = true;
+
+        long functionAddress = GLContext.getFunctionAddress("glMaxShaderCompilerThreadsKHR");
+        if (functionAddress == 0) {
+            functionAddress = GLContext.getFunctionAddress("glMaxShaderCompilerThreadsARB");
+        }
+        if (functionAddress == 0) {
+            return;
+        }
+
+        try {
+            Method invoker = GL11.class.getDeclaredMethod("nglClear", int.class, long.class);
+            invoker.setAccessible(true);
+            invoker.invoke(null, MAX_COMPILER_THREADS_DEFAULT, functionAddress);
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            System.out.println("Не удалось вызвать glMaxShaderCompilerThreads: " + e);
+        }
+    }
+
+    /**
+     * Добавляет программу из указанных шейдеров (у шейдеров должен быть задан исходный код).
+     * Один и тот же шейдер можно использовать в нескольких программах, он будет скомпилирован один раз.
+     * Атрибуты программы привязываются до {@link #submit()} через {@link ShaderProgram#bindAttribLocation(int, String)} - они входят в ключ кэша.
+     */
+    public ShaderProgram addProgram(String name, Shader... shaders) {
+        if (isSubmitted) {
+            throw new IllegalStateException("Пакет уже отправлен на компиляцию!");
+        }
+
+        ShaderProgram program = new ShaderProgram();
+        reports.add(new ProgramReport(name, program, shaders));
+        return program;
+    }
+
+    /**
+     * Отправляет все шейдеры на компиляцию и все программы на линковку, не запрашивая статусов.
+     * Программы, найденные в кэше бинарников, не компилируются и не линкуются.
+     */
+    public void submit() {
+        if (isSubmitted) {
+            throw new IllegalStateException("Пакет уже отправлен на компиляцию!");
+        }
+        isSubmitted = true;
+        isParallelCompile = isParallelCompileSupported();
+        if (isParallelCompile) {
+            enableCompilerThreads();
+        }
+
+        Map<Shader, Long> submitTimes = new IdentityHashMap<>();
+        for (ProgramReport report : reports) {
+            if (binaryCache != null) {
+                report.cacheKey = binaryCache.getCacheKey(report.shaders, report.program.getAttribLocations());
+                if (binaryCache.load(report.program, report.cacheKey)) {
+                    report.isFromCache = true;
+                    report.isDone = true;
+                    report.isLink = true;
+                    continue;
+                }
+            }
+
+            for (Shader shader : report.shaders) {
+                Long submitTime = submitTimes.get(shader);
+                if (submitTime == null) {
+                    long start = System.nanoTime();
+                    shader.startCompile();
+                    submitTime = System.nanoTime() - start;
+                    submitTimes.put(shader, submitTime);
+                }
+                report.submitTimeNanos += submitTime;
+            }
+        }
+
+        for (ProgramReport report : reports) {
+            if (report.isFromCache) {
+                continue;
+            }
+
+            for (Shader shader : report.shaders) {
+                report.program.attachShaderDeferred(shader);
+            }
+            if (binaryCache != null) {
+                GL41.glProgramParameteri(report.program.getShaderProgramID(), GL41.GL_PROGRAM_BINARY_RETRIEVABLE_HINT, GL11.GL_TRUE);
+            }
+
+            report.linkStartNanos = System.nanoTime();
+            report.program.startLink();
+        }
+    }
+
+    /**
+     * Проверяет готовность всех программ, не блокируя поток (если поддерживается параллельная компиляция).
+     * Без поддержки параллельной компиляции запрос статуса всё равно блокирует поток, поэтому сразу возвращается true,
+     * а ожидание происходит в {@link #finish()}.
+     */
+    public boolean poll() {
+        if (! isSubmitted) {
+            throw new IllegalStateException("Пакет еще не отправлен на компиляцию!");
+        }
+        if (! isParallelCompile) {
+            return true;
+        }
+
+        boolean isAllDone = true;
+        for (ProgramReport report : reports) {
+            if (report.isDone) {
+                continue;
+            }
+
+            if (GL20.glGetProgrami(report.program.getShaderProgramID(), GL_COMPLETION_STATUS) == GL11.GL_TRUE) {
+                report.isDone = true;
+                report.linkTimeNanos = System.nanoTime() - report.linkStartNanos;
+            } else {
+                isAllDone = false;
+            }
+        }
+        return isAllDone;
+    }
+
+    /**
+     * Дожидается окончания компиляции и линковки всех программ, собирает статусы и логи.
+     * Успешно слинкованные программы сохраняются в кэш бинарников.
+     */
+    public List<ProgramReport> finish() {
+        if (! isSubmitted) {
+            submit();
+        }
+        if (isFinished) {
+            return getReports();
+        }
+        isFinished = true;
+
+        for (ProgramReport report : reports) {
+            if (report.isFromCache) {
+                report.program.onLinked();
+                continue;
+            }
+
+            report.isLink = report.program.isLink();
+            if (! report.isDone) {
+                report.isDone = true;
+                report.linkTimeNanos = System.nanoTime() - report.linkStartNanos;
+            }
+
+            StringBuilder log = new StringBuilder();
+            for (Shader shader : report.shaders) {
+                if (! shader.isCompile()) {
+                    log.append(shader.getInfoLog()).append('\n');
+                }
+            }
+            if (! report.isLink) {
+                log.append(report.program.getInfoLog());
+            }
+            report.infoLog = log.toString();
+
+            if (report.isLink) {
+                report.program.onLinked();
+                if (binaryCache != null) {
+                    binaryCache.store(report.program, report.cacheKey);
+                }
+            }
+        }
+
+        return getReports();
+    }
+
+    public List<ProgramReport> getReports() {
+        return Collections.unmodifiableList(reports);
+    }
+
+    public void printReports() {
+        for (ProgramReport report : reports) {
+            System.out.println(report);
+            if (! report.getInfoLog().isEmpty()) {
+                System.out.println(report.getInfoLog());
+            }
+        }
+    }
+
+
+    /**
+     * Результат компиляции и линковки одной программы.
+     * Время отправки - время, которое поток потратил на отправку шейдеров драйверу (с параллельной компиляцией это не время компиляции).
+     * Время линковки - время от отправки программы на линковку до момента, когда стала известна ее готовность
+     * (при вызове {@link #poll()} или {@link #finish()}), поэтому оно зависит от того, как часто проверяется готовность.
+     */
+    public static class ProgramReport {
+        private final String name;
+        private final ShaderProgram program;
+        private final Shader[] shaders;
+
+        private String cacheKey;
+        private boolean isFromCache;
+        private boolean isDone;
+        private boolean isLink;
+        private long submitTimeNanos;
+        private long linkStartNanos;
+        private long linkTimeNanos;
+        private String infoLog = "";
+
+        private ProgramReport(String name, ShaderProgram program, Shader[] shaders) {
+            this.name = name;
+            this.program = program;
+            this.shaders = shaders.clone();
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public ShaderProgram getProgram() {
+            return program;
+        }
+
+        public boolean isFromCache() {
+            return isFromCache;
+        }
+
+        public boolean isLink() {
+            return isLink;
+        }
+
+        public long getSubmitTimeNanos() {
+            return submitTimeNanos;
+        }
+
+        public long getLinkTimeNanos() {
+            return linkTimeNanos;
+        }
+
+        public String getInfoLog() {
+            return infoLog;
+        }
+
+        @Override
+        public String toString() {
+            return "ProgramReport{" +
+                    "name='" + name + '\'' +
+                    ", isLink=" + isLink +
+                    ", isFromCache=" + isFromCache +
+                    ", submitTimeMs=" + submitTimeNanos / 1_000_000.0 +
+                    ", linkTimeMs=" + linkTimeNanos / 1_000_000.0 +
+                    '}';
+        }
+    }
+
+}
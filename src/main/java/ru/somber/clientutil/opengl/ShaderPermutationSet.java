@@ -0,0 +1,375 @@
+package ru.somber.clientutil.opengl;
+
+import cpw.mods.fml.relauncher.Side;
+import cpw.mods.fml.relauncher.SideOnly;
+import net.minecraft.util.ResourceLocation;
+import org.lwjgl.opengl.GL20;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+/**
+ * Набор перестановок (вариантов) одной шейдерной программы. Программа объявляется с набором ключевых слов (до 64),
+ * а вариант запрашивается битовой маской: бит i включает ключевое слово i, которое добавляется в шейдеры как {@code #define KEYWORD}.
+ * <p>
+ * Вариант компилируется при первом запросе ({@link #getVariant(long)}) или заранее ({@link #prewarm(Collection)}),
+ * например по списку вариантов, которые использовались в прошлой игре ({@link #writeUsedVariants(File)}, {@link #readVariantList(File)}).
+ * Слинкованные варианты хранятся в кэше ограниченного размера, самые давно не использованные удаляются.
+ */
+@SideOnly(Side.CLIENT)
+public class ShaderPermutationSet {
+    private final String name;
+    private final ResourceLocation vertexShaderLocation;
+    private final ResourceLocation fragmentShaderLocation;
+    private final String[] keywords;
+    private final ShaderPreprocessor preprocessor;
+    private final int maxCachedVariants;
+
+    /** Кэш бинарников программ. Может быть null. */
+    private ShaderProgramBinaryCache binaryCache;
+    /** Атрибуты, которые привязываются к номерам перед линковкой. */
+    private final Map<String, Integer> attributeLocations;
+
+    /** Слинкованные варианты в порядке использования (первый - самый давно использованный). */
+    private final LinkedHashMap<Long, ShaderProgram> variants;
+    /** Маски всех вариантов, которые запрашивались. */
+    private final Set<Long> usedMasks;
+
+    private int countCompiled;
+    private int countHits;
+    private int countEvicted;
+
+
+    public ShaderPermutationSet(String name, ResourceLocation vertexShaderLocation, ResourceLocation fragmentShaderLocation,
+                                String[] keywords, ShaderPreprocessor preprocessor, int maxCachedVariants) {
+        if (keywords.length > 64) {
+            throw new IllegalArgumentException("Ключевых слов не может быть больше 64.");
+        }
+        if (maxCachedVariants < 1) {
+            throw new IllegalArgumentException("Размер кэша должен быть не меньше 1.");
+        }
+
+        this.name = name;
+        this.vertexShaderLocation = vertexShaderLocation;
+        this.fragmentShaderLocation = fragmentShaderLocation;
+        this.keywords = keywords.clone();
+        this.preprocessor = preprocessor;
+        this.maxCachedVariants = maxCachedVariants;
+
+        this.attributeLocations = new LinkedHashMap<>();
+        this.variants = new LinkedHashMap<>(16, 0.75F, true);
+        this.usedMasks = new LinkedHashSet<>();
+    }
+
+    public ShaderPermutationSet(String name, ResourceLocation vertexShaderLocation, ResourceLocation fragmentShaderLocation, String... keywords) {
+        this(name, vertexShaderLocation, fragmentShaderLocation, keywords, OpenGLUtils.getShaderPreprocessor(), 32);
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public String[] getKeywords() {
+        return keywords.clone();
+    }
+
+    public void setBinaryCache(ShaderProgramBinaryCache binaryCache) {
+        this.binaryCache = binaryCache;
+    }
+
+    /**
+     * Задает номер атрибута, который будет привязан перед линковкой каждого варианта.
+     */
+    public void setAttributeLocation(String attributeName, int location) {
+        attributeLocations.put(attributeName, location);
+    }
+
+    /**
+     * Возвращает маску для набора ключевых слов. Если ключевого слова нет, то выбрасывается исключение.
+     */
+    public long getMask(String... enabledKeywords) {
+        long mask = 0;
+        for (String keyword : enabledKeywords) {
+            mask |= 1L << getKeywordIndex(keyword);
+        }
+        return mask;
+    }
+
+    public int getKeywordIndex(String keyword) {
+        for (int i = 0; i < keywords.length; i++) {
+            if (keywords[i].equals(keyword)) {
+                return i;
+            }
+        }
+        throw new IllegalArgumentException("В наборе " + name + " нет ключевого слова " + keyword + ".");
+    }
+
+    /**
+     * Возвращает вариант программы для маски, компилируя его при первом запросе.
+     * Программу, полученную отсюда, нельзя удалять самому - она удаляется при вытеснении из кэша или в {@link #delete()}.
+     */
+    public ShaderProgram getVariant(long mask) {
+        checkMask(mask);
+        usedMasks.add(mask);
+
+        ShaderProgram program = variants.get(mask);
+        if (program != null) {
+            countHits++;
+            return program;
+        }
+
+        program = compileVariant(mask);
+        putVariant(mask, program);
+        return program;
+    }
+
+    public boolean isVariantCompiled(long mask) {
+        return variants.containsKey(mask);
+    }
+
+    /**
+     * Компилирует варианты заранее одним пакетом (см. {@link ShaderBatchCompiler}), уже скомпилированные пропускаются.
+     * Варианты, которые не удалось собрать, пропускаются с выводом лога.
+     * Если вариантов больше размера кэша, то компилируются только первые из них.
+     */
+    public void prewarm(Collection<Long> masks) {
+        ShaderBatchCompiler compiler = new ShaderBatchCompiler(binaryCache);
+        Map<Long, ShaderProgram> programs = new LinkedHashMap<>();
+        List<Shader> shaders = new ArrayList<>();
+
+        for (long mask : masks) {
+            if (programs.size() >= maxCachedVariants) {
+                break;
+            }
+            if ((mask & ~getAllKeywordsMask()) != 0 || variants.containsKey(mask) || programs.containsKey(mask)) {
+                continue;
+            }
+
+            String vertexCode;
+            String fragmentCode;
+            try {
+                vertexCode = preprocessor.process(vertexShaderLocation, getDefines(mask)).getCode();
+                fragmentCode = preprocessor.process(fragmentShaderLocation, getDefines(mask)).getCode();
+            } catch (IOException e) {
+                System.out.println("Не удалось загрузить шейдеры " + getVariantName(mask) + ": " + e.getMessage());
+                break;
+            }
+
+            Shader vertexShader = new Shader(GL20.GL_VERTEX_SHADER, vertexCode);
+            Shader fragmentShader = new Shader(GL20.GL_FRAGMENT_SHADER, fragmentCode);
+            shaders.add(vertexShader);
+            shaders.add(fragmentShader);
+
+            ShaderProgram program = compiler.addProgram(getVariantName(mask), vertexShader, fragmentShader);
+            bindAttributeLocations(program);
+            programs.put(mask, program);
+        }
+
+        if (programs.isEmpty()) {
+            return;
+        }
+
+        compiler.submit();
+        List<ShaderBatchCompiler.ProgramReport> reports = compiler.finish();
+
+        int index = 0;
+        for (Map.Entry<Long, ShaderProgram> entry : programs.entrySet()) {
+            ShaderBatchCompiler.ProgramReport report = reports.get(index++);
+            if (report.isLink()) {
+                entry.getValue().detachAllShader();
+                putVariant(entry.getKey(), entry.getValue());
+                if (! report.isFromCache()) {
+                    countCompiled++;
+                }
+            } else {
+                System.out.println(report);
+                System.out.println(report.getInfoLog());
+                entry.getValue().deleteProgram();
+            }
+        }
+
+        for (Shader shader : shaders) {
+            shader.deleteShader();
+        }
+    }
+
+    /**
+     * Маски всех вариантов, которые запрашивались через {@link #getVariant(long)}, в порядке первого запроса.
+     */
+    public Set<Long> getUsedMasks() {
+        return Collections.unmodifiableSet(usedMasks);
+    }
+
+    /**
+     * Записывает маски использованных вариантов в файл (по одной в строке, в шестнадцатеричном виде).
+     */
+    public void writeUsedVariants(File file) throws IOException {
+        File directory = file.getAbsoluteFile().getParentFile();
+        if (directory != null && ! directory.isDirectory() && ! directory.mkdirs()) {
+            throw new IOException("Не удалось создать папку " + directory);
+        }
+
+        try (Writer writer = new OutputStreamWriter(new FileOutputStream(file), StandardCharsets.UTF_8)) {
+            for (long mask : usedMasks) {
+                writer.write(Long.toHexString(mask));
+                writer.write('\n');
+            }
+        }
+    }
+
+    /**
+     * Читает список масок, записанный {@link #writeUsedVariants(File)}. Если файла нет, то возвращается пустой список.
+     */
+    public static List<Long> readVariantList(File file) throws IOException {
+        List<Long> masks = new ArrayList<>();
+        if (! file.isFile()) {
+            return masks;
+        }
+
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                line = line.trim();
+                if (! line.isEmpty()) {
+                    try {
+                        masks.add(Long.parseUnsignedLong(line, 16));
+                    } catch (NumberFormatException ignored) {
+                    }
+                }
+            }
+        }
+        return masks;
+    }
+
+    public int getCountCachedVariants() {
+        return variants.size();
+    }
+
+    /**
+     * Количество скомпилированных вариантов. Варианты, взятые из кэша бинарников, не считаются.
+     */
+    public int getCountCompiled() {
+        return countCompiled;
+    }
+
+    public int getCountHits() {
+        return countHits;
+    }
+
+    public int getCountEvicted() {
+        return countEvicted;
+    }
+
+    public void printStatistics() {
+        System.out.println("Shader permutations " + name + ": cached " + variants.size() + ", compiled " + countCompiled + ", hits " + countHits + ", evicted " + countEvicted);
+    }
+
+    /**
+     * Удаляет все скомпилированные варианты.
+     */
+    public void delete() {
+        for (ShaderProgram program : variants.values()) {
+            program.deleteProgram();
+        }
+        variants.clear();
+    }
+
+
+    private ShaderProgram compileVariant(long mask) {
+        Map<String, String> defines = getDefines(mask);
+        ShaderSource vertexSource;
+        ShaderSource fragmentSource;
+        try {
+            vertexSource = preprocessor.process(vertexShaderLocation, defines);
+            fragmentSource = preprocessor.process(fragmentShaderLocation, defines);
+        } catch (IOException e) {
+            throw new RuntimeException("Не удалось загрузить шейдеры " + getVariantName(mask), e);
+        }
+
+        Shader vertexShader = new Shader(GL20.GL_VERTEX_SHADER, vertexSource.getCode());
+        Shader fragmentShader = new Shader(GL20.GL_FRAGMENT_SHADER, fragmentSource.getCode());
+        try {
+            ShaderProgram program = new ShaderProgram();
+            bindAttributeLocations(program);
+            //при попадании в кэш бинарников шейдеры не компилируются.
+            if (! program.linkProgram(binaryCache, vertexShader, fragmentShader)) {
+                String infoLog;
+                if (! vertexShader.isCompile()) {
+                    infoLog = "вершинный шейдер: " + vertexSource.mapInfoLog(vertexShader.getInfoLog());
+                } else if (! fragmentShader.isCompile()) {
+                    infoLog = "фрагментный шейдер: " + fragmentSource.mapInfoLog(fragmentShader.getInfoLog());
+                } else {
+                    infoLog = program.getInfoLog();
+                }
+                program.deleteProgram();
+                throw new RuntimeException("Не удалось собрать программу " + getVariantName(mask) + ": " + infoLog);
+            }
+
+            program.detachAllShader();
+            //как и в prewarm, варианты из кэша бинарников скомпилированными не считаются.
+            if (! program.isLoadedFromCache()) {
+                countCompiled++;
+            }
+            return program;
+        } finally {
+            //шейдеры после линковки больше не нужны.
+            vertexShader.deleteShader();
+            fragmentShader.deleteShader();
+        }
+    }
+
+    private void putVariant(long mask, ShaderProgram program) {
+        variants.put(mask, program);
+
+        while (variants.size() > maxCachedVariants) {
+            Iterator<ShaderProgram> iterator = variants.values().iterator();
+            ShaderProgram evicted = iterator.next();
+            iterator.remove();
+            evicted.deleteProgram();
+            countEvicted++;
+        }
+    }
+
+    private void bindAttributeLocations(ShaderProgram program) {
+        for (Map.Entry<String, Integer> entry : attributeLocations.entrySet()) {
+            program.bindAttribLocation(entry.getValue(), entry.getKey());
+        }
+    }
+
+    private Map<String, String> getDefines(long mask) {
+        Map<String, String> defines = new HashMap<>();
+        for (int i = 0; i < keywords.length; i++) {
+            if ((mask & (1L << i)) != 0) {
+                defines.put(keywords[i], "");
+            }
+        }
+        return defines;
+    }
+
+    private String getVariantName(long mask) {
+        StringBuilder sb = new StringBuilder(name).append('[');
+        boolean isFirst = true;
+        for (int i = 0; i < keywords.length; i++) {
+            if ((mask & (1L << i)) != 0) {
+                if (! isFirst) {
+                    sb.append(' ');
+                }
+                sb.append(keywords[i]);
+                isFirst = false;
+            }
+        }
+        return sb.append(']').toString();
+    }
+
+    private long getAllKeywordsMask() {
+        return keywords.length == 64 ? -1L : (1L << keywords.length) - 1;
+    }
+
+    private void checkMask(long mask) {
+        if ((mask & ~getAllKeywordsMask()) != 0) {
+            throw new IllegalArgumentException("Маска " + Long.toHexString(mask) + " содержит биты без ключевых слов набора " + name + ".");
+        }
+    }
+
+}
@@ -0,0 +1,286 @@
+package ru.somber.clientutil.opengl;
+
+import cpw.mods.fml.relauncher.Side;
+import cpw.mods.fml.relauncher.SideOnly;
+import net.minecraft.client.Minecraft;
+import net.minecraft.util.ResourceLocation;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+/**
+ * Препроцессор исходников шейдеров.
+ * <ul>
+ *     <li>{@code #include "file.glsl"} - путь относительно текущего файла, {@code #include "domain:path/file.glsl"} - полный путь.
+ *     Каждый файл подключается в один шейдер только один раз (как с #pragma once), поэтому циклические подключения не ломают сборку.</li>
+ *     <li>define'ы для перестановок добавляются сразу после #version.</li>
+ *     <li>Для каждой строки результата запоминается файл и строка исходника (см. {@link ShaderSource#mapInfoLog(String)}).</li>
+ * </ul>
+ * Каждый файл читается один раз, а собранные шейдеры кэшируются по файлу и набору define'ов,
+ * поэтому сборка N перестановок одного шейдера не читает файлы повторно.
+ * После перезагрузки ресурсов (смены ресурспака) кэш нужно сбросить через {@link #clearCache()}
+ * (общий препроцессор {@link OpenGLUtils#getShaderPreprocessor()} сбрасывается сам).
+ */
+@SideOnly(Side.CLIENT)
+public class ShaderPreprocessor {
+    private static final String INCLUDE_DIRECTIVE = "#include";
+    private static final String VERSION_DIRECTIVE = "#version";
+
+    private final SourceLoader loader;
+
+    /** Текст прочитанных файлов. Ключ - "домен:путь". */
+    private final Map<String, String> fileCache;
+    /** Шейдеры с подставленными подключениями, но без define'ов. */
+    private final Map<String, ExpandedUnit> expandedCache;
+    /** Готовые шейдеры. Ключ - "домен:путь" и отсортированный набор define'ов. */
+    private final Map<String, ShaderSource> sourceCache;
+
+    private int countFileReads;
+
+
+    /**
+     * Препроцессор, который читает файлы через менеджер ресурсов майнкрафта.
+     */
+    public ShaderPreprocessor() {
+        this(ShaderPreprocessor::readResource);
+    }
+
+    public ShaderPreprocessor(SourceLoader loader) {
+        this.loader = loader;
+        this.fileCache = new HashMap<>();
+        this.expandedCache = new HashMap<>();
+        this.sourceCache = new HashMap<>();
+    }
+
+    public ShaderSource process(ResourceLocation location) throws IOException {
+        return process(location, Collections.emptyMap());
+    }
+
+    /**
+     * Собирает шейдер из файла location с define'ами defines (значение может быть пустым или null - тогда просто "#define NAME").
+     */
+    public synchronized ShaderSource process(ResourceLocation location, Map<String, String> defines) throws IOException {
+        SortedMap<String, String> sortedDefines = new TreeMap<>(defines);
+        String name = getName(location);
+        String key = name + "|" + sortedDefines;
+
+        ShaderSource source = sourceCache.get(key);
+        if (source == null) {
+            ExpandedUnit unit = expandedCache.get(name);
+            if (unit == null) {
+                unit = expand(location);
+                expandedCache.put(name, unit);
+            }
+
+            source = unit.toSource(sortedDefines);
+            sourceCache.put(key, source);
+        }
+        return source;
+    }
+
+    /**
+     * Сбрасывает все кэши, следующие сборки заново прочитают файлы.
+     */
+    public synchronized void clearCache() {
+        fileCache.clear();
+        expandedCache.clear();
+        sourceCache.clear();
+    }
+
+    /**
+     * Количество чтений файлов с момента создания препроцессора.
+     */
+    public int getCountFileReads() {
+        return countFileReads;
+    }
+
+    /**
+     * Читает ресурс целиком в строку (UTF-8).
+     */
+    public static String readResource(ResourceLocation location) throws IOException {
+        try (InputStream input = Minecraft.getMinecraft().getResourceManager().getResource(location).getInputStream()) {
+            ByteArrayOutputStream output = new ByteArrayOutputStream(Math.max(input.available(), 4096));
+            byte[] buffer = new byte[8192];
+            int count;
+            while ((count = input.read(buffer)) > 0) {
+                output.write(buffer, 0, count);
+            }
+            return new String(output.toByteArray(), StandardCharsets.UTF_8);
+        }
+    }
+
+
+    private ExpandedUnit expand(ResourceLocation root) throws IOException {
+        ExpandedUnit unit = new ExpandedUnit();
+        expandFile(unit, root, true);
+        return unit;
+    }
+
+    private void expandFile(ExpandedUnit unit, ResourceLocation location, boolean isRoot) throws IOException {
+        String name = getName(location);
+        if (unit.fileNames.contains(name)) {
+            return;
+        }
+        unit.fileNames.add(name);
+        int fileIndex = unit.fileNames.size() - 1;
+
+        String text = readFile(location, name);
+        int lineNumber = 0;
+        int start = 0;
+        while (start <= text.length()) {
+            int end = text.indexOf('\n', start);
+            if (end < 0) {
+                end = text.length();
+                if (start == end) {
+                    break;
+                }
+            }
+            lineNumber++;
+
+            String line = text.substring(start, end > start && text.charAt(end - 1) == '\r' ? end - 1 : end);
+            String trimmed = line.trim();
+            start = end + 1;
+
+            if (trimmed.startsWith(INCLUDE_DIRECTIVE)) {
+                ResourceLocation include = resolveInclude(location, trimmed, name, lineNumber);
+                expandFile(unit, include, false);
+            } else if (trimmed.startsWith(VERSION_DIRECTIVE)) {
+                if (! isRoot || unit.versionLine != null) {
+                    throw new IllegalArgumentException(name + ":" + lineNumber + ": #version может быть только в начале основного файла.");
+                }
+                unit.versionLine = line;
+                unit.versionSourceLine = lineNumber;
+            } else if (trimmed.equals("#pragma once")) {
+                //все файлы и так подключаются один раз.
+            } else {
+                unit.addLine(line, fileIndex, lineNumber);
+            }
+        }
+    }
+
+    private String readFile(ResourceLocation location, String name) throws IOException {
+        String text = fileCache.get(name);
+        if (text == null) {
+            text = loader.load(location);
+            fileCache.put(name, text);
+            countFileReads++;
+        }
+        return text;
+    }
+
+    /**
+     * Разбирает строку #include и возвращает подключаемый файл.
+     */
+    private static ResourceLocation resolveInclude(ResourceLocation current, String directive, String currentName, int lineNumber) {
+        String argument = directive.substring(INCLUDE_DIRECTIVE.length()).trim();
+        if (argument.length() < 2 ||
+                ! ((argument.charAt(0) == '"' && argument.charAt(argument.length() - 1) == '"') ||
+                   (argument.charAt(0) == '<' && argument.charAt(argument.length() - 1) == '>'))) {
+            throw new IllegalArgumentException(currentName + ":" + lineNumber + ": неверный #include: " + directive);
+        }
+        String path = argument.substring(1, argument.length() - 1);
+
+        if (path.indexOf(':') >= 0) {
+            return new ResourceLocation(path);
+        }
+
+        String currentPath = current.getResourcePath();
+        int slash = currentPath.lastIndexOf('/');
+        String directory = slash >= 0 ? currentPath.substring(0, slash + 1) : "";
+        return new ResourceLocation(current.getResourceDomain(), normalizePath(directory + path));
+    }
+
+    /**
+     * Убирает из пути "./" и "../".
+     */
+    private static String normalizePath(String path) {
+        Deque<String> parts = new ArrayDeque<>();
+        for (String part : path.split("/")) {
+            if (part.isEmpty() || part.equals(".")) {
+                continue;
+            }
+            if (part.equals("..")) {
+                parts.pollLast();
+            } else {
+                parts.addLast(part);
+            }
+        }
+        return String.join("/", parts);
+    }
+
+    private static String getName(ResourceLocation location) {
+        return location.getResourceDomain() + ":" + location.getResourcePath();
+    }
+
+
+    /**
+     * Загрузчик текста файла шейдера.
+     */
+    public interface SourceLoader {
+        String load(ResourceLocation location) throws IOException;
+    }
+
+
+    /**
+     * Файл с подставленными подключениями. Не зависит от define'ов, поэтому общий для всех перестановок.
+     */
+    private static final class ExpandedUnit {
+        private final List<String> fileNames = new ArrayList<>();
+        private final List<String> lines = new ArrayList<>();
+        private int[] sourceFiles = new int[64];
+        private int[] sourceLines = new int[64];
+
+        private String versionLine;
+        private int versionSourceLine;
+
+        private void addLine(String line, int fileIndex, int lineNumber) {
+            int index = lines.size();
+            if (index == sourceFiles.length) {
+                sourceFiles = Arrays.copyOf(sourceFiles, index * 2);
+                sourceLines = Arrays.copyOf(sourceLines, index * 2);
+            }
+            lines.add(line);
+            sourceFiles[index] = fileIndex;
+            sourceLines[index] = lineNumber;
+        }
+
+        private ShaderSource toSource(SortedMap<String, String> defines) {
+            int countLines = lines.size() + defines.size() + (versionLine != null ? 1 : 0);
+            int[] resultFiles = new int[countLines];
+            int[] resultLines = new int[countLines];
+            StringBuilder sb = new StringBuilder(lines.size() * 32 + defines.size() * 32);
+
+            int index = 0;
+            if (versionLine != null) {
+                sb.append(versionLine).append('\n');
+                resultFiles[index] = 0;
+                resultLines[index] = versionSourceLine;
+                index++;
+            }
+
+            for (Map.Entry<String, String> define : defines.entrySet()) {
+                sb.append("#define ").append(define.getKey());
+                if (define.getValue() != null && ! define.getValue().isEmpty()) {
+                    sb.append(' ').append(define.getValue());
+                }
+                sb.append('\n');
+                resultFiles[index] = -1;
+                resultLines[index] = index + 1;
+                index++;
+            }
+
+            for (int i = 0; i < lines.size(); i++) {
+                sb.append(lines.get(i)).append('\n');
+                resultFiles[index] = sourceFiles[i];
+                resultLines[index] = sourceLines[i];
+                index++;
+            }
+
+            return new ShaderSource(sb.toString(), fileNames.toArray(new String[0]), resultFiles, resultLines);
+        }
+    }
+
+}
@@ -4,20 +4,40 @@ import cpw.mods.fml.relauncher.Side;
 import cpw.mods.fml.relauncher.SideOnly;
 import org.lwjgl.opengl.GL11;
 import org.lwjgl.opengl.GL20;
+import org.lwjgl.opengl.GL41;
 
-import java.util.ArrayList;
-import java.util.List;
-import java.util.Objects;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.util.*;
 
 @SideOnly(Side.CLIENT)
 public class ShaderProgram {
 
+    private static final ShaderUniform[] EMPTY_UNIFORMS = new ShaderUniform[0];
+
     private int shaderProgramID;
     private List<Shader> attachShaders;
+    /** Привязки атрибутов, заданные через {@link #bindAttribLocation(int, String)}: имя -> номер. Входят в ключ кэша бинарников. */
+    private Map<String, Integer> attribLocations;
+    /** Флаг того, что при последней сборке через кэш бинарник был взят из кэша. */
+    private boolean isLoadedFromCache;
+
+    /** Активные uniform-переменные после последней линковки. Индекс в массиве - дескриптор переменной. */
+    private ShaderUniform[] uniforms;
+    /** Имя переменной -> дескриптор. Для массивов есть и имя "name", и имя "name[0]". */
+    private Map<String, Integer> uniformHandles;
+    /** Флаг того, что список переменных соответствует последней линковке. */
+    private boolean isUniformsIntrospected;
+
+    private int countUniformUploads;
+    private int countUniformSkips;
 
     public ShaderProgram() {
         shaderProgramID = GL20.glCreateProgram();
         attachShaders = new ArrayList<>();
+        attribLocations = new TreeMap<>();
+        uniforms = EMPTY_UNIFORMS;
+        uniformHandles = new HashMap<>();
     }
 
     public boolean attachShader(Shader shader) {
@@ -29,6 +49,14 @@ public class ShaderProgram {
         return true;
     }
 
+    /**
+     * Прикрепляет шейдер без проверки статуса компиляции, чтобы не заставлять драйвер дожидаться ее окончания.
+     */
+    void attachShaderDeferred(Shader shader) {
+        GL20.glAttachShader(shaderProgramID, shader.getShaderID());
+        attachShaders.add(shader);
+    }
+
     public void detachShader(Shader shader) {
         GL20.glDetachShader(shaderProgramID, shader.getShaderID());
         attachShaders.remove(shader);
@@ -38,9 +66,90 @@ public class ShaderProgram {
         attachShaders.forEach((Shader shader) -> { GL20.glDetachShader(shaderProgramID, shader.getShaderID()); });
     }
 
+    /**
+     * glBindAttribLocation с запоминанием привязки. Действует со следующей линковки.
+     * Привязки входят в ключ кэша бинарников, поэтому для программ, которые линкуются через кэш, атрибуты нужно привязывать здесь.
+     */
+    public void bindAttribLocation(int index, String name) {
+        GL20.glBindAttribLocation(shaderProgramID, index, name);
+        attribLocations.put(name, index);
+    }
+
+    public Map<String, Integer> getAttribLocations() {
+        return Collections.unmodifiableMap(attribLocations);
+    }
+
     public boolean linkProgram() {
+        startLink();
+
+        boolean isLink = isLink();
+        if (isLink) {
+            onLinked();
+        }
+        return isLink;
+    }
+
+    /**
+     * Отправляет программу на линковку, не дожидаясь ее окончания (статус линковки не запрашивается).
+     * Список uniform-переменных будет получен при первом обращении к нему.
+     */
+    public void startLink() {
         GL20.glLinkProgram(shaderProgramID);
-        return isLink();
+        isUniformsIntrospected = false;
+    }
+
+    /**
+     * Собирает программу из шейдеров через кэш бинарников. Шейдерам нужен исходный код, прикреплять их заранее не нужно.
+     * Ключ считается по исходникам и привязкам атрибутов ({@link #bindAttribLocation(int, String)}) до компиляции,
+     * поэтому если в кэше есть подходящий бинарник, то шейдеры не компилируются и не прикрепляются, а программа не линкуется.
+     * Иначе еще не скомпилированные шейдеры компилируются, прикрепляются, программа линкуется и ее бинарник сохраняется в кэш.
+     * Если кэш не поддерживается драйвером (или cache == null), то это обычная компиляция и {@link #linkProgram()}.
+     * <p>
+     * Возвращает false, если шейдер не скомпилировался (лог - в {@link Shader#getInfoLog()}) или программа не слинковалась.
+     * Остальное состояние до линковки (glBindFragDataLocation, glTransformFeedbackVaryings) в ключ не входит -
+     * для одинаковых исходников оно должно быть одинаковым.
+     */
+    public boolean linkProgram(ShaderProgramBinaryCache cache, Shader... shaders) {
+        boolean isCacheUsed = cache != null && ShaderProgramBinaryCache.isSupported();
+        String key = null;
+        isLoadedFromCache = false;
+        if (isCacheUsed) {
+            key = cache.getCacheKey(shaders, attribLocations);
+            if (cache.load(this, key)) {
+                isLoadedFromCache = true;
+                onLinked();
+                return true;
+            }
+            GL41.glProgramParameteri(shaderProgramID, GL41.GL_PROGRAM_BINARY_RETRIEVABLE_HINT, GL11.GL_TRUE);
+        }
+
+        //сначала все шейдеры отправляются на компиляцию, чтобы драйвер мог компилировать их параллельно.
+        boolean[] isCompiled = new boolean[shaders.length];
+        for (int i = 0; i < shaders.length; i++) {
+            isCompiled[i] = shaders[i].isCompile();
+            if (! isCompiled[i]) {
+                shaders[i].startCompile();
+            }
+        }
+        for (int i = 0; i < shaders.length; i++) {
+            if (! isCompiled[i] && ! shaders[i].isCompile()) {
+                return false;
+            }
+            attachShaderDeferred(shaders[i]);
+        }
+
+        boolean isLink = linkProgram();
+        if (isLink && isCacheUsed) {
+            cache.store(this, key);
+        }
+        return isLink;
+    }
+
+    /**
+     * Был ли при последнем {@link #linkProgram(ShaderProgramBinaryCache, Shader...)} взят бинарник из кэша (без компиляции и линковки).
+     */
+    public boolean isLoadedFromCache() {
+        return isLoadedFromCache;
     }
 
     public int getLinkStatus() {
@@ -58,6 +167,129 @@ public class ShaderProgram {
         return message;
     }
 
+    /**
+     * Возвращает дескриптор uniform-переменной по имени или -1, если такой активной переменной нет.
+     * Дескриптор стоит получить один раз после линковки и дальше передавать в setUniform*, чтобы не искать переменную по строке.
+     * Дескрипторы действительны до следующей линковки.
+     */
+    public int getUniformHandle(String name) {
+        introspectUniforms();
+
+        Integer handle = uniformHandles.get(name);
+        return handle == null ? -1 : handle;
+    }
+
+    public ShaderUniform getUniform(int handle) {
+        introspectUniforms();
+        return uniforms[handle];
+    }
+
+    public int getCountUniforms() {
+        introspectUniforms();
+        return uniforms.length;
+    }
+
+    /**
+     * Сбрасывает копии значений всех uniform-переменных. Нужно, если значения менялись в обход setUniform*
+     * (например, напрямую через glUniform*).
+     */
+    public void invalidateUniforms() {
+        for (ShaderUniform uniform : uniforms) {
+            uniform.invalidate();
+        }
+    }
+
+    /*
+     * Установка значений uniform-переменных по дескриптору. Программа должна быть активна.
+     * Если значение не изменилось с прошлой установки, то glUniform* не вызывается.
+     * Дескриптор -1 (переменной нет или она удалена компилятором) игнорируется, как и location -1 в OpenGL.
+     */
+
+    public void setUniform(int handle, float x) {
+        if (handle >= 0) {
+            countUpload(uniforms[handle].set(x));
+        }
+    }
+
+    public void setUniform(int handle, float x, float y) {
+        if (handle >= 0) {
+            countUpload(uniforms[handle].set(x, y));
+        }
+    }
+
+    public void setUniform(int handle, float x, float y, float z) {
+        if (handle >= 0) {
+            countUpload(uniforms[handle].set(x, y, z));
+        }
+    }
+
+    public void setUniform(int handle, float x, float y, float z, float w) {
+        if (handle >= 0) {
+            countUpload(uniforms[handle].set(x, y, z, w));
+        }
+    }
+
+    /**
+     * Для int, bool, uint и сэмплеров.
+     */
+    public void setUniform(int handle, int x) {
+        if (handle >= 0) {
+            countUpload(uniforms[handle].set(x));
+        }
+    }
+
+    public void setUniform(int handle, int x, int y) {
+        if (handle >= 0) {
+            countUpload(uniforms[handle].set(x, y));
+        }
+    }
+
+    public void setUniform(int handle, int x, int y, int z) {
+        if (handle >= 0) {
+            countUpload(uniforms[handle].set(x, y, z));
+        }
+    }
+
+    public void setUniform(int handle, int x, int y, int z, int w) {
+        if (handle >= 0) {
+            countUpload(uniforms[handle].set(x, y, z, w));
+        }
+    }
+
+    /**
+     * Для векторов, матриц (по столбцам) и массивов. Загружаются значения от position до limit, позиция буфера не меняется.
+     */
+    public void setUniform(int handle, FloatBuffer values) {
+        if (handle >= 0) {
+            countUpload(uniforms[handle].set(values));
+        }
+    }
+
+    public void setUniform(int handle, IntBuffer values) {
+        if (handle >= 0) {
+            countUpload(uniforms[handle].set(values));
+        }
+    }
+
+    /**
+     * Количество вызовов glUniform* через setUniform*.
+     */
+    public int getCountUniformUploads() {
+        return countUniformUploads;
+    }
+
+    /**
+     * Количество вызовов setUniform*, которые не дошли до OpenGL, потому что значение не изменилось.
+     */
+    public int getCountUniformSkips() {
+        return countUniformSkips;
+    }
+
+    public void resetUniformCounters() {
+        countUniformUploads = 0;
+        countUniformSkips = 0;
+    }
+
     public Shader[] getAttachShaders() {
         return attachShaders.toArray(new Shader[0]);
     }
@@ -68,6 +300,11 @@ public class ShaderProgram {
 
     public void deleteProgram() {
         GL20.glDeleteProgram(shaderProgramID);
+        GLStateCache.onProgramDeleted(shaderProgramID);
+
+        uniforms = EMPTY_UNIFORMS;
+        uniformHandles.clear();
+        isUniformsIntrospected = true;
     }
 
     public void printInfoLogMessage() {
@@ -76,6 +313,68 @@ public class ShaderProgram {
         }
     }
 
+
+    /**
+     * Вызывается после успешной линковки (в том числе загрузки бинарника из кэша).
+     * Привязывает uniform-блоки к зарегистрированным точкам привязки ({@link UniformBuffer}) и получает список uniform-переменных.
+     */
+    void onLinked() {
+        UniformBuffer.applyBlockBindings(shaderProgramID);
+
+        isUniformsIntrospected = false;
+        introspectUniforms();
+    }
+
+    /**
+     * Получает список активных uniform-переменных. Значения всех переменных после линковки равны нулю.
+     */
+    private void introspectUniforms() {
+        if (isUniformsIntrospected) {
+            return;
+        }
+        isUniformsIntrospected = true;
+        uniformHandles.clear();
+
+        if (! isLink()) {
+            uniforms = EMPTY_UNIFORMS;
+            return;
+        }
+
+        int countActive = GL20.glGetProgrami(shaderProgramID, GL20.GL_ACTIVE_UNIFORMS);
+        int maxNameLength = GL20.glGetProgrami(shaderProgramID, GL20.GL_ACTIVE_UNIFORM_MAX_LENGTH);
+
+        List<ShaderUniform> uniformList = new ArrayList<>(countActive);
+        for (int i = 0; i < countActive; i++) {
+            String name = GL20.glGetActiveUniform(shaderProgramID, i, maxNameLength);
+            int arraySize = GL20.glGetActiveUniformSize(shaderProgramID, i);
+            int type = GL20.glGetActiveUniformType(shaderProgramID, i);
+            int location = GL20.glGetUniformLocation(shaderProgramID, name);
+
+            //переменные из uniform-блоков не имеют location и задаются через буфер.
+            if (location < 0) {
+                continue;
+            }
+
+            String baseName = name.endsWith("[0]") ? name.substring(0, name.length() - 3) : name;
+            int handle = uniformList.size();
+            uniformList.add(new ShaderUniform(baseName, type, location, arraySize));
+            uniformHandles.put(baseName, handle);
+            if (! baseName.equals(name)) {
+                uniformHandles.put(name, handle);
+            }
+        }
+
+        uniforms = uniformList.toArray(EMPTY_UNIFORMS);
+    }
+
+    private void countUpload(boolean isUploaded) {
+        if (isUploaded) {
+            countUniformUploads++;
+        } else {
+            countUniformSkips++;
+        }
+    }
+
     @Override
     public boolean equals(Object o) {
         if (this == o) return true;
@@ -0,0 +1,257 @@
+package ru.somber.clientutil.opengl;
+
+import cpw.mods.fml.common.Loader;
+import cpw.mods.fml.relauncher.Side;
+import cpw.mods.fml.relauncher.SideOnly;
+import org.lwjgl.BufferUtils;
+import org.lwjgl.opengl.ContextCapabilities;
+import org.lwjgl.opengl.GL11;
+import org.lwjgl.opengl.GL20;
+import org.lwjgl.opengl.GL41;
+import org.lwjgl.opengl.GLContext;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collections;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Дисковый кэш бинарников слинкованных шейдерных программ (GL_ARB_get_program_binary).
+ * Ключ записи - хэш исходников шейдеров программы, привязок атрибутов и строки драйвера (производитель, видеокарта, версия),
+ * поэтому после обновления драйвера или изменения шейдера запись просто перестает находиться.
+ * <p>
+ * Если бинарник поврежден или драйвер его не принял, то запись удаляется, а программа линкуется обычным образом
+ * (см. {@link ShaderProgram#linkProgram(ShaderProgramBinaryCache, Shader...)}).
+ */
+@SideOnly(Side.CLIENT)
+public class ShaderProgramBinaryCache {
+    /** "SPBC" - метка в начале файла кэша. */
+    private static final int FILE_MAGIC = 0x53504243;
+    /** Версия формата файла. При изменении формата старые файлы перестают читаться. */
+    private static final int FILE_VERSION = 1;
+    private static final String FILE_EXTENSION = ".bin";
+
+    private File cacheDirectory;
+    /** Строка драйвера, которая входит в ключ. Запрашивается при первом использовании. */
+    private String driverString;
+
+    private int countHits;
+    private int countMisses;
+    /** Количество записей, которые были прочитаны, но оказались повреждены или не приняты драйвером. */
+    private int countRejected;
+    private int countStored;
+
+
+    public ShaderProgramBinaryCache(File cacheDirectory) {
+        this.cacheDirectory = cacheDirectory;
+    }
+
+    /**
+     * Создает кэш в папке config/somber_util/shader_cache.
+     */
+    public static ShaderProgramBinaryCache createDefault() {
+        return new ShaderProgramBinaryCache(new File(Loader.instance().getConfigDir(), "somber_util" + File.separator + "shader_cache"));
+    }
+
+    /**
+     * Проверяет, что драйвер умеет отдавать и принимать бинарники программ.
+     */
+    public static boolean isSupported() {
+        ContextCapabilities capabilities = GLContext.getCapabilities();
+        if (! capabilities.OpenGL41 && ! capabilities.GL_ARB_get_program_binary) {
+            return false;
+        }
+        return GL11.glGetInteger(GL41.GL_NUM_PROGRAM_BINARY_FORMATS) > 0;
+    }
+
+    public File getCacheDirectory() {
+        return cacheDirectory;
+    }
+
+    /**
+     * Считает ключ записи для набора шейдеров (в порядке прикрепления) без привязок атрибутов.
+     */
+    public String getCacheKey(Shader[] shaders) {
+        return getCacheKey(shaders, Collections.emptyMap());
+    }
+
+    /**
+     * Считает ключ записи для набора шейдеров (в порядке прикрепления) и привязок атрибутов (имя -> номер).
+     * Считается по исходному коду, шейдеры для этого компилировать не нужно.
+     */
+    public String getCacheKey(Shader[] shaders, Map<String, Integer> attribLocations) {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        }
+
+        digest.update(getDriverString().getBytes(StandardCharsets.UTF_8));
+        for (Shader shader : shaders) {
+            digest.update((byte) 0);
+            digest.update(Integer.toString(shader.getShaderType()).getBytes(StandardCharsets.UTF_8));
+            digest.update((byte) 0);
+            if (shader.getSourceCode() != null) {
+                digest.update(shader.getSourceCode().getBytes(StandardCharsets.UTF_8));
+            }
+        }
+        //порядок привязок не должен влиять на ключ.
+        for (Map.Entry<String, Integer> entry : new TreeMap<>(attribLocations).entrySet()) {
+            digest.update((byte) 0);
+            digest.update((entry.getKey() + '=' + entry.getValue()).getBytes(StandardCharsets.UTF_8));
+        }
+
+        StringBuilder sb = new StringBuilder();
+        for (byte b : digest.digest()) {
+            sb.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Пытается загрузить в программу бинарник из кэша. Возвращает true, если программа после этого слинкована.
+     */
+    public boolean load(ShaderProgram program, String key) {
+        File file = getCacheFile(key);
+        if (! file.isFile()) {
+            countMisses++;
+            return false;
+        }
+
+        try (DataInputStream input = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            if (input.readInt() != FILE_MAGIC || input.readInt() != FILE_VERSION) {
+                throw new IOException("Неизвестный формат файла.");
+            }
+
+            int binaryFormat = input.readInt();
+            int length = input.readInt();
+            if (length <= 0 || length > file.length()) {
+                throw new IOException("Неверная длина бинарника: " + length);
+            }
+
+            byte[] bytes = new byte[length];
+            input.readFully(bytes);
+
+            ByteBuffer binary = BufferUtils.createByteBuffer(length);
+            binary.put(bytes);
+            binary.flip();
+
+            GL41.glProgramBinary(program.getShaderProgramID(), binaryFormat, binary);
+        } catch (IOException e) {
+            rejectEntry(file);
+            return false;
+        }
+
+        if (! program.isLink()) {
+            //драйвер не принял бинарник (например, он от другой версии драйвера с той же строкой).
+            rejectEntry(file);
+            return false;
+        }
+
+        countHits++;
+        return true;
+    }
+
+    /**
+     * Сохраняет бинарник слинкованной программы в кэш. Ошибки записи игнорируются, кэш - не критичная вещь.
+     * Перед линковкой программе должен быть выставлен GL_PROGRAM_BINARY_RETRIEVABLE_HINT.
+     */
+    public void store(ShaderProgram program, String key) {
+        int programID = program.getShaderProgramID();
+        int length = GL20.glGetProgrami(programID, GL41.GL_PROGRAM_BINARY_LENGTH);
+        if (length <= 0) {
+            return;
+        }
+
+        ByteBuffer binary = BufferUtils.createByteBuffer(length);
+        IntBuffer lengthBuffer = BufferUtils.createIntBuffer(1);
+        IntBuffer formatBuffer = BufferUtils.createIntBuffer(1);
+        GL41.glGetProgramBinary(programID, lengthBuffer, formatBuffer, binary);
+
+        int writtenLength = lengthBuffer.get(0);
+        byte[] bytes = new byte[writtenLength];
+        binary.get(bytes, 0, writtenLength);
+
+        if (! cacheDirectory.isDirectory() && ! cacheDirectory.mkdirs()) {
+            return;
+        }
+
+        File file = getCacheFile(key);
+        File tempFile = new File(cacheDirectory, key + ".tmp");
+        try (DataOutputStream output = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile)))) {
+            output.writeInt(FILE_MAGIC);
+            output.writeInt(FILE_VERSION);
+            output.writeInt(formatBuffer.get(0));
+            output.writeInt(writtenLength);
+            output.write(bytes);
+        } catch (IOException e) {
+            tempFile.delete();
+            return;
+        }
+
+        //пишем во временный файл и переименовываем, чтобы при вылете игры не остался недописанный файл.
+        file.delete();
+        if (tempFile.renameTo(file)) {
+            countStored++;
+        } else {
+            tempFile.delete();
+        }
+    }
+
+    /**
+     * Удаляет все записи кэша.
+     */
+    public void clear() {
+        File[] files = cacheDirectory.listFiles((dir, name) -> name.endsWith(FILE_EXTENSION));
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+    }
+
+    public int getCountHits() {
+        return countHits;
+    }
+
+    public int getCountMisses() {
+        return countMisses;
+    }
+
+    public int getCountRejected() {
+        return countRejected;
+    }
+
+    public int getCountStored() {
+        return countStored;
+    }
+
+    public void printStatistics() {
+        System.out.println("Shader binary cache: hits " + countHits + ", misses " + countMisses + ", rejected " + countRejected + ", stored " + countStored);
+    }
+
+
+    private String getDriverString() {
+        if (driverString == null) {
+            driverString = GL11.glGetString(GL11.GL_VENDOR) + "|" + GL11.glGetString(GL11.GL_RENDERER) + "|" + GL11.glGetString(GL11.GL_VERSION);
+        }
+        return driverString;
+    }
+
+    private File getCacheFile(String key) {
+        return new File(cacheDirectory, key + FILE_EXTENSION);
+    }
+
+    private void rejectEntry(File file) {
+        file.delete();
+        countRejected++;
+        countMisses++;
+    }
+
+}
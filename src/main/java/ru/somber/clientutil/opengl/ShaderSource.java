@@ -0,0 +1,83 @@
+package ru.somber.clientutil.opengl;
+
+import cpw.mods.fml.relauncher.Side;
+import cpw.mods.fml.relauncher.SideOnly;
+
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Исходный код шейдера после {@link ShaderPreprocessor}: подключенные файлы подставлены, define'ы добавлены.
+ * Хранит для каждой строки результата файл и строку, откуда она взята, чтобы переводить номера строк в ошибках компиляции.
+ */
+@SideOnly(Side.CLIENT)
+public class ShaderSource {
+    /**
+     * Номер строки в логе компилятора. Код отдается драйверу одной строкой, поэтому номер исходника всегда 0.
+     * Встречаются форматы "0(12)" (NVIDIA) и "0:12" (AMD, Intel, Mesa).
+     */
+    private static final Pattern LOG_LINE_PATTERN = Pattern.compile("\\b0(?:\\((\\d+)\\)|:(\\d+))");
+
+    private final String code;
+    /** Имена файлов (домен:путь), на которые ссылается sourceFiles. */
+    private final String[] fileNames;
+    /** Для каждой строки результата (с нуля) - индекс файла в fileNames или -1 для добавленных строк. */
+    private final int[] sourceFiles;
+    /** Для каждой строки результата (с нуля) - номер строки в исходном файле (с единицы). */
+    private final int[] sourceLines;
+
+
+    ShaderSource(String code, String[] fileNames, int[] sourceFiles, int[] sourceLines) {
+        this.code = code;
+        this.fileNames = fileNames;
+        this.sourceFiles = sourceFiles;
+        this.sourceLines = sourceLines;
+    }
+
+    public String getCode() {
+        return code;
+    }
+
+    public int getCountLines() {
+        return sourceLines.length;
+    }
+
+    /**
+     * Возвращает "домен:путь:строка" для строки результата line (с единицы, как в логе компилятора).
+     */
+    public String getSourceLocation(int line) {
+        int index = line - 1;
+        if (index < 0 || index >= sourceLines.length) {
+            return "?:" + line;
+        }
+        if (sourceFiles[index] < 0) {
+            return "<preprocessor>:" + line;
+        }
+        return fileNames[sourceFiles[index]] + ":" + sourceLines[index];
+    }
+
+    /**
+     * Заменяет в логе компилятора номера строк результата на файлы и строки исходников.
+     */
+    public String mapInfoLog(String infoLog) {
+        if (infoLog == null || infoLog.isEmpty()) {
+            return infoLog;
+        }
+
+        Matcher matcher = LOG_LINE_PATTERN.matcher(infoLog);
+        StringBuffer sb = new StringBuffer(infoLog.length() + 64);
+        while (matcher.find()) {
+            String lineGroup = matcher.group(1) != null ? matcher.group(1) : matcher.group(2);
+            int line = Integer.parseInt(lineGroup);
+            matcher.appendReplacement(sb, Matcher.quoteReplacement(getSourceLocation(line)));
+        }
+        matcher.appendTail(sb);
+        return sb.toString();
+    }
+
+    @Override
+    public String toString() {
+        return code;
+    }
+
+}
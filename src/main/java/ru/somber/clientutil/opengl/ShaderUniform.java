@@ -0,0 +1,413 @@
+package ru.somber.clientutil.opengl;
+
+import cpw.mods.fml.relauncher.Side;
+import cpw.mods.fml.relauncher.SideOnly;
+import org.lwjgl.opengl.GL11;
+import org.lwjgl.opengl.GL20;
+import org.lwjgl.opengl.GL21;
+import org.lwjgl.opengl.GL30;
+
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.util.Arrays;
+
+/**
+ * Активная uniform-переменная слинкованной шейдерной программы (см. {@link ShaderProgram#getUniform(int)}).
+ * Хранит копию последнего загруженного значения, чтобы не вызывать glUniform* с тем же самым значением.
+ * После линковки значение может быть задано инициализатором в GLSL, поэтому копия изначально недействительна
+ * и первая установка значения всегда загружается.
+ */
+@SideOnly(Side.CLIENT)
+public class ShaderUniform {
+    /** Имя без суффикса [0] у массивов. */
+    private final String name;
+    private final int type;
+    private final int location;
+    private final int arraySize;
+    /** Количество компонент в одном элементе (для mat4 - 16). */
+    private final int components;
+    private final boolean isIntType;
+    /** uint и uvecN загружаются через glUniform*ui. */
+    private final boolean isUnsignedType;
+    /** Матрицы загружаются только из буфера через glUniformMatrix*. */
+    private final boolean isMatrixType;
+
+    /** Последнее загруженное значение (для целочисленных типов и сэмплеров хранится в intValues). */
+    private final float[] floatValues;
+    private final int[] intValues;
+    /** false - значение еще ни разу не загружалось (или сброшено), и копии верить нельзя. */
+    private boolean isUploaded;
+
+
+    ShaderUniform(String name, int type, int location, int arraySize) {
+        this.name = name;
+        this.type = type;
+        this.location = location;
+        this.arraySize = arraySize;
+        this.components = getComponents(type);
+        this.isIntType = isIntType(type);
+        this.isUnsignedType = type == GL11.GL_UNSIGNED_INT || type == GL30.GL_UNSIGNED_INT_VEC2 || type == GL30.GL_UNSIGNED_INT_VEC3 || type == GL30.GL_UNSIGNED_INT_VEC4;
+        this.isMatrixType = ! isIntType && components > 1 && getVectorType(components) != type;
+
+        if (isIntType) {
+            this.floatValues = null;
+            this.intValues = new int[components * arraySize];
+        } else {
+            this.floatValues = new float[components * arraySize];
+            this.intValues = null;
+        }
+        invalidate();
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Тип переменной (GL_FLOAT_VEC4, GL_SAMPLER_2D и т.п.).
+     */
+    public int getType() {
+        return type;
+    }
+
+    public int getLocation() {
+        return location;
+    }
+
+    public int getArraySize() {
+        return arraySize;
+    }
+
+    public int getComponents() {
+        return components;
+    }
+
+    /**
+     * Сбрасывает копию значения, чтобы следующая установка значения точно загрузила его.
+     */
+    public void invalidate() {
+        isUploaded = false;
+        if (isIntType) {
+            Arrays.fill(intValues, Integer.MIN_VALUE);
+        } else {
+            Arrays.fill(floatValues, Float.NaN);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "ShaderUniform{" +
+                "name='" + name + '\'' +
+                ", type=0x" + Integer.toHexString(type) +
+                ", location=" + location +
+                ", arraySize=" + arraySize +
+                '}';
+    }
+
+
+    boolean set(float x) {
+        checkType(false, 1);
+        if (isUploaded && floatValues[0] == x) {
+            return false;
+        }
+        floatValues[0] = x;
+        isUploaded = true;
+        GL20.glUniform1f(location, x);
+        return true;
+    }
+
+    boolean set(float x, float y) {
+        checkType(false, 2);
+        if (isUploaded && floatValues[0] == x && floatValues[1] == y) {
+            return false;
+        }
+        floatValues[0] = x;
+        isUploaded = true;
+        floatValues[1] = y;
+        GL20.glUniform2f(location, x, y);
+        return true;
+    }
+
+    boolean set(float x, float y, float z) {
+        checkType(false, 3);
+        if (isUploaded && floatValues[0] == x && floatValues[1] == y && floatValues[2] == z) {
+            return false;
+        }
+        floatValues[0] = x;
+        isUploaded = true;
+        floatValues[1] = y;
+        floatValues[2] = z;
+        GL20.glUniform3f(location, x, y, z);
+        return true;
+    }
+
+    boolean set(float x, float y, float z, float w) {
+        checkType(false, 4);
+        if (isUploaded && floatValues[0] == x && floatValues[1] == y && floatValues[2] == z && floatValues[3] == w) {
+            return false;
+        }
+        floatValues[0] = x;
+        isUploaded = true;
+        floatValues[1] = y;
+        floatValues[2] = z;
+        floatValues[3] = w;
+        GL20.glUniform4f(location, x, y, z, w);
+        return true;
+    }
+
+    boolean set(int x) {
+        checkType(true, 1);
+        if (isUploaded && intValues[0] == x) {
+            return false;
+        }
+        intValues[0] = x;
+        isUploaded = true;
+        if (isUnsignedType) {
+            GL30.glUniform1ui(location, x);
+        } else {
+            GL20.glUniform1i(location, x);
+        }
+        return true;
+    }
+
+    boolean set(int x, int y) {
+        checkType(true, 2);
+        if (isUploaded && intValues[0] == x && intValues[1] == y) {
+            return false;
+        }
+        intValues[0] = x;
+        isUploaded = true;
+        intValues[1] = y;
+        if (isUnsignedType) {
+            GL30.glUniform2ui(location, x, y);
+        } else {
+            GL20.glUniform2i(location, x, y);
+        }
+        return true;
+    }
+
+    boolean set(int x, int y, int z) {
+        checkType(true, 3);
+        if (isUploaded && intValues[0] == x && intValues[1] == y && intValues[2] == z) {
+            return false;
+        }
+        intValues[0] = x;
+        isUploaded = true;
+        intValues[1] = y;
+        intValues[2] = z;
+        if (isUnsignedType) {
+            GL30.glUniform3ui(location, x, y, z);
+        } else {
+            GL20.glUniform3i(location, x, y, z);
+        }
+        return true;
+    }
+
+    boolean set(int x, int y, int z, int w) {
+        checkType(true, 4);
+        if (isUploaded && intValues[0] == x && intValues[1] == y && intValues[2] == z && intValues[3] == w) {
+            return false;
+        }
+        intValues[0] = x;
+        isUploaded = true;
+        intValues[1] = y;
+        intValues[2] = z;
+        intValues[3] = w;
+        if (isUnsignedType) {
+            GL30.glUniform4ui(location, x, y, z, w);
+        } else {
+            GL20.glUniform4i(location, x, y, z, w);
+        }
+        return true;
+    }
+
+    /**
+     * Загружает значения из буфера (от position до limit) в переменную, начиная с первого элемента массива.
+     * Для матриц значения берутся по столбцам. Позиция буфера не меняется.
+     */
+    boolean set(FloatBuffer values) {
+        checkBufferType(false);
+        int count = Math.min(values.remaining(), floatValues.length);
+        count -= count % components;
+        if (count == 0) {
+            return false;
+        }
+
+        int position = values.position();
+        boolean isChanged = false;
+        for (int i = 0; i < count; i++) {
+            float value = values.get(position + i);
+            if (! isUploaded || floatValues[i] != value) {
+                floatValues[i] = value;
+                isChanged = true;
+            }
+        }
+        if (! isChanged) {
+            return false;
+        }
+        isUploaded = true;
+
+        int limit = values.limit();
+        values.limit(position + count);
+        upload(values);
+        values.limit(limit);
+        return true;
+    }
+
+    boolean set(IntBuffer values) {
+        checkBufferType(true);
+        int count = Math.min(values.remaining(), intValues.length);
+        count -= count % components;
+        if (count == 0) {
+            return false;
+        }
+
+        int position = values.position();
+        boolean isChanged = false;
+        for (int i = 0; i < count; i++) {
+            int value = values.get(position + i);
+            if (! isUploaded || intValues[i] != value) {
+                intValues[i] = value;
+                isChanged = true;
+            }
+        }
+        if (! isChanged) {
+            return false;
+        }
+        isUploaded = true;
+
+        int limit = values.limit();
+        values.limit(position + count);
+        if (isUnsignedType) {
+            switch (components) {
+                case 1: GL30.glUniform1u(location, values); break;
+                case 2: GL30.glUniform2u(location, values); break;
+                case 3: GL30.glUniform3u(location, values); break;
+                default: GL30.glUniform4u(location, values); break;
+            }
+        } else {
+            switch (components) {
+                case 1: GL20.glUniform1(location, values); break;
+                case 2: GL20.glUniform2(location, values); break;
+                case 3: GL20.glUniform3(location, values); break;
+                default: GL20.glUniform4(location, values); break;
+            }
+        }
+        values.limit(limit);
+        return true;
+    }
+
+    boolean isIntType() {
+        return isIntType;
+    }
+
+
+    /**
+     * Для установки скаляра или вектора: тип и количество компонент должны совпадать точно, матрицы загружаются только из буфера.
+     */
+    private void checkType(boolean isIntValue, int valueComponents) {
+        if (isIntValue != isIntType || isMatrixType || valueComponents != components) {
+            throw new IllegalArgumentException("Значение не подходит к типу uniform-переменной " + this + ".");
+        }
+    }
+
+    private void checkBufferType(boolean isIntValue) {
+        if (isIntValue != isIntType) {
+            throw new IllegalArgumentException("Значение не подходит к типу uniform-переменной " + this + ".");
+        }
+    }
+
+    private void upload(FloatBuffer values) {
+        switch (type) {
+            case GL20.GL_FLOAT_MAT2: GL20.glUniformMatrix2(location, false, values); break;
+            case GL20.GL_FLOAT_MAT3: GL20.glUniformMatrix3(location, false, values); break;
+            case GL20.GL_FLOAT_MAT4: GL20.glUniformMatrix4(location, false, values); break;
+            case GL21.GL_FLOAT_MAT2x3: GL21.glUniformMatrix2x3(location, false, values); break;
+            case GL21.GL_FLOAT_MAT2x4: GL21.glUniformMatrix2x4(location, false, values); break;
+            case GL21.GL_FLOAT_MAT3x2: GL21.glUniformMatrix3x2(location, false, values); break;
+            case GL21.GL_FLOAT_MAT3x4: GL21.glUniformMatrix3x4(location, false, values); break;
+            case GL21.GL_FLOAT_MAT4x2: GL21.glUniformMatrix4x2(location, false, values); break;
+            case GL21.GL_FLOAT_MAT4x3: GL21.glUniformMatrix4x3(location, false, values); break;
+            default:
+                switch (components) {
+                    case 1: GL20.glUniform1(location, values); break;
+                    case 2: GL20.glUniform2(location, values); break;
+                    case 3: GL20.glUniform3(location, values); break;
+                    default: GL20.glUniform4(location, values); break;
+                }
+        }
+    }
+
+    /**
+     * Тип вектора float с таким количеством компонент (для матриц он отличается от типа переменной).
+     */
+    private static int getVectorType(int components) {
+        switch (components) {
+            case 2: return GL20.GL_FLOAT_VEC2;
+            case 3: return GL20.GL_FLOAT_VEC3;
+            case 4: return GL20.GL_FLOAT_VEC4;
+            default: return GL11.GL_FLOAT;
+        }
+    }
+
+    private static int getComponents(int type) {
+        switch (type) {
+            case GL20.GL_FLOAT_VEC2:
+            case GL20.GL_INT_VEC2:
+            case GL20.GL_BOOL_VEC2:
+            case GL30.GL_UNSIGNED_INT_VEC2:
+                return 2;
+            case GL20.GL_FLOAT_VEC3:
+            case GL20.GL_INT_VEC3:
+            case GL20.GL_BOOL_VEC3:
+            case GL30.GL_UNSIGNED_INT_VEC3:
+                return 3;
+            case GL20.GL_FLOAT_VEC4:
+            case GL20.GL_INT_VEC4:
+            case GL20.GL_BOOL_VEC4:
+            case GL30.GL_UNSIGNED_INT_VEC4:
+            case GL20.GL_FLOAT_MAT2:
+                return 4;
+            case GL21.GL_FLOAT_MAT2x3:
+            case GL21.GL_FLOAT_MAT3x2:
+                return 6;
+            case GL21.GL_FLOAT_MAT2x4:
+            case GL21.GL_FLOAT_MAT4x2:
+                return 8;
+            case GL20.GL_FLOAT_MAT3:
+                return 9;
+            case GL21.GL_FLOAT_MAT3x4:
+            case GL21.GL_FLOAT_MAT4x3:
+                return 12;
+            case GL20.GL_FLOAT_MAT4:
+                return 16;
+            default:
+                return 1;
+        }
+    }
+
+    /**
+     * Целочисленные типы, bool и сэмплеры загружаются через glUniform*i.
+     */
+    private static boolean isIntType(int type) {
+        switch (type) {
+            case GL11.GL_FLOAT:
+            case GL20.GL_FLOAT_VEC2:
+            case GL20.GL_FLOAT_VEC3:
+            case GL20.GL_FLOAT_VEC4:
+            case GL20.GL_FLOAT_MAT2:
+            case GL20.GL_FLOAT_MAT3:
+            case GL20.GL_FLOAT_MAT4:
+            case GL21.GL_FLOAT_MAT2x3:
+            case GL21.GL_FLOAT_MAT2x4:
+            case GL21.GL_FLOAT_MAT3x2:
+            case GL21.GL_FLOAT_MAT3x4:
+            case GL21.GL_FLOAT_MAT4x2:
+            case GL21.GL_FLOAT_MAT4x3:
+                return false;
+            default:
+                return true;
+        }
+    }
+
+}
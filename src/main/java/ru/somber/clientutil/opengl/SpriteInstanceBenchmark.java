@@ -0,0 +1,66 @@
+package ru.somber.clientutil.opengl;
+
+import cpw.mods.fml.relauncher.Side;
+import cpw.mods.fml.relauncher.SideOnly;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Бенчмарк заполнения буфера экземпляров {@link SpriteInstanceRenderer} на процессоре, без контекста OpenGL.
+ * Спрайты пишутся через {@link VertexWriter} той же цепочкой, что и {@link SpriteInstanceRenderer#addSprite},
+ * в direct-буфер (как в отображенную память {@link StreamingVertexBuffer}) и, для сравнения, в буфер в куче.
+ * Печатает миллионы спрайтов в секунду и мегабайты в секунду.
+ */
+@SideOnly(Side.CLIENT)
+public final class SpriteInstanceBenchmark {
+    private static final int ROUNDS = 5;
+
+    private static final int STRIDE = SpriteInstanceRenderer.INSTANCE_FORMAT.getStride();
+
+    private SpriteInstanceBenchmark() {}
+
+    public static void main(String[] args) {
+        int countSprites = args.length > 0 ? Integer.parseInt(args[0]) : 100_000;
+        int batches = args.length > 1 ? Integer.parseInt(args[1]) : 200;
+
+        ByteBuffer directBuffer = ByteBuffer.allocateDirect(countSprites * STRIDE);
+        ByteBuffer heapBuffer = ByteBuffer.allocate(countSprites * STRIDE);
+        VertexWriter writer = new VertexWriter(STRIDE);
+
+        for (int round = 0; round < ROUNDS; round++) {
+            //первые раунды - прогрев.
+            boolean isPrint = round >= 2;
+            measure("direct", isPrint, writer, directBuffer, countSprites, batches);
+            measure("heap", isPrint, writer, heapBuffer, countSprites, batches);
+        }
+    }
+
+
+    private static void measure(String name, boolean isPrint, VertexWriter writer, ByteBuffer buffer, int countSprites, int batches) {
+        long startTime = System.nanoTime();
+        for (int batch = 0; batch < batches; batch++) {
+            buffer.clear();
+            writer.reset(buffer, countSprites);
+            fill(writer, countSprites, batch);
+            writer.release();
+        }
+        long time = System.nanoTime() - startTime;
+
+        if (isPrint) {
+            double seconds = time / 1_000_000_000.0;
+            double sprites = (double) countSprites * batches;
+            System.out.println(String.format("%-7s %8.1f M sprites/s, %8.1f MB/s, %.3f ms per %d sprites",
+                    name, sprites / seconds / 1_000_000.0, sprites * STRIDE / seconds / (1024 * 1024),
+                    time / 1_000_000.0 / batches, countSprites));
+        }
+    }
+
+    private static void fill(VertexWriter writer, int countSprites, int batch) {
+        for (int i = 0; i < countSprites; i++) {
+            float x = (i & 1023) * 0.25F;
+            float z = (i >> 10) * 0.25F;
+            writer.position(x, batch * 0.01F, z).putFloat(0.5F).color(255, i & 255, 64, 255).putFloat(i + batch).endVertex();
+        }
+    }
+
+}
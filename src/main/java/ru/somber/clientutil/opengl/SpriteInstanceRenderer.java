@@ -0,0 +1,259 @@
+package ru.somber.clientutil.opengl;
+
+import cpw.mods.fml.relauncher.Side;
+import cpw.mods.fml.relauncher.SideOnly;
+import org.lwjgl.BufferUtils;
+import org.lwjgl.opengl.ARBDrawInstanced;
+import org.lwjgl.opengl.ContextCapabilities;
+import org.lwjgl.opengl.GL11;
+import org.lwjgl.opengl.GL15;
+import org.lwjgl.opengl.GL20;
+import org.lwjgl.opengl.GL30;
+import org.lwjgl.opengl.GL31;
+import org.lwjgl.opengl.GLContext;
+import ru.somber.clientutil.opengl.texture.TextureCoordSeparator;
+
+import java.nio.FloatBuffer;
+
+/**
+ * Отрисовка множества анимированных спрайтов (частиц) через инстансинг.
+ * <p>
+ * В видеопамяти лежит один квадрат, а на каждый спрайт в {@link StreamingVertexBuffer} пишется 24 байта:
+ * позиция, размер, цвет и номер кадра. Текстурные координаты кадра считает вершинный шейдер по сетке
+ * {@link TextureCoordSeparator} (те же, что и {@link TextureCoordSeparator#getCoordForNumber(int)}),
+ * а квадрат поворачивается к камере по текущей матрице вида. Вся пачка спрайтов рисуется одним glDrawArraysInstanced.
+ * <pre>
+ *     renderer.begin(count);
+ *     for (...) {
+ *         renderer.addSprite(x, y, z, size, r, g, b, a, frame);
+ *     }
+ *     renderer.draw(separator, textureID);
+ *     ...
+ *     renderer.nextFrame();   //раз в кадр
+ * </pre>
+ */
+@SideOnly(Side.CLIENT)
+public class SpriteInstanceRenderer {
+    /** Номер атрибута угла квадрата (vec2, от 0 до 1). */
+    public static final int CORNER_ATTRIBUTE = 0;
+    public static final int POSITION_ATTRIBUTE = 1;
+    public static final int SIZE_ATTRIBUTE = 2;
+    public static final int COLOR_ATTRIBUTE = 3;
+    public static final int FRAME_ATTRIBUTE = 4;
+
+    /** Данные одного спрайта: позиция (vec3), размер (float), цвет (4 байта), номер кадра (float). */
+    public static final VertexFormat INSTANCE_FORMAT = new VertexFormat()
+            .addFloat(POSITION_ATTRIBUTE, 3)
+            .addFloat(SIZE_ATTRIBUTE, 1)
+            .addUnsignedByte(COLOR_ATTRIBUTE, 4, true)
+            .addFloat(FRAME_ATTRIBUTE, 1);
+
+    private static final String VERTEX_SHADER_CODE =
+            "#version 120\n" +
+            "attribute vec2 corner;\n" +
+            "attribute vec3 instancePosition;\n" +
+            "attribute float instanceSize;\n" +
+            "attribute vec4 instanceColor;\n" +
+            "attribute float instanceFrame;\n" +
+            "uniform vec2 grid;\n" +
+            "varying vec2 textureCoord;\n" +
+            "varying vec4 color;\n" +
+            "void main() {\n" +
+            "    float frame = mod(floor(instanceFrame + 0.5), grid.x * grid.y);\n" +
+            "    float row = floor(frame / grid.x);\n" +
+            "    float column = frame - row * grid.x;\n" +
+            //строки текстуры перевернуты так же, как в TextureCoordSeparator.
+            "    textureCoord = vec2((column + corner.x) / grid.x, (row + 1.0 - corner.y) / grid.y);\n" +
+            "    color = instanceColor;\n" +
+            "    vec3 right = vec3(gl_ModelViewMatrix[0][0], gl_ModelViewMatrix[1][0], gl_ModelViewMatrix[2][0]);\n" +
+            "    vec3 up = vec3(gl_ModelViewMatrix[0][1], gl_ModelViewMatrix[1][1], gl_ModelViewMatrix[2][1]);\n" +
+            "    vec3 offset = (right * (corner.x - 0.5) + up * (corner.y - 0.5)) * instanceSize;\n" +
+            "    gl_Position = gl_ModelViewProjectionMatrix * vec4(instancePosition + offset, 1.0);\n" +
+            "}\n";
+
+    private static final String FRAGMENT_SHADER_CODE =
+            "#version 120\n" +
+            "uniform sampler2D texture;\n" +
+            "varying vec2 textureCoord;\n" +
+            "varying vec4 color;\n" +
+            "void main() {\n" +
+            "    gl_FragColor = texture2D(texture, textureCoord) * color;\n" +
+            "}\n";
+
+    private final StreamingVertexBuffer instanceBuffer;
+    private final int quadBufferID;
+    private final int vertexArrayID;
+    private final ShaderProgram program;
+    private final int gridUniformHandle;
+    /** glDrawArraysInstanced из ядра OpenGL 3.1, иначе из GL_ARB_draw_instanced. */
+    private final boolean isCoreDrawInstanced;
+
+    private VertexWriter writer;
+    private int firstInstance;
+    private int countInstances;
+
+    private long countSprites;
+    private long countDrawCalls;
+
+
+    /**
+     * maxSpritesPerFrame - сколько спрайтов можно нарисовать за кадр (во всех пачках вместе).
+     */
+    public SpriteInstanceRenderer(int maxSpritesPerFrame) {
+        if (! isSupported()) {
+            throw new IllegalStateException("Инстансинг (OpenGL 3.3 или GL_ARB_instanced_arrays и GL_ARB_draw_instanced) или VAO не поддерживаются.");
+        }
+        this.isCoreDrawInstanced = GLContext.getCapabilities().OpenGL31;
+
+        this.instanceBuffer = new StreamingVertexBuffer(INSTANCE_FORMAT, maxSpritesPerFrame * INSTANCE_FORMAT.getStride());
+
+        FloatBuffer corners = BufferUtils.createFloatBuffer(8);
+        corners.put(new float[] {0, 0, 1, 0, 1, 1, 0, 1});
+        corners.flip();
+
+        this.vertexArrayID = GL30.glGenVertexArrays();
+        this.quadBufferID = GL15.glGenBuffers();
+
+        GL30.glBindVertexArray(vertexArrayID);
+        GL15.glBindBuffer(GL15.GL_ARRAY_BUFFER, quadBufferID);
+        GL15.glBufferData(GL15.GL_ARRAY_BUFFER, corners, GL15.GL_STATIC_DRAW);
+        GL20.glEnableVertexAttribArray(CORNER_ATTRIBUTE);
+        GL20.glVertexAttribPointer(CORNER_ATTRIBUTE, 2, GL11.GL_FLOAT, false, 0, 0);
+        GL30.glBindVertexArray(0);
+        GL15.glBindBuffer(GL15.GL_ARRAY_BUFFER, 0);
+
+        this.program = createProgram();
+        this.gridUniformHandle = program.getUniformHandle("grid");
+    }
+
+    /**
+     * Проверяет поддержку инстансинга (из ядра или расширений) и VAO.
+     */
+    public static boolean isSupported() {
+        ContextCapabilities capabilities = GLContext.getCapabilities();
+        return (capabilities.OpenGL33 || capabilities.GL_ARB_instanced_arrays) &&
+                (capabilities.OpenGL31 || capabilities.GL_ARB_draw_instanced) &&
+                (capabilities.OpenGL30 || capabilities.GL_ARB_vertex_array_object);
+    }
+
+    /**
+     * Начинает пачку до maxSprites спрайтов.
+     */
+    public void begin(int maxSprites) {
+        writer = instanceBuffer.begin(maxSprites);
+    }
+
+    /**
+     * Добавляет спрайт в пачку. Цвет - от 0 до 255, frame - номер ячейки сетки (приводится по модулю количества ячеек).
+     */
+    public void addSprite(float x, float y, float z, float size, int r, int g, int b, int a, int frame) {
+        writer.position(x, y, z).putFloat(size).color(r, g, b, a).putFloat(frame).endVertex();
+    }
+
+    /**
+     * Писатель текущей пачки, чтобы писать данные спрайтов в порядке {@link #INSTANCE_FORMAT} без лишних вызовов.
+     */
+    public VertexWriter getWriter() {
+        return writer;
+    }
+
+    /**
+     * Заканчивает пачку и рисует ее с текстурой textureID (юнит 0), кадры которой разбиты сеткой separator.
+     * Шейдерная программа после отрисовки восстанавливается, состояние смешивания и глубины задает вызывающий.
+     */
+    public void draw(TextureCoordSeparator separator, int textureID) {
+        if (writer != null) {
+            firstInstance = instanceBuffer.end();
+            countInstances = writer.getCountVertices();
+            writer = null;
+        }
+        if (countInstances == 0) {
+            return;
+        }
+
+        int previousProgramID = FullscreenPass.getCurrentProgramID();
+        GLStateCache.useProgram(program.getShaderProgramID());
+        program.setUniform(gridUniformHandle, (float) separator.getCountColumn(), (float) separator.getCountRow());
+        GLStateCache.bindTexture(0, textureID);
+
+        GL30.glBindVertexArray(vertexArrayID);
+        //без glDrawArraysInstancedBaseInstance (OpenGL 4.2) начало пачки задается смещением указателей атрибутов.
+        GL15.glBindBuffer(GL15.GL_ARRAY_BUFFER, instanceBuffer.getBufferID());
+        INSTANCE_FORMAT.setupAttributes((long) firstInstance * INSTANCE_FORMAT.getStride(), 1);
+        GL15.glBindBuffer(GL15.GL_ARRAY_BUFFER, 0);
+
+        if (isCoreDrawInstanced) {
+            GL31.glDrawArraysInstanced(GL11.GL_TRIANGLE_FAN, 0, 4, countInstances);
+        } else {
+            ARBDrawInstanced.glDrawArraysInstancedARB(GL11.GL_TRIANGLE_FAN, 0, 4, countInstances);
+        }
+        PassProfiler.countDrawCall();
+        GL30.glBindVertexArray(0);
+
+        GLStateCache.bindTexture(0);
+        GLStateCache.useProgram(previousProgramID);
+
+        countSprites += countInstances;
+        countDrawCalls++;
+    }
+
+    /**
+     * Переход к следующему кадру, вызывать раз в кадр после всех пачек.
+     */
+    public void nextFrame() {
+        countInstances = 0;
+        instanceBuffer.nextFrame();
+    }
+
+    public long getCountSprites() {
+        return countSprites;
+    }
+
+    public long getCountDrawCalls() {
+        return countDrawCalls;
+    }
+
+    public void printStatistics() {
+        System.out.println("SpriteInstanceRenderer: sprites " + countSprites + ", draw calls " + countDrawCalls);
+        instanceBuffer.printStatistics();
+    }
+
+    public void delete() {
+        GL30.glDeleteVertexArrays(vertexArrayID);
+        GL15.glDeleteBuffers(quadBufferID);
+        instanceBuffer.delete();
+        program.deleteProgram();
+    }
+
+
+    private static ShaderProgram createProgram() {
+        Shader vertexShader = new Shader(GL20.GL_VERTEX_SHADER, VERTEX_SHADER_CODE);
+        Shader fragmentShader = new Shader(GL20.GL_FRAGMENT_SHADER, FRAGMENT_SHADER_CODE);
+        if (! vertexShader.compileShader()) {
+            throw new RuntimeException("Не удалось скомпилировать вершинный шейдер: " + vertexShader.getInfoLog());
+        }
+        if (! fragmentShader.compileShader()) {
+            throw new RuntimeException("Не удалось скомпилировать фрагментный шейдер: " + fragmentShader.getInfoLog());
+        }
+
+        ShaderProgram program = new ShaderProgram();
+        program.attachShader(vertexShader);
+        program.attachShader(fragmentShader);
+        int programID = program.getShaderProgramID();
+        GL20.glBindAttribLocation(programID, CORNER_ATTRIBUTE, "corner");
+        GL20.glBindAttribLocation(programID, POSITION_ATTRIBUTE, "instancePosition");
+        GL20.glBindAttribLocation(programID, SIZE_ATTRIBUTE, "instanceSize");
+        GL20.glBindAttribLocation(programID, COLOR_ATTRIBUTE, "instanceColor");
+        GL20.glBindAttribLocation(programID, FRAME_ATTRIBUTE, "instanceFrame");
+        if (! program.linkProgram()) {
+            throw new RuntimeException("Не удалось слинковать шейдерную программу: " + program.getInfoLog());
+        }
+
+        program.detachAllShader();
+        vertexShader.deleteShader();
+        fragmentShader.deleteShader();
+
+        return program;
+    }
+
+}
@@ -0,0 +1,302 @@
+package ru.somber.clientutil.opengl;
+
+import cpw.mods.fml.relauncher.Side;
+import cpw.mods.fml.relauncher.SideOnly;
+import org.lwjgl.opengl.ContextCapabilities;
+import org.lwjgl.opengl.GL11;
+import org.lwjgl.opengl.GL15;
+import org.lwjgl.opengl.GL30;
+import org.lwjgl.opengl.GL32;
+import org.lwjgl.opengl.GL44;
+import org.lwjgl.opengl.GLContext;
+import org.lwjgl.opengl.GLSync;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Потоковый буфер вершин для динамической геометрии, которая меняется каждый кадр.
+ * <p>
+ * Буфер разбит на ringDepth участков, по одному на кадр. За кадр можно сделать сколько угодно пар
+ * {@link #begin(int)} / {@link #end()}: вершины пишутся через {@link VertexWriter} прямо в память буфера подряд,
+ * а {@link #end()} возвращает номер первой вершины для glDrawArrays (или рисует через {@link #draw(int)}).
+ * <ul>
+ *     <li>С GL_ARB_buffer_storage (OpenGL 4.4) память выделяется неизменяемой и отображается один раз навсегда (persistent + coherent).
+ *     За каждым участком ставится fence, и запись в участок ждет только видеокарту, которая отстала на ringDepth кадров (обычно не ждет вовсе).</li>
+ *     <li>Иначе каждый begin отображает свой кусок без синхронизации, а при переходе кольца на начало
+ *     память буфера "осиротевает" (glBufferData с null), как в {@link UniformBuffer}.</li>
+ * </ul>
+ * Раз в кадр нужно вызывать {@link #nextFrame()}.
+ */
+@SideOnly(Side.CLIENT)
+public class StreamingVertexBuffer {
+    private final VertexFormat format;
+    private final int ringDepth;
+    /** Размер участка кадра, кратный размеру вершины. */
+    private final int regionSize;
+    private final boolean isPersistent;
+
+    private int bufferID;
+    private int vertexArrayID;
+    /** Постоянное отображение всего буфера (только для persistent). */
+    private ByteBuffer persistentBuffer;
+    /** Отображение куска буфера, переиспользуется LWJGL между вызовами glMapBufferRange (без persistent). */
+    private ByteBuffer mappedBuffer;
+    private final GLSync[] regionFences;
+
+    private int currentRegion;
+    /** Смещение следующей записи внутри текущего участка. */
+    private int regionOffset;
+    private boolean isWriting;
+    private int writeOffset;
+    private final VertexWriter writer;
+
+    private int lastFirstVertex;
+    private int lastCountVertices;
+
+    private long countWaits;
+    private long countOrphans;
+    private long countWrittenBytes;
+
+
+    /**
+     * regionSize - сколько байт вершин можно записать за один кадр.
+     */
+    public StreamingVertexBuffer(VertexFormat format, int regionSize, int ringDepth) {
+        if (ringDepth < 1) {
+            throw new IllegalArgumentException("Глубина кольца должна быть не меньше 1.");
+        }
+
+        this.format = format;
+        this.ringDepth = ringDepth;
+        this.regionSize = regionSize / format.getStride() * format.getStride();
+        if (this.regionSize == 0) {
+            throw new IllegalArgumentException("В участок не помещается ни одна вершина.");
+        }
+        this.isPersistent = isPersistentSupported();
+        this.regionFences = new GLSync[ringDepth];
+        this.writer = new VertexWriter(format.getStride());
+
+        long size = (long) this.regionSize * ringDepth;
+        this.bufferID = GL15.glGenBuffers();
+        GL15.glBindBuffer(GL15.GL_ARRAY_BUFFER, bufferID);
+        if (isPersistent) {
+            int flags = GL30.GL_MAP_WRITE_BIT | GL44.GL_MAP_PERSISTENT_BIT | GL44.GL_MAP_COHERENT_BIT;
+            GL44.glBufferStorage(GL15.GL_ARRAY_BUFFER, size, flags);
+            this.persistentBuffer = GL30.glMapBufferRange(GL15.GL_ARRAY_BUFFER, 0, size, flags, null);
+        } else {
+            GL15.glBufferData(GL15.GL_ARRAY_BUFFER, size, GL15.GL_STREAM_DRAW);
+        }
+
+        this.vertexArrayID = GL30.glGenVertexArrays();
+        GL30.glBindVertexArray(vertexArrayID);
+        format.setupAttributes(0);
+        //майнкрафт рисует через клиентские массивы без VAO, поэтому возвращаем VAO и буфер по умолчанию.
+        GL30.glBindVertexArray(0);
+        GL15.glBindBuffer(GL15.GL_ARRAY_BUFFER, 0);
+    }
+
+    /**
+     * Три участка (кадра) по regionSize байт.
+     */
+    public StreamingVertexBuffer(VertexFormat format, int regionSize) {
+        this(format, regionSize, 3);
+    }
+
+    /**
+     * Проверяет поддержку постоянного отображения буфера (glBufferStorage и fence'ы).
+     */
+    public static boolean isPersistentSupported() {
+        ContextCapabilities capabilities = GLContext.getCapabilities();
+        return (capabilities.OpenGL44 || capabilities.GL_ARB_buffer_storage) && (capabilities.OpenGL32 || capabilities.GL_ARB_sync);
+    }
+
+    public boolean isPersistent() {
+        return isPersistent;
+    }
+
+    public VertexFormat getFormat() {
+        return format;
+    }
+
+    /**
+     * ID буфера, чтобы подключить его к своему VAO (например, как буфер данных экземпляров).
+     */
+    public int getBufferID() {
+        return bufferID;
+    }
+
+    /**
+     * Начинает запись до maxVertices вершин. Если столько не помещается в остаток участка кадра, то выбрасывается исключение.
+     */
+    public VertexWriter begin(int maxVertices) {
+        if (isWriting) {
+            throw new IllegalStateException("Предыдущая запись еще не закончена.");
+        }
+        if (maxVertices < 1) {
+            throw new IllegalArgumentException("Количество вершин должно быть положительным.");
+        }
+        int size = maxVertices * format.getStride();
+        if (regionOffset + size > regionSize) {
+            throw new IllegalArgumentException("В участке кадра осталось места на " + ((regionSize - regionOffset) / format.getStride()) +
+                    " вершин, запрошено " + maxVertices + ".");
+        }
+
+        if (regionOffset == 0) {
+            beginRegion();
+        }
+
+        writeOffset = currentRegion * regionSize + regionOffset;
+        ByteBuffer target;
+        if (isPersistent) {
+            target = persistentBuffer.duplicate();
+            target.clear().position(writeOffset).limit(writeOffset + size);
+            target = target.slice();
+        } else {
+            GL15.glBindBuffer(GL15.GL_ARRAY_BUFFER, bufferID);
+            int access = GL30.GL_MAP_WRITE_BIT | GL30.GL_MAP_INVALIDATE_RANGE_BIT | GL30.GL_MAP_UNSYNCHRONIZED_BIT | GL30.GL_MAP_FLUSH_EXPLICIT_BIT;
+            mappedBuffer = GL30.glMapBufferRange(GL15.GL_ARRAY_BUFFER, writeOffset, size, access, mappedBuffer);
+            GL15.glBindBuffer(GL15.GL_ARRAY_BUFFER, 0);
+            target = mappedBuffer;
+            target.clear();
+        }
+
+        writer.reset(target, maxVertices);
+        isWriting = true;
+        return writer;
+    }
+
+    /**
+     * Заканчивает запись. Возвращает номер первой записанной вершины в буфере (first для glDrawArrays).
+     */
+    public int end() {
+        if (! isWriting) {
+            throw new IllegalStateException("Запись не начата.");
+        }
+        isWriting = false;
+
+        int countVertices = writer.getCountVertices();
+        int size = countVertices * format.getStride();
+        writer.release();
+
+        if (! isPersistent) {
+            GL15.glBindBuffer(GL15.GL_ARRAY_BUFFER, bufferID);
+            GL30.glFlushMappedBufferRange(GL15.GL_ARRAY_BUFFER, 0, size);
+            GL15.glUnmapBuffer(GL15.GL_ARRAY_BUFFER);
+            GL15.glBindBuffer(GL15.GL_ARRAY_BUFFER, 0);
+        }
+
+        regionOffset += size;
+        countWrittenBytes += size;
+
+        lastFirstVertex = writeOffset / format.getStride();
+        lastCountVertices = countVertices;
+        return lastFirstVertex;
+    }
+
+    /**
+     * Рисует вершины последней записи ({@link #end()}) примитивами mode (GL_TRIANGLES, GL_QUADS...) с текущей шейдерной программой.
+     */
+    public void draw(int mode) {
+        draw(mode, lastFirstVertex, lastCountVertices);
+    }
+
+    public void draw(int mode, int firstVertex, int countVertices) {
+        if (countVertices == 0) {
+            return;
+        }
+
+        bind();
+        GL11.glDrawArrays(mode, firstVertex, countVertices);
+        PassProfiler.countDrawCall();
+        unbind();
+    }
+
+    /**
+     * Привязывает VAO буфера, чтобы рисовать несколько диапазонов подряд своими glDrawArrays.
+     */
+    public void bind() {
+        GL30.glBindVertexArray(vertexArrayID);
+    }
+
+    public void unbind() {
+        GL30.glBindVertexArray(0);
+    }
+
+    /**
+     * Закрывает участок текущего кадра и переходит к следующему.
+     */
+    public void nextFrame() {
+        if (isWriting) {
+            throw new IllegalStateException("Запись еще не закончена.");
+        }
+
+        if (regionOffset > 0 && isPersistent) {
+            regionFences[currentRegion] = GL32.glFenceSync(GL32.GL_SYNC_GPU_COMMANDS_COMPLETE, 0);
+        }
+        currentRegion = (currentRegion + 1) % ringDepth;
+        regionOffset = 0;
+    }
+
+    public long getCountWaits() {
+        return countWaits;
+    }
+
+    public long getCountOrphans() {
+        return countOrphans;
+    }
+
+    public long getCountWrittenBytes() {
+        return countWrittenBytes;
+    }
+
+    public void printStatistics() {
+        System.out.println("StreamingVertexBuffer: persistent " + isPersistent + ", written " + (countWrittenBytes / 1024) + " KB, waits " + countWaits + ", orphans " + countOrphans);
+    }
+
+    public void delete() {
+        for (int i = 0; i < regionFences.length; i++) {
+            if (regionFences[i] != null) {
+                GL32.glDeleteSync(regionFences[i]);
+                regionFences[i] = null;
+            }
+        }
+
+        if (isPersistent && persistentBuffer != null) {
+            GL15.glBindBuffer(GL15.GL_ARRAY_BUFFER, bufferID);
+            GL15.glUnmapBuffer(GL15.GL_ARRAY_BUFFER);
+            GL15.glBindBuffer(GL15.GL_ARRAY_BUFFER, 0);
+            persistentBuffer = null;
+        }
+
+        GL30.glDeleteVertexArrays(vertexArrayID);
+        GL15.glDeleteBuffers(bufferID);
+        vertexArrayID = -1;
+        bufferID = -1;
+    }
+
+
+    /**
+     * Готовит участок кадра к первой записи: ждет, пока видеокарта дочитает его прошлое содержимое,
+     * или (без persistent) "осиротевает" память буфера при переходе кольца на начало.
+     */
+    private void beginRegion() {
+        if (isPersistent) {
+            GLSync fence = regionFences[currentRegion];
+            if (fence != null) {
+                int status = GL32.glClientWaitSync(fence, 0, 0L);
+                if (status == GL32.GL_TIMEOUT_EXPIRED) {
+                    countWaits++;
+                    GL32.glClientWaitSync(fence, GL32.GL_SYNC_FLUSH_COMMANDS_BIT, Long.MAX_VALUE);
+                }
+                GL32.glDeleteSync(fence);
+                regionFences[currentRegion] = null;
+            }
+        } else if (currentRegion == 0) {
+            GL15.glBindBuffer(GL15.GL_ARRAY_BUFFER, bufferID);
+            GL15.glBufferData(GL15.GL_ARRAY_BUFFER, (long) regionSize * ringDepth, GL15.GL_STREAM_DRAW);
+            GL15.glBindBuffer(GL15.GL_ARRAY_BUFFER, 0);
+            countOrphans++;
+        }
+    }
+
+}
@@ -0,0 +1,118 @@
+package ru.somber.clientutil.opengl;
+
+import cpw.mods.fml.relauncher.Side;
+import cpw.mods.fml.relauncher.SideOnly;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Раскладка uniform-блока по правилам std140. Поля добавляются в том же порядке, в каком они объявлены в шейдере:
+ * <pre>
+ * layout(std140) uniform Block {
+ *     mat4 projection;
+ *     float time;
+ *     vec2 screenSize;
+ * };
+ * </pre>
+ * Смещения полей используются в {@link UniformBuffer}.
+ */
+@SideOnly(Side.CLIENT)
+public class UniformBlockLayout {
+    private final String blockName;
+    /** Имя поля -> смещение в байтах. */
+    private final Map<String, Integer> offsets;
+    /** Текущий конец блока в байтах (без выравнивания в конце). */
+    private int end;
+
+
+    public UniformBlockLayout(String blockName) {
+        this.blockName = blockName;
+        this.offsets = new LinkedHashMap<>();
+    }
+
+    public String getBlockName() {
+        return blockName;
+    }
+
+    public UniformBlockLayout addFloat(String name) {
+        return addField(name, 4, 4);
+    }
+
+    public UniformBlockLayout addInt(String name) {
+        return addField(name, 4, 4);
+    }
+
+    public UniformBlockLayout addVec2(String name) {
+        return addField(name, 8, 8);
+    }
+
+    public UniformBlockLayout addVec3(String name) {
+        return addField(name, 16, 12);
+    }
+
+    public UniformBlockLayout addVec4(String name) {
+        return addField(name, 16, 16);
+    }
+
+    /**
+     * mat3 хранится как три столбца vec4.
+     */
+    public UniformBlockLayout addMat3(String name) {
+        return addField(name, 16, 48);
+    }
+
+    public UniformBlockLayout addMat4(String name) {
+        return addField(name, 16, 64);
+    }
+
+    /**
+     * Массив скаляров или векторов (components от 1 до 4). Каждый элемент массива в std140 занимает 16 байт.
+     */
+    public UniformBlockLayout addArray(String name, int components, int length) {
+        if (components < 1 || components > 4) {
+            throw new IllegalArgumentException("Количество компонент элемента массива должно быть от 1 до 4.");
+        }
+        return addField(name, 16, 16 * length);
+    }
+
+    /**
+     * Смещение поля в байтах. Если такого поля нет, то выбрасывается исключение.
+     */
+    public int getOffset(String name) {
+        Integer offset = offsets.get(name);
+        if (offset == null) {
+            throw new IllegalArgumentException("В блоке " + blockName + " нет поля " + name + ".");
+        }
+        return offset;
+    }
+
+    public Map<String, Integer> getOffsets() {
+        return Collections.unmodifiableMap(offsets);
+    }
+
+    /**
+     * Размер блока в байтах (в std140 выравнивается до 16).
+     */
+    public int getSize() {
+        return align(end, 16);
+    }
+
+
+    private UniformBlockLayout addField(String name, int alignment, int size) {
+        if (offsets.containsKey(name)) {
+            throw new IllegalArgumentException("Поле " + name + " уже есть в блоке " + blockName + ".");
+        }
+
+        int offset = align(end, alignment);
+        offsets.put(name, offset);
+        end = offset + size;
+        return this;
+    }
+
+    static int align(int value, int alignment) {
+        return (value + alignment - 1) / alignment * alignment;
+    }
+
+}
@@ -0,0 +1,239 @@
+package ru.somber.clientutil.opengl;
+
+import cpw.mods.fml.relauncher.Side;
+import cpw.mods.fml.relauncher.SideOnly;
+import org.lwjgl.BufferUtils;
+import org.lwjgl.opengl.ContextCapabilities;
+import org.lwjgl.opengl.GL11;
+import org.lwjgl.opengl.GL15;
+import org.lwjgl.opengl.GL20;
+import org.lwjgl.opengl.GL30;
+import org.lwjgl.opengl.GL31;
+import org.lwjgl.opengl.GLContext;
+
+import java.nio.ByteBuffer;
+import java.nio.FloatBuffer;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Uniform buffer object с раскладкой {@link UniformBlockLayout}, привязанный к постоянной точке привязки.
+ * Значения пишутся в копию блока в памяти процессора, а {@link #upload()} загружает блок в видеопамять одним куском.
+ * <p>
+ * Буфер в видеопамяти разбит на кольцо из ringDepth участков, и каждая загрузка пишет в следующий участок
+ * (glMapBufferRange без синхронизации), а блок привязывается через glBindBufferRange.
+ * Когда кольцо проходит полный круг, память буфера "осиротевает" (glBufferData с null): драйвер выдает новую память,
+ * а старая живет, пока ее читает видеокарта. Поэтому запись никогда не ждет видеокарту.
+ * <p>
+ * При создании буфера имя блока регистрируется за точкой привязки,
+ * и программы, в которых есть такой блок, привязываются к ней сами при линковке (см. {@link #applyBlockBindings(int)}).
+ */
+@SideOnly(Side.CLIENT)
+public class UniformBuffer {
+    /** Имя блока -> точка привязки для всех программ. */
+    private static final Map<String, Integer> blockBindings = new HashMap<>();
+
+    private final UniformBlockLayout layout;
+    private final int bindingPoint;
+    private final int ringDepth;
+    /** Размер участка кольца (размер блока, выровненный по GL_UNIFORM_BUFFER_OFFSET_ALIGNMENT). */
+    private final int sliceSize;
+
+    private int bufferID;
+    /** Копия блока в памяти процессора. */
+    private ByteBuffer data;
+    private boolean isDirty;
+    /** Участок, в который была последняя загрузка (-1 - загрузок еще не было). */
+    private int currentSlice;
+
+    /** Отображение буфера в память, переиспользуется LWJGL между вызовами glMapBufferRange. */
+    private ByteBuffer mappedBuffer;
+
+    private int countUploads;
+    private int countOrphans;
+
+
+    public UniformBuffer(UniformBlockLayout layout, int bindingPoint, int ringDepth) {
+        if (ringDepth < 1) {
+            throw new IllegalArgumentException("Глубина кольца должна быть не меньше 1.");
+        }
+
+        this.layout = layout;
+        this.bindingPoint = bindingPoint;
+        this.ringDepth = ringDepth;
+
+        int offsetAlignment = Math.max(1, GL11.glGetInteger(GL31.GL_UNIFORM_BUFFER_OFFSET_ALIGNMENT));
+        this.sliceSize = UniformBlockLayout.align(layout.getSize(), offsetAlignment);
+
+        this.bufferID = GL15.glGenBuffers();
+        this.data = BufferUtils.createByteBuffer(layout.getSize());
+        this.isDirty = true;
+        this.currentSlice = -1;
+
+        registerBlockBinding(layout.getBlockName(), bindingPoint);
+    }
+
+    public UniformBuffer(UniformBlockLayout layout, int bindingPoint) {
+        this(layout, bindingPoint, 8);
+    }
+
+    /**
+     * Проверяет поддержку uniform buffer object'ов.
+     */
+    public static boolean isSupported() {
+        ContextCapabilities capabilities = GLContext.getCapabilities();
+        return capabilities.OpenGL31 || capabilities.GL_ARB_uniform_buffer_object;
+    }
+
+    /**
+     * Закрепляет блок с именем blockName за точкой привязки bindingPoint во всех программах, которые будут слинкованы после этого.
+     */
+    public static void registerBlockBinding(String blockName, int bindingPoint) {
+        blockBindings.put(blockName, bindingPoint);
+    }
+
+    public static void unregisterBlockBinding(String blockName) {
+        blockBindings.remove(blockName);
+    }
+
+    /**
+     * Привязывает зарегистрированные блоки программы к их точкам привязки. Вызывается при линковке {@link ShaderProgram}.
+     */
+    public static void applyBlockBindings(int programID) {
+        if (blockBindings.isEmpty() || ! isSupported()) {
+            return;
+        }
+        if (GL20.glGetProgrami(programID, GL31.GL_ACTIVE_UNIFORM_BLOCKS) == 0) {
+            return;
+        }
+
+        for (Map.Entry<String, Integer> entry : blockBindings.entrySet()) {
+            int blockIndex = GL31.glGetUniformBlockIndex(programID, entry.getKey());
+            if (blockIndex != GL31.GL_INVALID_INDEX) {
+                GL31.glUniformBlockBinding(programID, blockIndex, entry.getValue());
+            }
+        }
+    }
+
+    public UniformBlockLayout getLayout() {
+        return layout;
+    }
+
+    public int getBindingPoint() {
+        return bindingPoint;
+    }
+
+    public int getBufferID() {
+        return bufferID;
+    }
+
+    /*
+     * Запись значений в копию блока. offset - смещение поля в байтах (см. UniformBlockLayout.getOffset).
+     * Если значение не изменилось, то блок не помечается как измененный.
+     */
+
+    public void setFloat(int offset, float value) {
+        if (data.getFloat(offset) != value) {
+            data.putFloat(offset, value);
+            isDirty = true;
+        }
+    }
+
+    public void setInt(int offset, int value) {
+        if (data.getInt(offset) != value) {
+            data.putInt(offset, value);
+            isDirty = true;
+        }
+    }
+
+    public void setVec2(int offset, float x, float y) {
+        setFloat(offset, x);
+        setFloat(offset + 4, y);
+    }
+
+    public void setVec3(int offset, float x, float y, float z) {
+        setFloat(offset, x);
+        setFloat(offset + 4, y);
+        setFloat(offset + 8, z);
+    }
+
+    public void setVec4(int offset, float x, float y, float z, float w) {
+        setFloat(offset, x);
+        setFloat(offset + 4, y);
+        setFloat(offset + 8, z);
+        setFloat(offset + 12, w);
+    }
+
+    /**
+     * Записывает 16 значений матрицы (по столбцам) из буфера, начиная с его позиции. Позиция буфера не меняется.
+     */
+    public void setMat4(int offset, FloatBuffer matrix) {
+        int position = matrix.position();
+        for (int i = 0; i < 16; i++) {
+            setFloat(offset + i * 4, matrix.get(position + i));
+        }
+    }
+
+    /**
+     * Загружает блок, если он изменился с прошлой загрузки, и привязывает его к точке привязки.
+     */
+    public void upload() {
+        if (! isDirty && currentSlice >= 0) {
+            return;
+        }
+
+        currentSlice++;
+        GL15.glBindBuffer(GL31.GL_UNIFORM_BUFFER, bufferID);
+        if (currentSlice >= ringDepth || countUploads == 0) {
+            //новая память под всё кольцо, старая освободится, когда видеокарта закончит ее читать.
+            GL15.glBufferData(GL31.GL_UNIFORM_BUFFER, (long) sliceSize * ringDepth, GL15.GL_STREAM_DRAW);
+            currentSlice = 0;
+            countOrphans++;
+        }
+
+        int offset = currentSlice * sliceSize;
+        int access = GL30.GL_MAP_WRITE_BIT | GL30.GL_MAP_INVALIDATE_RANGE_BIT | GL30.GL_MAP_UNSYNCHRONIZED_BIT;
+        mappedBuffer = GL30.glMapBufferRange(GL31.GL_UNIFORM_BUFFER, offset, data.capacity(), access, mappedBuffer);
+        if (mappedBuffer != null) {
+            data.clear();
+            mappedBuffer.clear();
+            mappedBuffer.put(data);
+            data.clear();
+        }
+        GL15.glUnmapBuffer(GL31.GL_UNIFORM_BUFFER);
+        GL15.glBindBuffer(GL31.GL_UNIFORM_BUFFER, 0);
+
+        GL30.glBindBufferRange(GL31.GL_UNIFORM_BUFFER, bindingPoint, bufferID, offset, data.capacity());
+
+        isDirty = false;
+        countUploads++;
+    }
+
+    /**
+     * Заново привязывает последний загруженный участок к точке привязки (если ее перебил кто-то другой).
+     */
+    public void bind() {
+        if (currentSlice >= 0) {
+            GL30.glBindBufferRange(GL31.GL_UNIFORM_BUFFER, bindingPoint, bufferID, (long) currentSlice * sliceSize, data.capacity());
+        }
+    }
+
+    public int getCountUploads() {
+        return countUploads;
+    }
+
+    /**
+     * Количество выделений новой памяти под кольцо.
+     */
+    public int getCountOrphans() {
+        return countOrphans;
+    }
+
+    public void delete() {
+        GL15.glDeleteBuffers(bufferID);
+        bufferID = -1;
+        currentSlice = -1;
+        mappedBuffer = null;
+    }
+
+}
@@ -0,0 +1,150 @@
+package ru.somber.clientutil.opengl;
+
+import cpw.mods.fml.relauncher.Side;
+import cpw.mods.fml.relauncher.SideOnly;
+import org.lwjgl.opengl.ARBInstancedArrays;
+import org.lwjgl.opengl.GL11;
+import org.lwjgl.opengl.GL20;
+import org.lwjgl.opengl.GL33;
+import org.lwjgl.opengl.GLContext;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Раскладка вершины в буфере: атрибуты шейдера идут подряд в порядке добавления, без промежутков.
+ * <pre>
+ *     VertexFormat format = new VertexFormat()
+ *             .addFloat(0, 3)                 //позиция
+ *             .addFloat(1, 2)                 //текстурные координаты
+ *             .addUnsignedByte(2, 4, true);   //цвет
+ * </pre>
+ */
+@SideOnly(Side.CLIENT)
+public class VertexFormat {
+    /** Позиция (атрибут 0, vec3), текстурные координаты (атрибут 1, vec2), цвет (атрибут 2, 4 байта). */
+    public static final VertexFormat POSITION_TEX_COLOR = new VertexFormat().addFloat(0, 3).addFloat(1, 2).addUnsignedByte(2, 4, true);
+    /** Позиция (атрибут 0, vec3) и цвет (атрибут 1, 4 байта). */
+    public static final VertexFormat POSITION_COLOR = new VertexFormat().addFloat(0, 3).addUnsignedByte(1, 4, true);
+
+    private final List<Attribute> attributes;
+    private int stride;
+
+
+    public VertexFormat() {
+        this.attributes = new ArrayList<>();
+    }
+
+    public VertexFormat addFloat(int attributeIndex, int components) {
+        return addAttribute(attributeIndex, components, GL11.GL_FLOAT, false, 4);
+    }
+
+    /**
+     * normalized - байты приводятся к [0, 1] (для цвета), иначе передаются как есть.
+     */
+    public VertexFormat addUnsignedByte(int attributeIndex, int components, boolean normalized) {
+        //атрибуты выравниваются по 4 байта, поэтому компоненты байтового атрибута занимают не меньше 4 байт.
+        return addAttribute(attributeIndex, components, GL11.GL_UNSIGNED_BYTE, normalized, 1);
+    }
+
+    public VertexFormat addShort(int attributeIndex, int components, boolean normalized) {
+        return addAttribute(attributeIndex, components, GL11.GL_SHORT, normalized, 2);
+    }
+
+    /**
+     * Размер вершины в байтах.
+     */
+    public int getStride() {
+        return stride;
+    }
+
+    public List<Attribute> getAttributes() {
+        return Collections.unmodifiableList(attributes);
+    }
+
+    /**
+     * Включает атрибуты и задает их указатели для привязанных VAO и GL_ARRAY_BUFFER. baseOffset - смещение первой вершины в буфере.
+     */
+    public void setupAttributes(long baseOffset) {
+        for (Attribute attribute : attributes) {
+            GL20.glEnableVertexAttribArray(attribute.index);
+            GL20.glVertexAttribPointer(attribute.index, attribute.components, attribute.type, attribute.normalized, stride, baseOffset + attribute.offset);
+        }
+    }
+
+    /**
+     * То же, что и {@link #setupAttributes(long)}, но атрибуты меняются раз в divisor экземпляров при инстансинге
+     * (divisor = 1 - данные на каждый экземпляр, 0 - на каждую вершину).
+     * Нужен OpenGL 3.3 или GL_ARB_instanced_arrays.
+     */
+    public void setupAttributes(long baseOffset, int divisor) {
+        setupAttributes(baseOffset);
+        boolean isCore = GLContext.getCapabilities().OpenGL33;
+        for (Attribute attribute : attributes) {
+            if (isCore) {
+                GL33.glVertexAttribDivisor(attribute.index, divisor);
+            } else {
+                ARBInstancedArrays.glVertexAttribDivisorARB(attribute.index, divisor);
+            }
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "VertexFormat{" +
+                "attributes=" + attributes.size() +
+                ", stride=" + stride +
+                '}';
+    }
+
+
+    private VertexFormat addAttribute(int attributeIndex, int components, int type, boolean normalized, int componentSize) {
+        if (components < 1 || components > 4) {
+            throw new IllegalArgumentException("Количество компонент атрибута должно быть от 1 до 4.");
+        }
+
+        int size = UniformBlockLayout.align(components * componentSize, 4);
+        attributes.add(new Attribute(attributeIndex, components, type, normalized, stride));
+        stride += size;
+        return this;
+    }
+
+
+    public static final class Attribute {
+        private final int index;
+        private final int components;
+        private final int type;
+        private final boolean normalized;
+        private final int offset;
+
+        private Attribute(int index, int components, int type, boolean normalized, int offset) {
+            this.index = index;
+            this.components = components;
+            this.type = type;
+            this.normalized = normalized;
+            this.offset = offset;
+        }
+
+        public int getIndex() {
+            return index;
+        }
+
+        public int getComponents() {
+            return components;
+        }
+
+        public int getType() {
+            return type;
+        }
+
+        public boolean isNormalized() {
+            return normalized;
+        }
+
+        public int getOffset() {
+            return offset;
+        }
+    }
+
+}
@@ -0,0 +1,134 @@
+package ru.somber.clientutil.opengl;
+
+import cpw.mods.fml.relauncher.Side;
+import cpw.mods.fml.relauncher.SideOnly;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Запись вершин прямо в отображенную память буфера ({@link StreamingVertexBuffer#begin(int)}).
+ * Значения пишутся в порядке атрибутов {@link VertexFormat}, каждая вершина заканчивается {@link #endVertex()}.
+ * <pre>
+ *     writer.position(x, y, z).texCoord(u, v).color(r, g, b, a).endVertex();
+ * </pre>
+ * Никаких вызовов OpenGL при записи нет, только запись в direct-буфер.
+ */
+@SideOnly(Side.CLIENT)
+public class VertexWriter {
+    private final int stride;
+    private ByteBuffer buffer;
+    /** Начало текущей вершины в buffer. */
+    private int vertexStart;
+    private int countVertices;
+    private int maxVertices;
+
+
+    VertexWriter(int stride) {
+        this.stride = stride;
+    }
+
+    public VertexWriter position(float x, float y, float z) {
+        buffer.putFloat(x).putFloat(y).putFloat(z);
+        return this;
+    }
+
+    public VertexWriter position(float x, float y) {
+        buffer.putFloat(x).putFloat(y);
+        return this;
+    }
+
+    public VertexWriter texCoord(float u, float v) {
+        buffer.putFloat(u).putFloat(v);
+        return this;
+    }
+
+    public VertexWriter normal(float x, float y, float z) {
+        buffer.putFloat(x).putFloat(y).putFloat(z);
+        return this;
+    }
+
+    /**
+     * Цвет 4 байтами (атрибут {@link VertexFormat#addUnsignedByte(int, int, boolean)} с 4 компонентами).
+     */
+    public VertexWriter color(int r, int g, int b, int a) {
+        buffer.put((byte) r).put((byte) g).put((byte) b).put((byte) a);
+        return this;
+    }
+
+    public VertexWriter color(float r, float g, float b, float a) {
+        return color((int) (r * 255.0F), (int) (g * 255.0F), (int) (b * 255.0F), (int) (a * 255.0F));
+    }
+
+    public VertexWriter putFloat(float value) {
+        buffer.putFloat(value);
+        return this;
+    }
+
+    public VertexWriter putShort(short value) {
+        buffer.putShort(value);
+        return this;
+    }
+
+    public VertexWriter putByte(byte value) {
+        buffer.put(value);
+        return this;
+    }
+
+    /**
+     * Заканчивает вершину. Проверяет, что записано ровно столько байт, сколько занимает вершина формата.
+     */
+    public VertexWriter endVertex() {
+        int position = buffer.position();
+        if (position - vertexStart != stride) {
+            throw new IllegalStateException("Записано " + (position - vertexStart) + " байт вершины, а формат требует " + stride + ".");
+        }
+        vertexStart = position;
+        countVertices++;
+        return this;
+    }
+
+    public int getCountVertices() {
+        return countVertices;
+    }
+
+    /**
+     * Сколько еще вершин можно записать.
+     */
+    public int getRemainingVertices() {
+        return maxVertices - countVertices;
+    }
+
+
+    void reset(ByteBuffer buffer, int maxVertices) {
+        this.buffer = buffer;
+        this.buffer.order(ByteOrder.nativeOrder());
+        this.vertexStart = buffer.position();
+        this.countVertices = 0;
+        this.maxVertices = maxVertices;
+    }
+
+    /**
+     * Буфер записи для прямой записи вершин по абсолютным индексам (начиная с его текущей позиции).
+     */
+    ByteBuffer getBuffer() {
+        return buffer;
+    }
+
+    /**
+     * Отмечает countVertices вершин, записанных напрямую в {@link #getBuffer()}, как записанные.
+     */
+    void skipVertices(int countVertices) {
+        if (countVertices > getRemainingVertices()) {
+            throw new IllegalArgumentException("Записано больше вершин, чем было запрошено.");
+        }
+        vertexStart += countVertices * stride;
+        buffer.position(vertexStart);
+        this.countVertices += countVertices;
+    }
+
+    void release() {
+        this.buffer = null;
+    }
+
+}
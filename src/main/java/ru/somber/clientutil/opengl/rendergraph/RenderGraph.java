@@ -0,0 +1,516 @@
+package ru.somber.clientutil.opengl.rendergraph;
+
+import cpw.mods.fml.relauncher.Side;
+import cpw.mods.fml.relauncher.SideOnly;
+import org.lwjgl.BufferUtils;
+import org.lwjgl.opengl.GL11;
+import org.lwjgl.opengl.GL20;
+import org.lwjgl.opengl.GL30;
+import org.lwjgl.opengl.GL43;
+import ru.somber.clientutil.opengl.CustomFramebuffer;
+import ru.somber.clientutil.opengl.GLStateCache;
+import ru.somber.clientutil.opengl.PassProfiler;
+import ru.somber.clientutil.opengl.RenderTargetPool;
+import ru.somber.clientutil.opengl.texture.Texture;
+
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.util.*;
+
+/**
+ * Граф рендера: вместо ручной последовательности bindFramebuffer / draw / unbindFramebuffer
+ * проходы объявляют, какие текстуры читают и пишут, а граф сам:
+ * <ul>
+ *     <li>упорядочивает проходы по зависимостям (при равенстве - в порядке добавления);</li>
+ *     <li>отбрасывает проходы, результаты которых никто не использует;</li>
+ *     <li>отдает временным текстурам, время жизни которых не пересекается, одну и ту же настоящую текстуру;</li>
+ *     <li>очищает текстуру перед проходом, только если проход пишет в нее не целиком ({@link RenderPass#write} против {@link RenderPass#writeFull}).</li>
+ * </ul>
+ * Результат компиляции хранится, пока не изменится разрешение или набор проходов и текстур.
+ * <p>
+ * Результатом графа считаются внешние текстуры ({@link #importTexture(String, Texture)}), в которые пишут проходы,
+ * и временные текстуры, отмеченные через {@link #markOutput(RenderGraphTexture)} - они действительны и после выполнения графа.
+ */
+@SideOnly(Side.CLIENT)
+public class RenderGraph {
+    private final RenderTargetPool pool;
+    /** Пул создан графом, поэтому граф сам переводит его на следующий кадр и удаляет. */
+    private final boolean isOwnPool;
+
+    private final List<RenderPass> passes;
+    private final List<RenderGraphTexture> textures;
+
+    private boolean isDirty;
+    private int compiledWidth;
+    private int compiledHeight;
+
+    /** Проходы в порядке выполнения (без отброшенных). */
+    private final List<RenderPass> executionOrder;
+    private final List<RenderGraphTexture.PhysicalTexture> physicalTextures;
+
+    private final FloatBuffer clearColorBuffer;
+
+    private int countCompiles;
+    /** Профайлер проходов, может быть null. */
+    private PassProfiler profiler;
+
+
+    public RenderGraph(RenderTargetPool pool) {
+        this(pool, false);
+    }
+
+    public RenderGraph() {
+        this(new RenderTargetPool(), true);
+    }
+
+    private RenderGraph(RenderTargetPool pool, boolean isOwnPool) {
+        this.pool = pool;
+        this.isOwnPool = isOwnPool;
+
+        this.passes = new ArrayList<>();
+        this.textures = new ArrayList<>();
+        this.isDirty = true;
+
+        this.executionOrder = new ArrayList<>();
+        this.physicalTextures = new ArrayList<>();
+        this.clearColorBuffer = BufferUtils.createFloatBuffer(4);
+    }
+
+    /**
+     * Временная текстура с размером scale * разрешение графа.
+     */
+    public RenderGraphTexture createTexture(String name, float scale, int internalFormat) {
+        return addTexture(new RenderGraphTexture(name, textures.size(), internalFormat, scale, 0, 0, null));
+    }
+
+    /**
+     * Временная текстура постоянного размера.
+     */
+    public RenderGraphTexture createTexture(String name, int width, int height, int internalFormat) {
+        return addTexture(new RenderGraphTexture(name, textures.size(), internalFormat, 1.0F, width, height, null));
+    }
+
+    /**
+     * Внешняя текстура. Граф ее не создает, не очищает, не удаляет и не меняет ее параметры (фильтр, режим повторения).
+     */
+    public RenderGraphTexture importTexture(String name, Texture texture) {
+        return addTexture(new RenderGraphTexture(name, textures.size(), texture.getInternalFormatColorGL(), 1.0F, 0, 0, texture));
+    }
+
+    /**
+     * Отмечает временную текстуру как результат графа: проход, который в нее пишет, не отбрасывается,
+     * а текстура не используется повторно для других текстур и доступна после выполнения графа.
+     */
+    public void markOutput(RenderGraphTexture texture) {
+        texture.isOutput = true;
+        invalidate();
+    }
+
+    /**
+     * Профайлер, в который записывается каждый выполненный проход (под его именем). null - не замерять.
+     */
+    public void setProfiler(PassProfiler profiler) {
+        this.profiler = profiler;
+    }
+
+    public RenderPass addPass(String name, RenderPass.Executor executor) {
+        RenderPass pass = new RenderPass(this, name, passes.size(), executor);
+        passes.add(pass);
+        invalidate();
+        return pass;
+    }
+
+    /**
+     * Удаляет все проходы и текстуры.
+     */
+    public void clear() {
+        releaseCompiled();
+        passes.clear();
+        textures.clear();
+        invalidate();
+    }
+
+    /**
+     * Выполняет граф для разрешения width x height, при необходимости компилируя его заново.
+     */
+    public void execute(int width, int height) {
+        if (isDirty || width != compiledWidth || height != compiledHeight) {
+            compile(width, height);
+        }
+
+        for (RenderPass pass : executionOrder) {
+            executePass(pass);
+        }
+        GLStateCache.bindFramebuffer(GL30.GL_FRAMEBUFFER, 0);
+
+        if (isOwnPool) {
+            pool.nextFrame();
+        }
+    }
+
+    /**
+     * Проходы в порядке выполнения после последней компиляции (отброшенных проходов здесь нет).
+     */
+    public List<RenderPass> getExecutionOrder() {
+        return Collections.unmodifiableList(executionOrder);
+    }
+
+    /**
+     * Количество настоящих текстур, на которые легли временные текстуры графа.
+     */
+    public int getCountPhysicalTextures() {
+        return physicalTextures.size();
+    }
+
+    public int getCountCompiles() {
+        return countCompiles;
+    }
+
+    public void printCompiled() {
+        System.out.println("Render graph " + compiledWidth + "x" + compiledHeight + ": passes " + executionOrder.size() + "/" + passes.size() +
+                ", physical textures " + physicalTextures.size() + ", compiles " + countCompiles);
+        for (RenderPass pass : executionOrder) {
+            StringBuilder sb = new StringBuilder("  ").append(pass.getName()).append(':');
+            for (RenderGraphTexture texture : pass.writes) {
+                sb.append(' ').append(texture.getName());
+                if (texture.physical != null) {
+                    sb.append("->#").append(physicalTextures.indexOf(texture.physical));
+                }
+            }
+            System.out.println(sb);
+        }
+    }
+
+    /**
+     * Удаляет всё, что граф создал (фреймбуферы проходов и временные текстуры).
+     */
+    public void delete() {
+        releaseCompiled();
+        if (isOwnPool) {
+            pool.deletePool();
+        }
+        invalidate();
+    }
+
+
+    void invalidate() {
+        isDirty = true;
+    }
+
+    private RenderGraphTexture addTexture(RenderGraphTexture texture) {
+        textures.add(texture);
+        invalidate();
+        return texture;
+    }
+
+    private void compile(int width, int height) {
+        releaseCompiled();
+
+        List<RenderPass> alivePasses = cullPasses();
+        sortPasses(alivePasses);
+        computeLifetimes();
+        assignPhysicalTextures(width, height);
+        createFramebuffers(width, height);
+
+        isDirty = false;
+        compiledWidth = width;
+        compiledHeight = height;
+        countCompiles++;
+    }
+
+    /**
+     * Оставляет проходы, которые пишут результаты графа или имеют побочные эффекты, и все проходы, от которых они зависят.
+     */
+    private List<RenderPass> cullPasses() {
+        Deque<RenderPass> stack = new ArrayDeque<>();
+        for (RenderPass pass : passes) {
+            pass.isCulled = true;
+
+            boolean isRoot = pass.hasSideEffects;
+            for (RenderGraphTexture texture : pass.writes) {
+                isRoot |= texture.isOutput || texture.isImported();
+            }
+            if (isRoot) {
+                pass.isCulled = false;
+                stack.push(pass);
+            }
+        }
+
+        while (! stack.isEmpty()) {
+            RenderPass pass = stack.pop();
+            for (RenderGraphTexture texture : pass.reads) {
+                RenderPass producer = texture.producer;
+                if (producer == null) {
+                    if (! texture.isImported()) {
+                        throw new IllegalStateException("Проход " + pass.getName() + " читает текстуру " + texture.getName() + ", в которую никто не пишет.");
+                    }
+                    continue;
+                }
+                if (producer.isCulled) {
+                    producer.isCulled = false;
+                    stack.push(producer);
+                }
+            }
+        }
+
+        List<RenderPass> alivePasses = new ArrayList<>();
+        for (RenderPass pass : passes) {
+            if (! pass.isCulled) {
+                alivePasses.add(pass);
+            }
+        }
+        return alivePasses;
+    }
+
+    /**
+     * Топологическая сортировка проходов. Из готовых к выполнению проходов первым берется добавленный раньше.
+     */
+    private void sortPasses(List<RenderPass> alivePasses) {
+        Map<RenderPass, Integer> countDependencies = new HashMap<>();
+        Map<RenderPass, List<RenderPass>> dependents = new HashMap<>();
+        for (RenderPass pass : alivePasses) {
+            Set<RenderPass> producers = new HashSet<>();
+            for (RenderGraphTexture texture : pass.reads) {
+                if (texture.producer != null && texture.producer != pass) {
+                    producers.add(texture.producer);
+                }
+            }
+
+            countDependencies.put(pass, producers.size());
+            for (RenderPass producer : producers) {
+                dependents.computeIfAbsent(producer, key -> new ArrayList<>()).add(pass);
+            }
+        }
+
+        PriorityQueue<RenderPass> ready = new PriorityQueue<>(Comparator.comparingInt(RenderPass::getIndex));
+        for (RenderPass pass : alivePasses) {
+            if (countDependencies.get(pass) == 0) {
+                ready.add(pass);
+            }
+        }
+
+        executionOrder.clear();
+        while (! ready.isEmpty()) {
+            RenderPass pass = ready.poll();
+            pass.order = executionOrder.size();
+            executionOrder.add(pass);
+
+            for (RenderPass dependent : dependents.getOrDefault(pass, Collections.emptyList())) {
+                int count = countDependencies.get(dependent) - 1;
+                countDependencies.put(dependent, count);
+                if (count == 0) {
+                    ready.add(dependent);
+                }
+            }
+        }
+
+        if (executionOrder.size() != alivePasses.size()) {
+            throw new IllegalStateException("В графе рендера есть циклическая зависимость между проходами.");
+        }
+    }
+
+    private void computeLifetimes() {
+        for (RenderGraphTexture texture : textures) {
+            texture.firstUse = Integer.MAX_VALUE;
+            texture.lastUse = -1;
+        }
+
+        for (RenderPass pass : executionOrder) {
+            for (RenderGraphTexture texture : pass.writes) {
+                texture.firstUse = Math.min(texture.firstUse, pass.order);
+                texture.lastUse = Math.max(texture.lastUse, pass.order);
+            }
+            for (RenderGraphTexture texture : pass.reads) {
+                texture.firstUse = Math.min(texture.firstUse, pass.order);
+                texture.lastUse = Math.max(texture.lastUse, pass.order);
+            }
+        }
+
+        for (RenderGraphTexture texture : textures) {
+            if (texture.isOutput && texture.lastUse >= 0) {
+                texture.lastUse = Integer.MAX_VALUE;
+            }
+        }
+    }
+
+    /**
+     * Раздает временным текстурам настоящие текстуры: текстура занимает настоящую текстуру того же размера и формата,
+     * если последний проход предыдущего владельца выполняется раньше первого прохода новой текстуры.
+     */
+    private void assignPhysicalTextures(int width, int height) {
+        List<RenderGraphTexture> transientTextures = new ArrayList<>();
+        for (RenderGraphTexture texture : textures) {
+            if (! texture.isImported() && texture.lastUse >= 0) {
+                transientTextures.add(texture);
+            }
+        }
+        transientTextures.sort(Comparator.comparingInt((RenderGraphTexture texture) -> texture.firstUse).thenComparingInt(RenderGraphTexture::getIndex));
+
+        for (RenderGraphTexture texture : transientTextures) {
+            int textureWidth = texture.getWidth(width);
+            int textureHeight = texture.getHeight(height);
+
+            RenderGraphTexture.PhysicalTexture physical = null;
+            for (RenderGraphTexture.PhysicalTexture candidate : physicalTextures) {
+                if (candidate.lastUse < texture.firstUse && candidate.width == textureWidth &&
+                        candidate.height == textureHeight && candidate.internalFormat == texture.getInternalFormat()) {
+                    physical = candidate;
+                    break;
+                }
+            }
+
+            if (physical == null) {
+                Texture pooledTexture = pool.acquireTexture(textureWidth, textureHeight, texture.getInternalFormat());
+                physical = new RenderGraphTexture.PhysicalTexture(pooledTexture, textureWidth, textureHeight, texture.getInternalFormat());
+                physicalTextures.add(physical);
+            }
+
+            physical.lastUse = texture.lastUse;
+            texture.physical = physical;
+        }
+    }
+
+    private void createFramebuffers(int width, int height) {
+        for (RenderPass pass : executionOrder) {
+            if (pass.writes.isEmpty()) {
+                continue;
+            }
+
+            int passWidth = pass.writes.get(0).getWidth(width);
+            int passHeight = pass.writes.get(0).getHeight(height);
+            CustomFramebuffer framebuffer = new CustomFramebuffer(passWidth, passHeight, false);
+
+            IntBuffer drawBuffers = BufferUtils.createIntBuffer(pass.writes.size());
+            int[] clearDrawBuffers = new int[pass.writes.size()];
+            int countClears = 0;
+            IntBuffer invalidateAttachments = BufferUtils.createIntBuffer(pass.writes.size());
+
+            for (int i = 0; i < pass.writes.size(); i++) {
+                RenderGraphTexture texture = pass.writes.get(i);
+                if (texture.getWidth(width) != passWidth || texture.getHeight(height) != passHeight) {
+                    throw new IllegalStateException("Проход " + pass.getName() + " пишет в текстуры разного размера.");
+                }
+
+                if (texture.isImported()) {
+                    //attachTexture сбросил бы фильтр и режим повторения внешней текстуры, поэтому она прикрепляется напрямую.
+                    GLStateCache.bindFramebuffer(GL30.GL_FRAMEBUFFER, framebuffer.getFramebufferID());
+                    GL30.glFramebufferTexture2D(GL30.GL_FRAMEBUFFER, GL30.GL_COLOR_ATTACHMENT0 + i, GL11.GL_TEXTURE_2D, texture.getTexture().getTextureID(), 0);
+                    GLStateCache.bindFramebuffer(GL30.GL_FRAMEBUFFER, 0);
+                } else {
+                    framebuffer.attachTexture(GL30.GL_COLOR_ATTACHMENT0 + i, texture.getTexture());
+                }
+                drawBuffers.put(GL30.GL_COLOR_ATTACHMENT0 + i);
+                if (! texture.isImported()) {
+                    if (pass.fullWrites.get(i)) {
+                        invalidateAttachments.put(GL30.GL_COLOR_ATTACHMENT0 + i);
+                    } else {
+                        clearDrawBuffers[countClears++] = i;
+                    }
+                }
+            }
+            drawBuffers.flip();
+            invalidateAttachments.flip();
+
+            //набор draw buffer'ов - состояние фреймбуфера, поэтому задается один раз.
+            framebuffer.bindFramebuffer(false);
+            framebuffer.checkFramebufferComplete();
+            GL20.glDrawBuffers(drawBuffers);
+            framebuffer.unbindFramebuffer();
+
+            pass.framebuffer = framebuffer;
+            pass.countAttachments = pass.writes.size();
+            pass.clearDrawBuffers = Arrays.copyOf(clearDrawBuffers, countClears);
+            pass.invalidateAttachments = invalidateAttachments.hasRemaining() ? invalidateAttachments : null;
+        }
+
+        //прикрепление к фреймбуферу сбрасывает фильтр временной текстуры.
+        for (RenderGraphTexture.PhysicalTexture physical : physicalTextures) {
+            physical.currentFilter = -1;
+        }
+    }
+
+    private void executePass(RenderPass pass) {
+        if (profiler != null) {
+            profiler.begin(pass.getName());
+        }
+
+        //настройка прохода идет без чужого кода, а сам проход (колбек) - уже вне последовательности.
+        GLStateCache.beginSequence();
+        try {
+            setupPass(pass);
+        } finally {
+            GLStateCache.endSequence();
+        }
+
+        pass.execute();
+
+        if (profiler != null) {
+            profiler.end();
+        }
+    }
+
+    private void setupPass(RenderPass pass) {
+        for (RenderGraphTexture texture : pass.reads) {
+            RenderGraphTexture.PhysicalTexture physical = texture.physical;
+            if (physical != null && physical.currentFilter != texture.getFilter()) {
+                applyFilter(physical.texture, texture.getFilter());
+                physical.currentFilter = texture.getFilter();
+            }
+        }
+
+        if (pass.framebuffer != null) {
+            pass.framebuffer.bindFramebuffer(true);
+
+            //старое содержимое перезаписываемых целиком временных текстур не нужно, видеокарта может его не загружать.
+            if (pass.invalidateAttachments != null && CustomFramebuffer.isInvalidateSupported()) {
+                GL43.glInvalidateFramebuffer(GL30.GL_FRAMEBUFFER, pass.invalidateAttachments);
+            }
+
+            for (int drawBuffer : pass.clearDrawBuffers) {
+                float[] clearColor = pass.writes.get(drawBuffer).getClearColor();
+                clearColorBuffer.clear();
+                clearColorBuffer.put(clearColor).flip();
+                GL30.glClearBuffer(GL11.GL_COLOR, drawBuffer, clearColorBuffer);
+                PassProfiler.countClear();
+            }
+        } else {
+            GLStateCache.bindFramebuffer(GL30.GL_FRAMEBUFFER, 0);
+            GLStateCache.viewport(0, 0, compiledWidth, compiledHeight);
+        }
+    }
+
+    private static void applyFilter(Texture texture, int filter) {
+        GLStateCache.bindTexture(texture.getTextureID());
+        GL11.glTexParameteri(GL11.GL_TEXTURE_2D, GL11.GL_TEXTURE_MIN_FILTER, filter);
+        GL11.glTexParameteri(GL11.GL_TEXTURE_2D, GL11.GL_TEXTURE_MAG_FILTER, filter);
+        GLStateCache.bindTexture(0);
+    }
+
+    /**
+     * Удаляет фреймбуферы проходов и возвращает временные текстуры в пул.
+     */
+    private void releaseCompiled() {
+        for (RenderPass pass : passes) {
+            if (pass.framebuffer != null) {
+                //текстуры принадлежат пулу или вызывающему коду, а deleteFramebuffer удаляет прикрепленные текстуры.
+                for (int i = 0; i < pass.countAttachments; i++) {
+                    pass.framebuffer.detachTexture(GL30.GL_COLOR_ATTACHMENT0 + i);
+                }
+                pass.framebuffer.deleteFramebuffer();
+                pass.framebuffer = null;
+                pass.invalidateAttachments = null;
+            }
+        }
+
+        for (RenderGraphTexture.PhysicalTexture physical : physicalTextures) {
+            pool.release(physical.texture);
+        }
+        physicalTextures.clear();
+        for (RenderGraphTexture texture : textures) {
+            texture.physical = null;
+        }
+
+        executionOrder.clear();
+    }
+
+}
@@ -0,0 +1,153 @@
+package ru.somber.clientutil.opengl.rendergraph;
+
+import cpw.mods.fml.relauncher.Side;
+import cpw.mods.fml.relauncher.SideOnly;
+import org.lwjgl.opengl.GL11;
+import ru.somber.clientutil.opengl.texture.Texture;
+
+/**
+ * Текстура графа рендера ({@link RenderGraph}). Это описание, а не сама текстура:
+ * временные текстуры получают настоящую {@link Texture} только на время выполнения графа,
+ * и текстуры, время жизни которых не пересекается, используют одну и ту же настоящую текстуру.
+ * <p>
+ * Внешние (импортированные) текстуры принадлежат вызывающему коду, граф их не создает, не очищает и не удаляет.
+ */
+@SideOnly(Side.CLIENT)
+public class RenderGraphTexture {
+    private final String name;
+    private final int index;
+    private final int internalFormat;
+    /** Масштаб относительно разрешения графа. Используется, если fixedWidth <= 0. */
+    private final float scale;
+    private final int fixedWidth;
+    private final int fixedHeight;
+    /** Настоящая текстура для внешних текстур, иначе null. */
+    private final Texture importedTexture;
+
+    private final float[] clearColor;
+    private int filter;
+
+    /** Проход, который пишет в текстуру. */
+    RenderPass producer;
+    /** Флаг того, что текстура нужна после выполнения графа (ее проход не отбрасывается). */
+    boolean isOutput;
+
+    /** Первый и последний (по порядку выполнения) проход, который использует текстуру. Считаются при компиляции. */
+    int firstUse;
+    int lastUse;
+    /** Настоящая текстура на время выполнения. */
+    PhysicalTexture physical;
+
+
+    RenderGraphTexture(String name, int index, int internalFormat, float scale, int fixedWidth, int fixedHeight, Texture importedTexture) {
+        this.name = name;
+        this.index = index;
+        this.internalFormat = internalFormat;
+        this.scale = scale;
+        this.fixedWidth = fixedWidth;
+        this.fixedHeight = fixedHeight;
+        this.importedTexture = importedTexture;
+
+        this.clearColor = new float[] {0.0F, 0.0F, 0.0F, 0.0F};
+        this.filter = GL11.GL_LINEAR;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public int getInternalFormat() {
+        return internalFormat;
+    }
+
+    public boolean isImported() {
+        return importedTexture != null;
+    }
+
+    /**
+     * Цвет, которым текстура очищается перед проходом, который пишет в нее не целиком.
+     */
+    public void setClearColor(float red, float green, float blue, float alpha) {
+        clearColor[0] = red;
+        clearColor[1] = green;
+        clearColor[2] = blue;
+        clearColor[3] = alpha;
+    }
+
+    public float[] getClearColor() {
+        return clearColor.clone();
+    }
+
+    /**
+     * Фильтр, с которым текстура читается в проходах (GL_LINEAR или GL_NEAREST).
+     * Только для временных текстур: параметры внешней текстуры граф не меняет.
+     */
+    public void setFilter(int filter) {
+        this.filter = filter;
+    }
+
+    public int getFilter() {
+        return filter;
+    }
+
+    /**
+     * Настоящая текстура. Для временных текстур доступна только во время выполнения прохода, который ее использует.
+     */
+    public Texture getTexture() {
+        if (importedTexture != null) {
+            return importedTexture;
+        }
+        return physical == null ? null : physical.texture;
+    }
+
+    @Override
+    public String toString() {
+        return "RenderGraphTexture{" +
+                "name='" + name + '\'' +
+                ", imported=" + isImported() +
+                '}';
+    }
+
+
+    int getIndex() {
+        return index;
+    }
+
+    int getWidth(int graphWidth) {
+        if (importedTexture != null) {
+            return importedTexture.getWidthTexture();
+        }
+        return fixedWidth > 0 ? fixedWidth : Math.max(1, Math.round(graphWidth * scale));
+    }
+
+    int getHeight(int graphHeight) {
+        if (importedTexture != null) {
+            return importedTexture.getHeightTexture();
+        }
+        return fixedHeight > 0 ? fixedHeight : Math.max(1, Math.round(graphHeight * scale));
+    }
+
+
+    /**
+     * Настоящая текстура, которую делят между собой временные текстуры графа.
+     */
+    static final class PhysicalTexture {
+        final Texture texture;
+        final int width;
+        final int height;
+        final int internalFormat;
+        /** Последний проход, который использует текстуру, среди уже назначенных на нее. */
+        int lastUse;
+        /** Текущий фильтр текстуры, чтобы не выставлять его повторно. */
+        int currentFilter;
+
+        PhysicalTexture(Texture texture, int width, int height, int internalFormat) {
+            this.texture = texture;
+            this.width = width;
+            this.height = height;
+            this.internalFormat = internalFormat;
+            this.currentFilter = -1;
+        }
+    }
+
+}
@@ -0,0 +1,167 @@
+package ru.somber.clientutil.opengl.rendergraph;
+
+import cpw.mods.fml.relauncher.Side;
+import cpw.mods.fml.relauncher.SideOnly;
+import ru.somber.clientutil.opengl.CustomFramebuffer;
+import ru.somber.clientutil.opengl.texture.Texture;
+
+import java.nio.IntBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Проход графа рендера ({@link RenderGraph#addPass(String, Executor)}).
+ * Проход объявляет, какие текстуры он читает ({@link #read(RenderGraphTexture)}) и в какие пишет ({@link #write(RenderGraphTexture)}).
+ * Текстуры, в которые пишет проход, прикрепляются к его фреймбуферу в порядке объявления (GL_COLOR_ATTACHMENT0, 1, ...).
+ * <p>
+ * Объявления можно менять только между выполнениями графа, после изменения граф компилируется заново.
+ */
+@SideOnly(Side.CLIENT)
+public class RenderPass {
+    private final RenderGraph graph;
+    private final String name;
+    private final int index;
+    private final Executor executor;
+
+    final List<RenderGraphTexture> reads;
+    final List<RenderGraphTexture> writes;
+    /** Для каждой записи - флаг того, что проход перезаписывает всю текстуру и очищать ее не нужно. */
+    final List<Boolean> fullWrites;
+    /** Проход выполняется, даже если его результаты никто не читает. */
+    boolean hasSideEffects;
+
+    /** Результаты компиляции. */
+    boolean isCulled;
+    int order;
+    CustomFramebuffer framebuffer;
+    /** Количество текстур, прикрепленных к framebuffer при компиляции. */
+    int countAttachments;
+    /** Номера прикреплений (draw buffer'ов), которые нужно очистить перед проходом. */
+    int[] clearDrawBuffers;
+    /** Слоты временных текстур, которые проход перезаписывает целиком, - их содержимое объявляется недействительным. null - таких нет. */
+    IntBuffer invalidateAttachments;
+
+
+    RenderPass(RenderGraph graph, String name, int index, Executor executor) {
+        this.graph = graph;
+        this.name = name;
+        this.index = index;
+        this.executor = executor;
+
+        this.reads = new ArrayList<>();
+        this.writes = new ArrayList<>();
+        this.fullWrites = new ArrayList<>();
+        this.clearDrawBuffers = new int[0];
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Проход читает текстуру.
+     */
+    public RenderPass read(RenderGraphTexture texture) {
+        if (! reads.contains(texture)) {
+            reads.add(texture);
+            graph.invalidate();
+        }
+        return this;
+    }
+
+    /**
+     * Проход пишет в текстуру, но не во все ее пиксели, поэтому временная текстура перед проходом очищается.
+     */
+    public RenderPass write(RenderGraphTexture texture) {
+        return write(texture, false);
+    }
+
+    /**
+     * Проход перезаписывает каждый пиксель текстуры (например, рисует на весь экран), поэтому очищать ее перед проходом не нужно.
+     */
+    public RenderPass writeFull(RenderGraphTexture texture) {
+        return write(texture, true);
+    }
+
+    /**
+     * Проход выполняется всегда, даже если его результаты никто не читает (например, он пишет в чужой фреймбуфер сам).
+     */
+    public RenderPass setSideEffects(boolean hasSideEffects) {
+        this.hasSideEffects = hasSideEffects;
+        graph.invalidate();
+        return this;
+    }
+
+    public List<RenderGraphTexture> getReads() {
+        return Collections.unmodifiableList(reads);
+    }
+
+    public List<RenderGraphTexture> getWrites() {
+        return Collections.unmodifiableList(writes);
+    }
+
+    /**
+     * Был ли проход отброшен при последней компиляции (его результаты никто не использует).
+     */
+    public boolean isCulled() {
+        return isCulled;
+    }
+
+    /**
+     * Фреймбуфер прохода. Доступен во время выполнения прохода, если проход пишет хотя бы в одну текстуру.
+     */
+    public CustomFramebuffer getFramebuffer() {
+        return framebuffer;
+    }
+
+    /**
+     * Настоящая текстура для текстуры графа. Доступна во время выполнения прохода.
+     */
+    public Texture getTexture(RenderGraphTexture texture) {
+        return texture.getTexture();
+    }
+
+    @Override
+    public String toString() {
+        return "RenderPass{" +
+                "name='" + name + '\'' +
+                ", isCulled=" + isCulled +
+                '}';
+    }
+
+
+    int getIndex() {
+        return index;
+    }
+
+    void execute() {
+        executor.execute(this);
+    }
+
+    private RenderPass write(RenderGraphTexture texture, boolean isFull) {
+        if (texture.producer != null && texture.producer != this) {
+            throw new IllegalStateException("В текстуру " + texture.getName() + " уже пишет проход " + texture.producer.getName() + ".");
+        }
+        if (writes.contains(texture)) {
+            return this;
+        }
+
+        texture.producer = this;
+        writes.add(texture);
+        fullWrites.add(isFull);
+        graph.invalidate();
+        return this;
+    }
+
+
+    /**
+     * Код прохода. Вызывается с уже привязанным фреймбуфером прохода, выставленным viewport'ом
+     * и всеми прикреплениями в качестве draw buffer'ов. Если проход ни во что не пишет,
+     * то привязан фреймбуфер по умолчанию с viewport'ом на всё разрешение графа.
+     */
+    public interface Executor {
+        void execute(RenderPass pass);
+    }
+
+}
@@ -0,0 +1,94 @@
+package ru.somber.clientutil.opengl.texture;
+
+import cpw.mods.fml.relauncher.Side;
+import cpw.mods.fml.relauncher.SideOnly;
+
+/**
+ * Область изображения в атласе (см. {@link TextureAtlas}).
+ * Координаты в пикселях не меняются, а текстурные координаты пересчитываются на месте, если страница атласа увеличивается.
+ */
+@SideOnly(Side.CLIENT)
+public class AtlasRegion {
+    private final String name;
+    private final int pageIndex;
+    private final int x;
+    private final int y;
+    private final int width;
+    private final int height;
+    private final TextureCoord textureCoord;
+
+
+    AtlasRegion(String name, int pageIndex, int x, int y, int width, int height) {
+        this.name = name;
+        this.pageIndex = pageIndex;
+        this.x = x;
+        this.y = y;
+        this.width = width;
+        this.height = height;
+        this.textureCoord = new TextureCoord();
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public int getPageIndex() {
+        return pageIndex;
+    }
+
+    public int getX() {
+        return x;
+    }
+
+    public int getY() {
+        return y;
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    /**
+     * Текстурные координаты области на странице атласа. Объект один и тот же на всё время жизни области.
+     */
+    public TextureCoord getTextureCoord() {
+        return textureCoord;
+    }
+
+    /**
+     * Пересчитывает текстурные координаты под размер страницы.
+     * Порядок вершин и переворот по Y такие же, как в {@link TextureCoordSeparator}.
+     */
+    void updateTextureCoord(int pageWidth, int pageHeight) {
+        float xMin = (float) x / pageWidth;
+        float xMax = (float) (x + width) / pageWidth;
+        float yMax = (float) y / pageHeight;
+        float yMin = (float) (y + height) / pageHeight;
+
+        textureCoord.setCoordX_0(xMin);
+        textureCoord.setCoordY_0(yMin);
+        textureCoord.setCoordX_1(xMax);
+        textureCoord.setCoordY_1(yMin);
+        textureCoord.setCoordX_2(xMax);
+        textureCoord.setCoordY_2(yMax);
+        textureCoord.setCoordX_3(xMin);
+        textureCoord.setCoordY_3(yMax);
+    }
+
+    @Override
+    public String toString() {
+        return "AtlasRegion{" +
+                "name='" + name + '\'' +
+                ", pageIndex=" + pageIndex +
+                ", x=" + x +
+                ", y=" + y +
+                ", width=" + width +
+                ", height=" + height +
+                '}';
+    }
+
+}
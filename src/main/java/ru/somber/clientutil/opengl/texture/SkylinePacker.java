@@ -0,0 +1,196 @@
+package ru.somber.clientutil.opengl.texture;
+
+import cpw.mods.fml.relauncher.Side;
+import cpw.mods.fml.relauncher.SideOnly;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Упаковщик прямоугольников в прямоугольную область по алгоритму skyline (bottom-left).
+ * Хранит верхнюю границу уже занятой области ("линию горизонта") и кладет каждый новый прямоугольник как можно ниже.
+ * Позволяет добавлять прямоугольники по одному и увеличивать область без перепаковки уже добавленных.
+ * OpenGL не использует.
+ */
+@SideOnly(Side.CLIENT)
+public class SkylinePacker {
+    private int width;
+    private int height;
+    /** Отступ между прямоугольниками (в пикселях). */
+    private int padding;
+    /** Отрезки линии горизонта слева направо. Покрывают всю ширину без пропусков. */
+    private List<Segment> skyline;
+    /** Суммарная площадь добавленных прямоугольников (вместе с отступами). */
+    private long usedArea;
+
+
+    public SkylinePacker(int width, int height, int padding) {
+        this.width = width;
+        this.height = height;
+        this.padding = padding;
+
+        this.skyline = new ArrayList<>();
+        this.skyline.add(new Segment(0, 0, width));
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    public int getPadding() {
+        return padding;
+    }
+
+    /**
+     * Доля занятой площади (от 0 до 1).
+     */
+    public float getOccupancy() {
+        return (float) usedArea / ((long) width * height);
+    }
+
+    /**
+     * Ищет место для прямоугольника rectWidth x rectHeight и занимает его.
+     * Координаты левого верхнего угла записываются в outPosition ([0] - x, [1] - y).
+     * Возвращает false, если места нет (тогда outPosition не меняется).
+     */
+    public boolean insert(int rectWidth, int rectHeight, int[] outPosition) {
+        int paddedWidth = rectWidth + padding;
+        int paddedHeight = rectHeight + padding;
+
+        int bestIndex = -1;
+        int bestY = Integer.MAX_VALUE;
+        int bestWidth = Integer.MAX_VALUE;
+
+        for (int i = 0; i < skyline.size(); i++) {
+            int y = getFitY(i, paddedWidth, paddedHeight);
+            if (y < 0) {
+                continue;
+            }
+
+            int segmentWidth = skyline.get(i).width;
+            if (y < bestY || (y == bestY && segmentWidth < bestWidth)) {
+                bestIndex = i;
+                bestY = y;
+                bestWidth = segmentWidth;
+            }
+        }
+
+        if (bestIndex < 0) {
+            return false;
+        }
+
+        int x = skyline.get(bestIndex).x;
+        placeSegment(bestIndex, x, bestY + paddedHeight, paddedWidth);
+        usedArea += (long) paddedWidth * paddedHeight;
+
+        outPosition[0] = x;
+        outPosition[1] = bestY;
+        return true;
+    }
+
+    /**
+     * Увеличивает область до newWidth x newHeight. Уже добавленные прямоугольники остаются на своих местах.
+     */
+    public void grow(int newWidth, int newHeight) {
+        if (newWidth < width || newHeight < height) {
+            throw new IllegalArgumentException("Область можно только увеличить.");
+        }
+
+        if (newWidth > width) {
+            skyline.add(new Segment(width, 0, newWidth - width));
+            mergeSegments();
+        }
+        this.width = newWidth;
+        this.height = newHeight;
+    }
+
+    /**
+     * Освобождает всю область.
+     */
+    public void clear() {
+        skyline.clear();
+        skyline.add(new Segment(0, 0, width));
+        usedArea = 0;
+    }
+
+
+    /**
+     * Возвращает Y, на котором поместится прямоугольник, если положить его левым краем на начало отрезка index, или -1.
+     */
+    private int getFitY(int index, int rectWidth, int rectHeight) {
+        int x = skyline.get(index).x;
+        if (x + rectWidth > width) {
+            return -1;
+        }
+
+        int y = 0;
+        int remainingWidth = rectWidth;
+        for (int i = index; remainingWidth > 0; i++) {
+            Segment segment = skyline.get(i);
+            y = Math.max(y, segment.y);
+            if (y + rectHeight > height) {
+                return -1;
+            }
+            remainingWidth -= segment.width;
+        }
+        return y;
+    }
+
+    /**
+     * Вставляет в линию горизонта отрезок (x, y, segmentWidth) и обрезает отрезки, которые он перекрывает.
+     */
+    private void placeSegment(int index, int x, int y, int segmentWidth) {
+        skyline.add(index, new Segment(x, y, segmentWidth));
+
+        int right = x + segmentWidth;
+        int i = index + 1;
+        while (i < skyline.size()) {
+            Segment segment = skyline.get(i);
+            if (segment.x >= right) {
+                break;
+            }
+
+            int segmentRight = segment.x + segment.width;
+            if (segmentRight <= right) {
+                skyline.remove(i);
+            } else {
+                segment.width = segmentRight - right;
+                segment.x = right;
+                break;
+            }
+        }
+
+        mergeSegments();
+    }
+
+    private void mergeSegments() {
+        for (int i = 0; i < skyline.size() - 1; ) {
+            Segment current = skyline.get(i);
+            Segment next = skyline.get(i + 1);
+            if (current.y == next.y) {
+                current.width += next.width;
+                skyline.remove(i + 1);
+            } else {
+                i++;
+            }
+        }
+    }
+
+
+    private static final class Segment {
+        private int x;
+        private int y;
+        private int width;
+
+        private Segment(int x, int y, int width) {
+            this.x = x;
+            this.y = y;
+            this.width = width;
+        }
+    }
+
+}
@@ -3,7 +3,15 @@ package ru.somber.clientutil.opengl.texture;
 import cpw.mods.fml.relauncher.Side;
 import cpw.mods.fml.relauncher.SideOnly;
 import net.minecraft.client.renderer.texture.TextureUtil;
+import org.lwjgl.opengl.ContextCapabilities;
 import org.lwjgl.opengl.GL11;
+import org.lwjgl.opengl.GL12;
+import org.lwjgl.opengl.GL14;
+import org.lwjgl.opengl.GL30;
+import org.lwjgl.opengl.GL42;
+import org.lwjgl.opengl.GLContext;
+import ru.somber.clientutil.opengl.GLStateCache;
+import ru.somber.commonutil.SomberUtils;
 
 import java.nio.ByteBuffer;
 import java.util.Objects;
@@ -17,6 +25,36 @@ public class Texture {
     private int internalFormatColorGL;
     private int internalTypeGL;
 
+    /**
+     * Количество уровней мипмапов (минимум 1).
+     */
+    private int mipLevels;
+    /**
+     * Флаг выделения неизменяемого хранилища (glTexStorage2D) при следующем пересоздании текстуры.
+     * Используется, только если расширение поддерживается (см. {@link #isImmutableStorageSupported()}).
+     */
+    private boolean isImmutableStorage;
+    /**
+     * Флаг выделения памяти под текстуру с запасом до ближайшей степени двойки.
+     * Тогда небольшие изменения размера не требуют нового выделения памяти, а меняют только используемую область.
+     */
+    private boolean isPowerOfTwoAllocation;
+
+    /** Фактический размер выделенного хранилища. Может быть больше widthTexture и heightTexture. -1, если хранилище не выделялось. */
+    private int allocatedWidth;
+    private int allocatedHeight;
+    /** Внутренний формат, с которым было выделено хранилище. */
+    private int allocatedInternalFormat;
+    /** Флаг того, что текущее хранилище неизменяемое. Такое хранилище нельзя переопределить, только удалить вместе с текстурой. */
+    private boolean isAllocatedImmutable;
+
+    /**
+     * Поколение хранилища. Увеличивается при каждом новом выделении памяти под текстуру (данные при этом теряются, а ID может смениться).
+     * Если кто-то запомнил ID текстуры, то вместе с ним нужно запомнить поколение
+     * и сравнивать его с текущим ({@link #isCurrentGeneration(int)}), вместо обращения к OpenGL.
+     */
+    private int generation;
+
 
     public Texture(int textureID) {
         this.textureID = textureID;
@@ -25,12 +63,18 @@ public class Texture {
         formatColorGL = GL11.GL_RGBA;
         internalFormatColorGL = GL11.GL_RGBA8;
         internalTypeGL = GL11.GL_UNSIGNED_BYTE;
+
+        mipLevels = 1;
+        allocatedWidth = -1;
+        allocatedHeight = -1;
     }
 
     public Texture(int textureID, int width, int height) {
         this(textureID);
         this.widthTexture = width;
         this.heightTexture = height;
+        this.allocatedWidth = width;
+        this.allocatedHeight = height;
     }
 
     public Texture(int textureID, int width, int height, int formatColorGL, int internalFormatColorGL, int internalTypeGL) {
@@ -84,6 +128,72 @@ public class Texture {
         this.internalTypeGL = internalTypeGL;
     }
 
+    public int getMipLevels() {
+        return mipLevels;
+    }
+
+    /**
+     * Новое значение применяется при следующем пересоздании текстуры.
+     */
+    public void setMipLevels(int mipLevels) {
+        this.mipLevels = Math.max(1, mipLevels);
+    }
+
+    public boolean isImmutableStorage() {
+        return isImmutableStorage;
+    }
+
+    /**
+     * Новое значение применяется при следующем пересоздании текстуры.
+     */
+    public void setImmutableStorage(boolean immutableStorage) {
+        this.isImmutableStorage = immutableStorage;
+    }
+
+    public boolean isPowerOfTwoAllocation() {
+        return isPowerOfTwoAllocation;
+    }
+
+    /**
+     * Новое значение применяется при следующем пересоздании текстуры.
+     */
+    public void setPowerOfTwoAllocation(boolean powerOfTwoAllocation) {
+        this.isPowerOfTwoAllocation = powerOfTwoAllocation;
+    }
+
+    public int getAllocatedWidth() {
+        return allocatedWidth;
+    }
+
+    public int getAllocatedHeight() {
+        return allocatedHeight;
+    }
+
+    /**
+     * Максимальная текстурная координата U используемой области. Меньше 1, если память выделена с запасом.
+     */
+    public float getMaxU() {
+        return (allocatedWidth > 0) ? (float) widthTexture / allocatedWidth : 1.0F;
+    }
+
+    /**
+     * Максимальная текстурная координата V используемой области. Меньше 1, если память выделена с запасом.
+     */
+    public float getMaxV() {
+        return (allocatedHeight > 0) ? (float) heightTexture / allocatedHeight : 1.0F;
+    }
+
+    public int getGeneration() {
+        return generation;
+    }
+
+    /**
+     * Проверяет, что запомненное поколение хранилища совпадает с текущим, т.е. запомненный вместе с ним ID еще действителен.
+     */
+    public boolean isCurrentGeneration(int generation) {
+        return this.generation == generation;
+    }
+
     @Override
     public boolean equals(Object o) {
         if (this == o) return true;
@@ -108,31 +218,324 @@ public class Texture {
 
 
     public static Texture createTexture(int width, int height) {
+        return createTexture(width, height, GL11.GL_RGBA, GL11.GL_RGBA8, GL11.GL_UNSIGNED_BYTE);
+    }
+
+    /**
+     * Создает текстуру с форматом, подобранным под внутренний формат (см. {@link #getFormatForInternalFormat(int)}).
+     */
+    public static Texture createTexture(int width, int height, int internalFormatColorGL) {
+        return createTexture(width, height, getFormatForInternalFormat(internalFormatColorGL), internalFormatColorGL, getTypeForInternalFormat(internalFormatColorGL));
+    }
+
+    public static Texture createTexture(int width, int height, int formatColorGL, int internalFormatColorGL, int internalTypeGL) {
         int textureID = TextureUtil.glGenTextures();
-        Texture texture = new Texture(textureID, width, height, GL11.GL_RGBA, GL11.GL_RGBA8, GL11.GL_UNSIGNED_BYTE);
+        Texture texture = new Texture(textureID, width, height, formatColorGL, internalFormatColorGL, internalTypeGL);
 
-        GL11.glBindTexture(GL11.GL_TEXTURE_2D, textureID);
-        GL11.glTexImage2D(GL11.GL_TEXTURE_2D, 0, texture.getInternalFormatColorGL(),texture.getWidthTexture(),texture.getHeightTexture(), 0, texture.getFormatColorGL(), texture.getInternalTypeGL(), (ByteBuffer)null);
+        GLStateCache.bindTexture(textureID);
+        allocateStorage(texture, width, height);
         GL11.glTexParameteri(GL11.GL_TEXTURE_2D, GL11.GL_TEXTURE_MIN_FILTER, GL11.GL_NEAREST);
         GL11.glTexParameteri(GL11.GL_TEXTURE_2D, GL11.GL_TEXTURE_MAG_FILTER, GL11.GL_NEAREST);
-        GL11.glBindTexture(GL11.GL_TEXTURE_2D, 0);
+        GLStateCache.bindTexture(0);
 
         return texture;
     }
 
+    /**
+     * Создает текстуру глубины (GL_DEPTH_COMPONENT24) или глубины с трафаретом (GL_DEPTH24_STENCIL8),
+     * которую можно прикрепить к нескольким фреймбуферам и читать в шейдерах (см. CustomFramebuffer#attachDepthTexture).
+     */
+    public static Texture createDepthTexture(int width, int height, boolean withStencil) {
+        Texture texture = createTexture(width, height, withStencil ? GL30.GL_DEPTH24_STENCIL8 : GL14.GL_DEPTH_COMPONENT24);
+
+        GLStateCache.bindTexture(texture.getTextureID());
+        GL11.glTexParameteri(GL11.GL_TEXTURE_2D, GL11.GL_TEXTURE_WRAP_S, GL12.GL_CLAMP_TO_EDGE);
+        GL11.glTexParameteri(GL11.GL_TEXTURE_2D, GL11.GL_TEXTURE_WRAP_T, GL12.GL_CLAMP_TO_EDGE);
+        //глубина читается как обычное значение, а не через сравнение (shadow sampler).
+        GL11.glTexParameteri(GL11.GL_TEXTURE_2D, GL14.GL_TEXTURE_COMPARE_MODE, GL11.GL_NONE);
+        GLStateCache.bindTexture(0);
+
+        return texture;
+    }
+
+    /**
+     * Создает текстуру с заданными параметрами хранилища.
+     * immutableStorage - использовать glTexStorage2D (если поддерживается),
+     * powerOfTwoAllocation - выделять память с запасом до ближайшей степени двойки.
+     */
+    public static Texture createTexture(int width, int height, int internalFormatColorGL, int mipLevels, boolean immutableStorage, boolean powerOfTwoAllocation) {
+        Texture texture = new Texture(-1, -1, -1, getFormatForInternalFormat(internalFormatColorGL), internalFormatColorGL, getTypeForInternalFormat(internalFormatColorGL));
+        texture.setMipLevels(mipLevels);
+        texture.setImmutableStorage(immutableStorage);
+        texture.setPowerOfTwoAllocation(powerOfTwoAllocation);
+
+        recreateTexture(texture, width, height);
+        return texture;
+    }
+
+    /**
+     * Меняет размер текстуры. Объект Texture остается тем же.
+     * <p>
+     * Если память выделена с запасом и новый размер в нее помещается, то меняется только используемая область, данные сохраняются.
+     * Изменяемое хранилище переопределяется на месте (ID не меняется).
+     * Неизменяемое хранилище переопределить нельзя, поэтому текстура создается заново с новым ID.
+     * В последних двух случаях данные теряются и увеличивается поколение хранилища.
+     */
     public static void recreateTexture(Texture texture, int width, int height) {
-        if (texture.getTextureID() > 0) {
-            GL11.glDeleteTextures(texture.getTextureID());
-        }
-        texture.textureID = GL11.glGenTextures();
         texture.setWidthTexture(width);
         texture.setHeightTexture(height);
 
-        GL11.glBindTexture(GL11.GL_TEXTURE_2D, texture.getTextureID());
-        GL11.glTexImage2D(GL11.GL_TEXTURE_2D, 0, texture.getInternalFormatColorGL(),texture.getWidthTexture(),texture.getHeightTexture(), 0, texture.getFormatColorGL(), texture.getInternalTypeGL(), (ByteBuffer)null);
-        GL11.glTexParameteri(GL11.GL_TEXTURE_2D, GL11.GL_TEXTURE_MIN_FILTER, GL11.GL_NEAREST);
-        GL11.glTexParameteri(GL11.GL_TEXTURE_2D, GL11.GL_TEXTURE_MAG_FILTER, GL11.GL_NEAREST);
-        GL11.glBindTexture(GL11.GL_TEXTURE_2D, 0);
+        int allocationWidth = texture.isPowerOfTwoAllocation() ? SomberUtils.getExp2MoreThanNumber(width) : width;
+        int allocationHeight = texture.isPowerOfTwoAllocation() ? SomberUtils.getExp2MoreThanNumber(height) : height;
+        boolean isImmutable = texture.isImmutableStorage() && isImmutableStorageSupported();
+
+        if (texture.getTextureID() > 0) {
+            boolean isFormatSame = texture.allocatedInternalFormat == texture.getInternalFormatColorGL() && texture.isAllocatedImmutable == isImmutable;
+            boolean isFits = texture.isPowerOfTwoAllocation()
+                    ? allocationWidth <= texture.allocatedWidth && allocationHeight <= texture.allocatedHeight
+                    : allocationWidth == texture.allocatedWidth && allocationHeight == texture.allocatedHeight;
+
+            if (isFormatSame && isFits) {
+                return;
+            }
+        }
+
+        if (texture.getTextureID() <= 0 || texture.isAllocatedImmutable || isImmutable) {
+            if (texture.getTextureID() > 0) {
+                GL11.glDeleteTextures(texture.getTextureID());
+                GLStateCache.onTextureDeleted(texture.getTextureID());
+            }
+            texture.textureID = GL11.glGenTextures();
+
+            GLStateCache.bindTexture(texture.getTextureID());
+            allocateStorage(texture, allocationWidth, allocationHeight);
+            GL11.glTexParameteri(GL11.GL_TEXTURE_2D, GL11.GL_TEXTURE_MIN_FILTER, GL11.GL_NEAREST);
+            GL11.glTexParameteri(GL11.GL_TEXTURE_2D, GL11.GL_TEXTURE_MAG_FILTER, GL11.GL_NEAREST);
+            GLStateCache.bindTexture(0);
+        } else {
+            //изменяемое хранилище переопределяется на месте, параметры текстуры при этом сохраняются.
+            GLStateCache.bindTexture(texture.getTextureID());
+            allocateStorage(texture, allocationWidth, allocationHeight);
+            GLStateCache.bindTexture(0);
+        }
+
+        texture.generation++;
+    }
+
+    /**
+     * Забирает хранилище текстуры source в текстуру target: старое хранилище target удаляется, ID и размеры берутся из source,
+     * поколение target увеличивается. source после этого недействительна. Используется, чтобы подменить заглушку готовой текстурой,
+     * не меняя объект Texture, который уже отдан вызывающему коду.
+     */
+    static void takeStorage(Texture target, Texture source) {
+        if (target.getTextureID() > 0) {
+            GL11.glDeleteTextures(target.getTextureID());
+            GLStateCache.onTextureDeleted(target.getTextureID());
+        }
+
+        target.textureID = source.textureID;
+        target.widthTexture = source.widthTexture;
+        target.heightTexture = source.heightTexture;
+        target.formatColorGL = source.formatColorGL;
+        target.internalFormatColorGL = source.internalFormatColorGL;
+        target.internalTypeGL = source.internalTypeGL;
+        target.mipLevels = source.mipLevels;
+        target.allocatedWidth = source.allocatedWidth;
+        target.allocatedHeight = source.allocatedHeight;
+        target.allocatedInternalFormat = source.allocatedInternalFormat;
+        target.isAllocatedImmutable = source.isAllocatedImmutable;
+        target.generation++;
+
+        source.textureID = -1;
+    }
+
+    /**
+     * Проверяет поддержку glTexStorage2D.
+     */
+    public static boolean isImmutableStorageSupported() {
+        ContextCapabilities capabilities = GLContext.getCapabilities();
+        return capabilities.OpenGL42 || capabilities.GL_ARB_texture_storage;
+    }
+
+    public static void deleteTexture(Texture texture) {
+        TextureUtil.deleteTexture(texture.getTextureID());
+        GLStateCache.onTextureDeleted(texture.getTextureID());
+    }
+
+
+    /**
+     * Возвращает формат данных (format для glTexImage2D), совместимый с внутренним форматом текстуры.
+     */
+    public static int getFormatForInternalFormat(int internalFormatColorGL) {
+        switch (internalFormatColorGL) {
+            case GL11.GL_RGB8:
+            case GL30.GL_RGB16F:
+            case GL30.GL_RGB32F:
+            case GL30.GL_R11F_G11F_B10F:
+                return GL11.GL_RGB;
+            case GL30.GL_R8:
+            case GL30.GL_R16F:
+            case GL30.GL_R32F:
+                return GL11.GL_RED;
+            case GL30.GL_RG8:
+            case GL30.GL_RG16F:
+            case GL30.GL_RG32F:
+                return GL30.GL_RG;
+            case GL14.GL_DEPTH_COMPONENT16:
+            case GL14.GL_DEPTH_COMPONENT24:
+            case GL14.GL_DEPTH_COMPONENT32:
+            case GL30.GL_DEPTH_COMPONENT32F:
+                return GL11.GL_DEPTH_COMPONENT;
+            case GL30.GL_DEPTH24_STENCIL8:
+            case GL30.GL_DEPTH32F_STENCIL8:
+                return GL30.GL_DEPTH_STENCIL;
+            default:
+                return GL11.GL_RGBA;
+        }
+    }
+
+    /**
+     * Возвращает тип данных (type для glTexImage2D), совместимый с внутренним форматом текстуры.
+     */
+    public static int getTypeForInternalFormat(int internalFormatColorGL) {
+        switch (internalFormatColorGL) {
+            case GL30.GL_RGBA16F:
+            case GL30.GL_RGBA32F:
+            case GL30.GL_RGB16F:
+            case GL30.GL_RGB32F:
+            case GL30.GL_R11F_G11F_B10F:
+            case GL30.GL_R16F:
+            case GL30.GL_R32F:
+            case GL30.GL_RG16F:
+            case GL30.GL_RG32F:
+            case GL30.GL_DEPTH_COMPONENT32F:
+                return GL11.GL_FLOAT;
+            case GL14.GL_DEPTH_COMPONENT16:
+            case GL14.GL_DEPTH_COMPONENT24:
+            case GL14.GL_DEPTH_COMPONENT32:
+                return GL11.GL_UNSIGNED_INT;
+            case GL30.GL_DEPTH24_STENCIL8:
+                return GL30.GL_UNSIGNED_INT_24_8;
+            case GL30.GL_DEPTH32F_STENCIL8:
+                return GL30.GL_FLOAT_32_UNSIGNED_INT_24_8_REV;
+            default:
+                return GL11.GL_UNSIGNED_BYTE;
+        }
+    }
+
+    /**
+     * Возвращает размер одного пикселя в байтах для данных формата format и типа type (как в glReadPixels и glTexImage2D).
+     */
+    public static int getPixelDataSize(int format, int type) {
+        switch (type) {
+            case GL12.GL_UNSIGNED_INT_8_8_8_8_REV:
+            case GL30.GL_UNSIGNED_INT_24_8:
+                return 4;
+            case GL30.GL_FLOAT_32_UNSIGNED_INT_24_8_REV:
+                return 8;
+            default:
+                break;
+        }
+
+        int components;
+        switch (format) {
+            case GL11.GL_RED:
+            case GL11.GL_ALPHA:
+            case GL11.GL_LUMINANCE:
+            case GL11.GL_DEPTH_COMPONENT:
+            case GL11.GL_STENCIL_INDEX:
+                components = 1;
+                break;
+            case GL30.GL_RG:
+                components = 2;
+                break;
+            case GL11.GL_RGB:
+                components = 3;
+                break;
+            default:
+                components = 4;
+                break;
+        }
+
+        int componentSize;
+        switch (type) {
+            case GL11.GL_UNSIGNED_BYTE:
+            case GL11.GL_BYTE:
+                componentSize = 1;
+                break;
+            case GL11.GL_UNSIGNED_SHORT:
+            case GL11.GL_SHORT:
+            case GL30.GL_HALF_FLOAT:
+                componentSize = 2;
+                break;
+            default:
+                componentSize = 4;
+                break;
+        }
+
+        return components * componentSize;
+    }
+
+    /**
+     * Возвращает примерный размер одного пикселя в видеопамяти для внутреннего формата текстуры (в байтах).
+     * Драйвер может выравнивать данные по-своему, так что это только оценка.
+     */
+    public static int getBytesPerPixel(int internalFormatColorGL) {
+        switch (internalFormatColorGL) {
+            case GL30.GL_R8:
+                return 1;
+            case GL30.GL_RG8:
+            case GL30.GL_R16F:
+            case GL14.GL_DEPTH_COMPONENT16:
+                return 2;
+            case GL11.GL_RGB8:
+                return 3;
+            case GL30.GL_RG16F:
+            case GL30.GL_R32F:
+            case GL30.GL_R11F_G11F_B10F:
+            case GL14.GL_DEPTH_COMPONENT24:
+            case GL14.GL_DEPTH_COMPONENT32:
+            case GL30.GL_DEPTH_COMPONENT32F:
+            case GL30.GL_DEPTH24_STENCIL8:
+                return 4;
+            case GL30.GL_RGB16F:
+                return 6;
+            case GL30.GL_RGBA16F:
+            case GL30.GL_RG32F:
+            case GL30.GL_DEPTH32F_STENCIL8:
+                return 8;
+            case GL30.GL_RGB32F:
+                return 12;
+            case GL30.GL_RGBA32F:
+                return 16;
+            default:
+                return 4;
+        }
+    }
+
+
+    /**
+     * Выделяет хранилище привязанной к GL_TEXTURE_2D текстуре и запоминает его параметры.
+     */
+    private static void allocateStorage(Texture texture, int width, int height) {
+        boolean isImmutable = texture.isImmutableStorage() && isImmutableStorageSupported();
+        int levels = texture.getMipLevels();
+
+        if (isImmutable) {
+            GL42.glTexStorage2D(GL11.GL_TEXTURE_2D, levels, texture.getInternalFormatColorGL(), width, height);
+        } else {
+            for (int level = 0; level < levels; level++) {
+                int levelWidth = Math.max(1, width >> level);
+                int levelHeight = Math.max(1, height >> level);
+                GL11.glTexImage2D(GL11.GL_TEXTURE_2D, level, texture.getInternalFormatColorGL(), levelWidth, levelHeight, 0, texture.getFormatColorGL(), texture.getInternalTypeGL(), (ByteBuffer) null);
+            }
+            GL11.glTexParameteri(GL11.GL_TEXTURE_2D, GL12.GL_TEXTURE_MAX_LEVEL, levels - 1);
+        }
+
+        texture.allocatedWidth = width;
+        texture.allocatedHeight = height;
+        texture.allocatedInternalFormat = texture.getInternalFormatColorGL();
+        texture.isAllocatedImmutable = isImmutable;
     }
 
 }
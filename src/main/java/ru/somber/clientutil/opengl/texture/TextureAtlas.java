@@ -0,0 +1,343 @@
+package ru.somber.clientutil.opengl.texture;
+
+import cpw.mods.fml.relauncher.Side;
+import cpw.mods.fml.relauncher.SideOnly;
+import org.lwjgl.BufferUtils;
+import org.lwjgl.opengl.GL11;
+import org.lwjgl.opengl.GL12;
+import ru.somber.clientutil.opengl.GLStateCache;
+import ru.somber.commonutil.SomberUtils;
+
+import java.awt.image.BufferedImage;
+import java.nio.IntBuffer;
+import java.util.*;
+
+/**
+ * Атлас текстур, собираемый во время работы. Изображения разных размеров упаковываются в одну или несколько страниц
+ * ({@link SkylinePacker}), каждая страница - одна {@link Texture}.
+ * <p>
+ * Добавление изображений ({@link #addRegion(String, int, int, int[])}) работает только с памятью процессора и OpenGL не трогает,
+ * поэтому его можно вызывать без контекста OpenGL. Если страница заполнена, то она увеличивается (до maxPageSize),
+ * иначе создается новая страница. Уже добавленные области при этом не перепаковываются.
+ * <p>
+ * Загрузка в видеопамять - отдельный шаг ({@link #upload()}), выполняется в потоке рендера.
+ * Измененные области объединяются, чтобы обойтись как можно меньшим числом вызовов glTexSubImage2D.
+ */
+@SideOnly(Side.CLIENT)
+public class TextureAtlas {
+    /** Если после объединения двух областей лишних пикселей получается не больше этой доли, то области объединяются. */
+    private static final float MAX_MERGE_WASTE = 0.25F;
+    /** Если измененных областей больше этого числа, то загружается одна общая область. */
+    private static final int MAX_DIRTY_REGIONS = 8;
+
+    private int initialPageSize;
+    private int maxPageSize;
+    private int padding;
+
+    private List<AtlasPage> pages;
+    private Map<String, AtlasRegion> regions;
+
+    private int[] positionBuffer;
+
+
+    public TextureAtlas(int initialPageSize, int maxPageSize, int padding) {
+        this.initialPageSize = initialPageSize;
+        this.maxPageSize = maxPageSize;
+        this.padding = padding;
+
+        this.pages = new ArrayList<>();
+        this.regions = new HashMap<>();
+        this.positionBuffer = new int[2];
+    }
+
+    public TextureAtlas() {
+        this(256, 4096, 1);
+    }
+
+    public AtlasRegion addRegion(String name, BufferedImage image) {
+        int width = image.getWidth();
+        int height = image.getHeight();
+        int[] pixels = image.getRGB(0, 0, width, height, null, 0, width);
+        return addRegion(name, width, height, pixels);
+    }
+
+    /**
+     * Добавляет изображение в атлас. argbPixels - пиксели в формате ARGB построчно сверху вниз (как в BufferedImage).
+     * Если область с таким именем уже есть, то выбрасывается исключение.
+     */
+    public AtlasRegion addRegion(String name, int width, int height, int[] argbPixels) {
+        if (regions.containsKey(name)) {
+            throw new IllegalArgumentException("Область " + name + " уже есть в атласе.");
+        }
+        if (width + padding > maxPageSize || height + padding > maxPageSize) {
+            throw new IllegalArgumentException("Изображение " + name + " (" + width + "x" + height + ") больше максимального размера страницы.");
+        }
+
+        int pageIndex = findPlace(width, height);
+        AtlasPage page = pages.get(pageIndex);
+
+        AtlasRegion region = new AtlasRegion(name, pageIndex, positionBuffer[0], positionBuffer[1], width, height);
+        region.updateTextureCoord(page.width, page.height);
+        page.regions.add(region);
+        regions.put(name, region);
+
+        page.writePixels(region.getX(), region.getY(), width, height, argbPixels);
+        return region;
+    }
+
+    public AtlasRegion getRegion(String name) {
+        return regions.get(name);
+    }
+
+    public Collection<AtlasRegion> getRegions() {
+        return Collections.unmodifiableCollection(regions.values());
+    }
+
+    public int getCountPages() {
+        return pages.size();
+    }
+
+    public int getPageWidth(int pageIndex) {
+        return pages.get(pageIndex).width;
+    }
+
+    public int getPageHeight(int pageIndex) {
+        return pages.get(pageIndex).height;
+    }
+
+    /**
+     * Возвращает текстуру страницы или null, если страница еще не загружалась ({@link #upload()}).
+     */
+    public Texture getPageTexture(int pageIndex) {
+        return pages.get(pageIndex).texture;
+    }
+
+    /**
+     * Возвращает измененные с последней загрузки области страницы после объединения ([x, y, width, height]).
+     */
+    public List<int[]> getDirtyRegions(int pageIndex) {
+        AtlasPage page = pages.get(pageIndex);
+        if (page.isFullUploadNeeded) {
+            return Collections.singletonList(new int[] {0, 0, page.width, page.height});
+        }
+        return mergeDirtyRegions(page.dirtyRegions);
+    }
+
+    /**
+     * Загружает изменения всех страниц в видеопамять. Возвращает количество вызовов glTexSubImage2D.
+     */
+    public int upload() {
+        int countUploads = 0;
+
+        for (AtlasPage page : pages) {
+            countUploads += page.upload();
+        }
+
+        return countUploads;
+    }
+
+    /**
+     * Удаляет текстуры всех страниц и очищает атлас.
+     */
+    public void delete() {
+        for (AtlasPage page : pages) {
+            if (page.texture != null) {
+                Texture.deleteTexture(page.texture);
+            }
+        }
+        pages.clear();
+        regions.clear();
+    }
+
+
+    /**
+     * Ищет место под изображение: на существующих страницах, затем с увеличением страниц, затем на новой странице.
+     * Координаты места записываются в positionBuffer, возвращается индекс страницы.
+     */
+    private int findPlace(int width, int height) {
+        for (int i = 0; i < pages.size(); i++) {
+            if (pages.get(i).packer.insert(width, height, positionBuffer)) {
+                return i;
+            }
+        }
+
+        for (int i = 0; i < pages.size(); i++) {
+            AtlasPage page = pages.get(i);
+            while (page.grow()) {
+                if (page.packer.insert(width, height, positionBuffer)) {
+                    return i;
+                }
+            }
+        }
+
+        int pageWidth = Math.min(maxPageSize, Math.max(initialPageSize, SomberUtils.getExp2MoreThanNumber(width + padding)));
+        int pageHeight = Math.min(maxPageSize, Math.max(initialPageSize, SomberUtils.getExp2MoreThanNumber(height + padding)));
+        AtlasPage page = new AtlasPage(pageWidth, pageHeight);
+        pages.add(page);
+
+        if (! page.packer.insert(width, height, positionBuffer)) {
+            throw new IllegalStateException("Не удалось разместить изображение на новой странице атласа.");
+        }
+        return pages.size() - 1;
+    }
+
+    private static List<int[]> mergeDirtyRegions(List<int[]> dirtyRegions) {
+        List<int[]> merged = new ArrayList<>(dirtyRegions.size());
+        for (int[] region : dirtyRegions) {
+            merged.add(region.clone());
+        }
+
+        boolean isChanged = true;
+        while (isChanged) {
+            isChanged = false;
+
+            for (int i = 0; i < merged.size() && ! isChanged; i++) {
+                for (int j = i + 1; j < merged.size(); j++) {
+                    int[] union = union(merged.get(i), merged.get(j));
+                    long unionArea = area(union);
+                    long usedArea = area(merged.get(i)) + area(merged.get(j));
+
+                    if (unionArea - usedArea <= unionArea * MAX_MERGE_WASTE) {
+                        merged.set(i, union);
+                        merged.remove(j);
+                        isChanged = true;
+                        break;
+                    }
+                }
+            }
+        }
+
+        if (merged.size() > MAX_DIRTY_REGIONS) {
+            int[] union = merged.get(0);
+            for (int i = 1; i < merged.size(); i++) {
+                union = union(union, merged.get(i));
+            }
+            merged.clear();
+            merged.add(union);
+        }
+
+        return merged;
+    }
+
+    private static int[] union(int[] a, int[] b) {
+        int minX = Math.min(a[0], b[0]);
+        int minY = Math.min(a[1], b[1]);
+        int maxX = Math.max(a[0] + a[2], b[0] + b[2]);
+        int maxY = Math.max(a[1] + a[3], b[1] + b[3]);
+        return new int[] {minX, minY, maxX - minX, maxY - minY};
+    }
+
+    private static long area(int[] region) {
+        return (long) region[2] * region[3];
+    }
+
+
+    private final class AtlasPage {
+        private int width;
+        private int height;
+        private SkylinePacker packer;
+        /** Копия пикселей страницы в памяти процессора (ARGB, построчно сверху вниз). */
+        private IntBuffer pixels;
+        private List<AtlasRegion> regions;
+
+        /** Измененные с последней загрузки области ([x, y, width, height]). */
+        private List<int[]> dirtyRegions;
+        /** Флаг того, что страницу нужно загрузить целиком (новая страница или страница изменила размер). */
+        private boolean isFullUploadNeeded;
+        private Texture texture;
+
+        private AtlasPage(int width, int height) {
+            this.width = width;
+            this.height = height;
+            this.packer = new SkylinePacker(width, height, padding);
+            this.pixels = BufferUtils.createIntBuffer(width * height);
+            this.regions = new ArrayList<>();
+            this.dirtyRegions = new ArrayList<>();
+            this.isFullUploadNeeded = true;
+        }
+
+        private void writePixels(int x, int y, int regionWidth, int regionHeight, int[] argbPixels) {
+            for (int row = 0; row < regionHeight; row++) {
+                pixels.position((y + row) * width + x);
+                pixels.put(argbPixels, row * regionWidth, regionWidth);
+            }
+            pixels.clear();
+
+            if (! isFullUploadNeeded) {
+                dirtyRegions.add(new int[] {x, y, regionWidth, regionHeight});
+            }
+        }
+
+        /**
+         * Увеличивает страницу вдвое по меньшей стороне. Возвращает false, если страница уже максимального размера.
+         */
+        private boolean grow() {
+            int newWidth = width;
+            int newHeight = height;
+            if (width <= height && width < maxPageSize) {
+                newWidth = Math.min(maxPageSize, width * 2);
+            } else if (height < maxPageSize) {
+                newHeight = Math.min(maxPageSize, height * 2);
+            } else if (width < maxPageSize) {
+                newWidth = Math.min(maxPageSize, width * 2);
+            } else {
+                return false;
+            }
+
+            IntBuffer newPixels = BufferUtils.createIntBuffer(newWidth * newHeight);
+            for (int row = 0; row < height; row++) {
+                pixels.limit((row + 1) * width).position(row * width);
+                newPixels.position(row * newWidth);
+                newPixels.put(pixels);
+            }
+            newPixels.clear();
+
+            this.pixels = newPixels;
+            this.width = newWidth;
+            this.height = newHeight;
+            packer.grow(newWidth, newHeight);
+
+            for (AtlasRegion region : regions) {
+                region.updateTextureCoord(newWidth, newHeight);
+            }
+
+            dirtyRegions.clear();
+            isFullUploadNeeded = true;
+            return true;
+        }
+
+        private int upload() {
+            List<int[]> uploadRegions;
+            if (texture == null) {
+                texture = Texture.createTexture(width, height);
+                uploadRegions = Collections.singletonList(new int[] {0, 0, width, height});
+            } else if (texture.getWidthTexture() != width || texture.getHeightTexture() != height) {
+                Texture.recreateTexture(texture, width, height);
+                uploadRegions = Collections.singletonList(new int[] {0, 0, width, height});
+            } else if (isFullUploadNeeded) {
+                uploadRegions = Collections.singletonList(new int[] {0, 0, width, height});
+            } else if (! dirtyRegions.isEmpty()) {
+                uploadRegions = mergeDirtyRegions(dirtyRegions);
+            } else {
+                return 0;
+            }
+
+            GLStateCache.bindTexture(texture.getTextureID());
+            GL11.glPixelStorei(GL11.GL_UNPACK_ROW_LENGTH, width);
+            for (int[] region : uploadRegions) {
+                GL11.glPixelStorei(GL11.GL_UNPACK_SKIP_PIXELS, region[0]);
+                GL11.glPixelStorei(GL11.GL_UNPACK_SKIP_ROWS, region[1]);
+                GL11.glTexSubImage2D(GL11.GL_TEXTURE_2D, 0, region[0], region[1], region[2], region[3], GL12.GL_BGRA, GL12.GL_UNSIGNED_INT_8_8_8_8_REV, pixels);
+            }
+            GL11.glPixelStorei(GL11.GL_UNPACK_ROW_LENGTH, 0);
+            GL11.glPixelStorei(GL11.GL_UNPACK_SKIP_PIXELS, 0);
+            GL11.glPixelStorei(GL11.GL_UNPACK_SKIP_ROWS, 0);
+            GLStateCache.bindTexture(0);
+
+            dirtyRegions.clear();
+            isFullUploadNeeded = false;
+            return uploadRegions.size();
+        }
+    }
+
+}
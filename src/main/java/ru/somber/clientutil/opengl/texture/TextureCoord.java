@@ -94,6 +94,20 @@ public class TextureCoord {
         coords[7] = coordY_3;
     }
 
+    /**
+     * Записывает координаты в массив dest начиная с offset (8 чисел), без создания нового массива.
+     */
+    public void getCoords(float[] dest, int offset) {
+        System.arraycopy(coords, 0, dest, offset, 8);
+    }
+
+    /**
+     * Берет 8 координат из массива source начиная с offset.
+     */
+    public void setCoords(float[] source, int offset) {
+        System.arraycopy(source, offset, coords, 0, 8);
+    }
+
     public void setCoords(float[] coords) {
         this.coords[0] = coords[0];
         this.coords[2] = coords[2];
@@ -0,0 +1,336 @@
+package ru.somber.clientutil.opengl.texture;
+
+import cpw.mods.fml.relauncher.Side;
+import cpw.mods.fml.relauncher.SideOnly;
+
+import java.util.Arrays;
+
+/**
+ * Упакованный массив текстурных координат множества четырехугольников.
+ * Координаты X и Y хранятся в двух отдельных массивах (по 4 числа на четырехугольник, вершины в порядке {@link TextureCoord}),
+ * поэтому массовые операции над ними - это простые циклы по примитивным массивам, без создания объектов.
+ * <p>
+ * Для чтения одного четырехугольника без копирования есть {@link View}.
+ */
+@SideOnly(Side.CLIENT)
+public class TextureCoordArray {
+    /** Количество вершин в одном четырехугольнике. */
+    public static final int VERTICES_PER_QUAD = 4;
+
+    private float[] coordsX;
+    private float[] coordsY;
+    /** Количество четырехугольников в массиве. */
+    private int size;
+
+
+    public TextureCoordArray(int capacity) {
+        this.coordsX = new float[capacity * VERTICES_PER_QUAD];
+        this.coordsY = new float[capacity * VERTICES_PER_QUAD];
+        this.size = 0;
+    }
+
+    /**
+     * Создает массив с координатами всех ячеек сетки (в порядке номеров ячеек).
+     */
+    public static TextureCoordArray createFromSeparator(TextureCoordSeparator separator) {
+        int count = separator.getCountSubTexture();
+        TextureCoordArray array = new TextureCoordArray(count);
+
+        for (int number = 0; number < count; number++) {
+            int index = array.addQuad();
+            for (int vertex = 0; vertex < VERTICES_PER_QUAD; vertex++) {
+                array.coordsX[index * VERTICES_PER_QUAD + vertex] = separator.getCoordX(number, vertex);
+                array.coordsY[index * VERTICES_PER_QUAD + vertex] = separator.getCoordY(number, vertex);
+            }
+        }
+        return array;
+    }
+
+    public int getSize() {
+        return size;
+    }
+
+    public int getCapacity() {
+        return coordsX.length / VERTICES_PER_QUAD;
+    }
+
+    /**
+     * Добавляет четырехугольник с координатами по умолчанию (вся текстура) и возвращает его индекс.
+     */
+    public int addQuad() {
+        ensureCapacity(size + 1);
+
+        int index = size++;
+        setQuad(index, 0, 0, 1, 0, 1, 1, 0, 1);
+        return index;
+    }
+
+    public int add(TextureCoord coord) {
+        int index = addQuad();
+        set(index, coord);
+        return index;
+    }
+
+    public void set(int index, TextureCoord coord) {
+        setQuad(index,
+                coord.getCoordX_0(), coord.getCoordY_0(),
+                coord.getCoordX_1(), coord.getCoordY_1(),
+                coord.getCoordX_2(), coord.getCoordY_2(),
+                coord.getCoordX_3(), coord.getCoordY_3());
+    }
+
+    public void setQuad(int index, float coordX_0, float coordY_0, float coordX_1, float coordY_1, float coordX_2, float coordY_2, float coordX_3, float coordY_3) {
+        checkIndex(index);
+
+        int offset = index * VERTICES_PER_QUAD;
+        coordsX[offset] = coordX_0;
+        coordsY[offset] = coordY_0;
+        coordsX[offset + 1] = coordX_1;
+        coordsY[offset + 1] = coordY_1;
+        coordsX[offset + 2] = coordX_2;
+        coordsY[offset + 2] = coordY_2;
+        coordsX[offset + 3] = coordX_3;
+        coordsY[offset + 3] = coordY_3;
+    }
+
+    /**
+     * Записывает координаты четырехугольника index в dest.
+     */
+    public TextureCoord get(int index, TextureCoord dest) {
+        checkIndex(index);
+
+        int offset = index * VERTICES_PER_QUAD;
+        dest.setCoordX_0(coordsX[offset]);
+        dest.setCoordY_0(coordsY[offset]);
+        dest.setCoordX_1(coordsX[offset + 1]);
+        dest.setCoordY_1(coordsY[offset + 1]);
+        dest.setCoordX_2(coordsX[offset + 2]);
+        dest.setCoordY_2(coordsY[offset + 2]);
+        dest.setCoordX_3(coordsX[offset + 3]);
+        dest.setCoordY_3(coordsY[offset + 3]);
+        return dest;
+    }
+
+    public float getCoordX(int index, int vertex) {
+        return coordsX[index * VERTICES_PER_QUAD + vertex];
+    }
+
+    public float getCoordY(int index, int vertex) {
+        return coordsY[index * VERTICES_PER_QUAD + vertex];
+    }
+
+    /**
+     * Создает представление для чтения четырехугольников этого массива. Его можно переставлять на другой индекс и переиспользовать.
+     */
+    public View createView() {
+        return new View();
+    }
+
+    public void clear() {
+        size = 0;
+    }
+
+
+    public void flipX() {
+        flipX(0, size);
+    }
+
+    /**
+     * Отражает по X каждый четырехугольник из диапазона внутри его собственных границ.
+     */
+    public void flipX(int start, int count) {
+        flip(coordsX, start, count);
+    }
+
+    public void flipY() {
+        flipY(0, size);
+    }
+
+    /**
+     * Отражает по Y каждый четырехугольник из диапазона внутри его собственных границ.
+     */
+    public void flipY(int start, int count) {
+        flip(coordsY, start, count);
+    }
+
+    public void rotate90() {
+        rotate90(0, size);
+    }
+
+    /**
+     * Поворачивает изображение на каждом четырехугольнике из диапазона на 90 градусов (сдвигом координат по вершинам).
+     */
+    public void rotate90(int start, int count) {
+        checkRange(start, count);
+
+        int end = (start + count) * VERTICES_PER_QUAD;
+        for (int offset = start * VERTICES_PER_QUAD; offset < end; offset += VERTICES_PER_QUAD) {
+            float x = coordsX[offset];
+            coordsX[offset] = coordsX[offset + 1];
+            coordsX[offset + 1] = coordsX[offset + 2];
+            coordsX[offset + 2] = coordsX[offset + 3];
+            coordsX[offset + 3] = x;
+
+            float y = coordsY[offset];
+            coordsY[offset] = coordsY[offset + 1];
+            coordsY[offset + 1] = coordsY[offset + 2];
+            coordsY[offset + 2] = coordsY[offset + 3];
+            coordsY[offset + 3] = y;
+        }
+    }
+
+    public void remapToRegion(float minX, float minY, float maxX, float maxY) {
+        remapToRegion(0, size, minX, minY, maxX, maxY);
+    }
+
+    /**
+     * Переводит координаты из диапазона (0, 1) в область (minX, minY) - (maxX, maxY).
+     * Например, координаты спрайта в координаты его места в атласе.
+     */
+    public void remapToRegion(int start, int count, float minX, float minY, float maxX, float maxY) {
+        transform(start, count, maxX - minX, maxY - minY, minX, minY);
+    }
+
+    public void offset(float offsetX, float offsetY) {
+        transform(0, size, 1, 1, offsetX, offsetY);
+    }
+
+    /**
+     * Сдвигает координаты диапазона на (offsetX, offsetY).
+     */
+    public void offset(int start, int count, float offsetX, float offsetY) {
+        transform(start, count, 1, 1, offsetX, offsetY);
+    }
+
+    /**
+     * x = x * scaleX + offsetX, y = y * scaleY + offsetY для всех вершин диапазона.
+     */
+    public void transform(int start, int count, float scaleX, float scaleY, float offsetX, float offsetY) {
+        checkRange(start, count);
+
+        int end = (start + count) * VERTICES_PER_QUAD;
+        for (int i = start * VERTICES_PER_QUAD; i < end; i++) {
+            coordsX[i] = coordsX[i] * scaleX + offsetX;
+        }
+        for (int i = start * VERTICES_PER_QUAD; i < end; i++) {
+            coordsY[i] = coordsY[i] * scaleY + offsetY;
+        }
+    }
+
+    /**
+     * Записывает координаты четырехугольника index в массив вершин dest:
+     * пары (x, y) начиная с offset, каждая следующая - через stride чисел. Возвращает индекс после последней вершины.
+     */
+    public int writeCoords(int index, float[] dest, int offset, int stride) {
+        checkIndex(index);
+
+        int quadOffset = index * VERTICES_PER_QUAD;
+        for (int vertex = 0; vertex < VERTICES_PER_QUAD; vertex++) {
+            dest[offset] = coordsX[quadOffset + vertex];
+            dest[offset + 1] = coordsY[quadOffset + vertex];
+            offset += stride;
+        }
+        return offset;
+    }
+
+
+    private void flip(float[] coords, int start, int count) {
+        checkRange(start, count);
+
+        int end = (start + count) * VERTICES_PER_QUAD;
+        for (int offset = start * VERTICES_PER_QUAD; offset < end; offset += VERTICES_PER_QUAD) {
+            float min = Math.min(Math.min(coords[offset], coords[offset + 1]), Math.min(coords[offset + 2], coords[offset + 3]));
+            float max = Math.max(Math.max(coords[offset], coords[offset + 1]), Math.max(coords[offset + 2], coords[offset + 3]));
+            float sum = min + max;
+
+            coords[offset] = sum - coords[offset];
+            coords[offset + 1] = sum - coords[offset + 1];
+            coords[offset + 2] = sum - coords[offset + 2];
+            coords[offset + 3] = sum - coords[offset + 3];
+        }
+    }
+
+    private void ensureCapacity(int capacity) {
+        if (capacity * VERTICES_PER_QUAD > coordsX.length) {
+            int newLength = Math.max(capacity, getCapacity() * 2) * VERTICES_PER_QUAD;
+            coordsX = Arrays.copyOf(coordsX, newLength);
+            coordsY = Arrays.copyOf(coordsY, newLength);
+        }
+    }
+
+    private void checkIndex(int index) {
+        if (index < 0 || index >= size) {
+            throw new IndexOutOfBoundsException("Index: " + index + ", size: " + size);
+        }
+    }
+
+    private void checkRange(int start, int count) {
+        if (start < 0 || count < 0 || start + count > size) {
+            throw new IndexOutOfBoundsException("Start: " + start + ", count: " + count + ", size: " + size);
+        }
+    }
+
+
+    /**
+     * Представление одного четырехугольника массива. Читает координаты прямо из массива, ничего не копируя.
+     */
+    public class View {
+        private int offset;
+
+        private View() {}
+
+        /**
+         * Переставляет представление на четырехугольник index.
+         */
+        public View setIndex(int index) {
+            checkIndex(index);
+            this.offset = index * VERTICES_PER_QUAD;
+            return this;
+        }
+
+        public int getIndex() {
+            return offset / VERTICES_PER_QUAD;
+        }
+
+        public float getCoordX_0() {
+            return coordsX[offset];
+        }
+
+        public float getCoordY_0() {
+            return coordsY[offset];
+        }
+
+        public float getCoordX_1() {
+            return coordsX[offset + 1];
+        }
+
+        public float getCoordY_1() {
+            return coordsY[offset + 1];
+        }
+
+        public float getCoordX_2() {
+            return coordsX[offset + 2];
+        }
+
+        public float getCoordY_2() {
+            return coordsY[offset + 2];
+        }
+
+        public float getCoordX_3() {
+            return coordsX[offset + 3];
+        }
+
+        public float getCoordY_3() {
+            return coordsY[offset + 3];
+        }
+
+        public float getCoordX(int vertex) {
+            return coordsX[offset + vertex];
+        }
+
+        public float getCoordY(int vertex) {
+            return coordsY[offset + vertex];
+        }
+    }
+
+}
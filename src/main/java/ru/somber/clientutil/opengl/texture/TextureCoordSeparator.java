@@ -3,8 +3,13 @@ package ru.somber.clientutil.opengl.texture;
 import cpw.mods.fml.relauncher.Side;
 import cpw.mods.fml.relauncher.SideOnly;
 
+import java.nio.FloatBuffer;
+import java.util.Arrays;
+
 @SideOnly(Side.CLIENT)
 public class TextureCoordSeparator {
+    /** Количество чисел на одну ячейку в таблице координат. */
+    public static final int FLOATS_PER_COORD = 8;
 
     private int countRow;
     private int countColumn;
@@ -13,12 +18,26 @@ public class TextureCoordSeparator {
     private float widthOnSub;
     private float heightOnSub;
 
+    /**
+     * Заранее посчитанные текстурные координаты всех ячеек.
+     * На каждую ячейку (по номеру) приходится {@link #FLOATS_PER_COORD} чисел в том же порядке, что и в {@link TextureCoord}:
+     * x0, y0, x1, y1, x2, y2, x3, y3.
+     */
+    private float[] coordTable;
+
     public TextureCoordSeparator(int countRow, int countColumn) {
         this.countRow = countRow;
         this.countColumn = countColumn;
         this.countSubTexture = countRow * countColumn;
         this.widthOnSub = 1.0F / countColumn;
         this.heightOnSub = 1.0F / countRow;
+
+        this.coordTable = new float[countSubTexture * FLOATS_PER_COORD];
+        for (int row = 0; row < countRow; row++) {
+            for (int column = 0; column < countColumn; column++) {
+                fillCoordTable(row, column);
+            }
+        }
     }
 
     public int getCountRow() {
@@ -42,6 +61,112 @@ public class TextureCoordSeparator {
     }
 
     public TextureCoord getCoordForRowColumn(int row, int column) {
+        TextureCoord coord = new TextureCoord();
+        if (row >= 0 && row < countRow && column >= 0 && column < countColumn) {
+            coord.setCoords(coordTable, (row * countColumn + column) * FLOATS_PER_COORD);
+        } else {
+            float[] coords = new float[FLOATS_PER_COORD];
+            computeCoords(row, column, coords, 0);
+            coord.setCoords(coords, 0);
+        }
+        return coord;
+    }
+
+    public TextureCoord getCoordForNumber(int number) {
+        return getCoordForNumber(number, new TextureCoord());
+    }
+
+    /**
+     * Записывает координаты ячейки в уже существующий объект dest, без выделения памяти.
+     */
+    public TextureCoord getCoordForNumber(int number, TextureCoord dest) {
+        dest.setCoords(coordTable, getTableOffset(number));
+        return dest;
+    }
+
+    /**
+     * Возвращает координату X вершины vertex (от 0 до 3) ячейки number.
+     */
+    public float getCoordX(int number, int vertex) {
+        return coordTable[getTableOffset(number) + vertex * 2];
+    }
+
+    /**
+     * Возвращает координату Y вершины vertex (от 0 до 3) ячейки number.
+     */
+    public float getCoordY(int number, int vertex) {
+        return coordTable[getTableOffset(number) + vertex * 2 + 1];
+    }
+
+    public float getMinX(int number) {
+        return coordTable[getTableOffset(number)];
+    }
+
+    public float getMaxX(int number) {
+        return coordTable[getTableOffset(number) + 2];
+    }
+
+    /** yMin в терминах {@link #computeCoords(int, int, float[], int)} (из-за переворота текстуры он больше, чем yMax). */
+    public float getMinY(int number) {
+        return coordTable[getTableOffset(number) + 1];
+    }
+
+    public float getMaxY(int number) {
+        return coordTable[getTableOffset(number) + 5];
+    }
+
+    /**
+     * Записывает координаты 4 вершин ячейки number в массив вершин dest.
+     * Первая пара (x, y) пишется по индексу offset, каждая следующая - через stride чисел (stride = размер вершины во float'ах).
+     * Возвращает индекс сразу после последней записанной вершины.
+     */
+    public int writeCoords(int number, float[] dest, int offset, int stride) {
+        int tableOffset = getTableOffset(number);
+        for (int vertex = 0; vertex < 4; vertex++) {
+            dest[offset] = coordTable[tableOffset++];
+            dest[offset + 1] = coordTable[tableOffset++];
+            offset += stride;
+        }
+        return offset;
+    }
+
+    /**
+     * То же, что и {@link #writeCoords(int, float[], int, int)}, но для FloatBuffer. Позиция буфера не меняется.
+     */
+    public int writeCoords(int number, FloatBuffer dest, int offset, int stride) {
+        int tableOffset = getTableOffset(number);
+        for (int vertex = 0; vertex < 4; vertex++) {
+            dest.put(offset, coordTable[tableOffset++]);
+            dest.put(offset + 1, coordTable[tableOffset++]);
+            offset += stride;
+        }
+        return offset;
+    }
+
+    /**
+     * Возвращает копию таблицы координат всех ячеек (см. {@link #coordTable}).
+     */
+    public float[] getCoordTable() {
+        return Arrays.copyOf(coordTable, coordTable.length);
+    }
+
+
+    /**
+     * Номер ячейки приводится так же, как и раньше в getCoordForNumber: по модулю количества ячеек.
+     */
+    private int getTableOffset(int number) {
+        number %= countSubTexture;
+        if (number < 0) {
+            number += countSubTexture;
+        }
+        return number * FLOATS_PER_COORD;
+    }
+
+    private void fillCoordTable(int row, int column) {
+        computeCoords(row, column, coordTable, (row * countColumn + column) * FLOATS_PER_COORD);
+    }
+
+    private void computeCoords(int row, int column, float[] dest, int offset) {
         float xMin = (column + 0.0F) / countColumn;
         float xMax = (column + 1.0F) / countColumn;
 
@@ -50,16 +175,14 @@ public class TextureCoordSeparator {
         //Почему мы к максу прибавляем, чтобы получить минимум? А потому шо майнкрафт.
         //(текстура в памяти перевернута по оси У (там 0 у У находится сверху, в опенгл же снизу))
 
-        return new TextureCoord(xMin, yMin, xMax, yMin, xMax, yMax, xMin, yMax);
-    }
-
-    public TextureCoord getCoordForNumber(int number) {
-        number %= countSubTexture;
-
-        int row = number / countColumn;
-        int column = number % countColumn;
-
-        return getCoordForRowColumn(row, column);
+        dest[offset] = xMin;
+        dest[offset + 1] = yMin;
+        dest[offset + 2] = xMax;
+        dest[offset + 3] = yMin;
+        dest[offset + 4] = xMax;
+        dest[offset + 5] = yMax;
+        dest[offset + 6] = xMin;
+        dest[offset + 7] = yMax;
     }
 
 }
@@ -0,0 +1,100 @@
+package ru.somber.clientutil.opengl.texture;
+
+import cpw.mods.fml.relauncher.Side;
+import cpw.mods.fml.relauncher.SideOnly;
+
+/**
+ * Микробенчмарк получения текстурных координат кадра: старый путь (расчет и новый {@link TextureCoord} на каждый вызов)
+ * против таблицы {@link TextureCoordSeparator} (заполнение существующего TextureCoord и запись сразу в массив вершин).
+ * Не нужен ни майнкрафт, ни контекст OpenGL. Печатает миллионы кадров в секунду для каждого пути.
+ */
+@SideOnly(Side.CLIENT)
+public final class TextureCoordSeparatorBenchmark {
+    private static final int ROUNDS = 5;
+    /** Размер вершины во float'ах (позиция + текстурные координаты) для записи в массив вершин. */
+    private static final int VERTEX_FLOATS = 5;
+
+    /** Сюда складываются результаты, чтобы JIT не выкинул вычисления. */
+    private static float sink;
+
+    private TextureCoordSeparatorBenchmark() {}
+
+    public static void main(String[] args) {
+        int iterations = args.length > 0 ? Integer.parseInt(args[0]) : 10_000_000;
+        TextureCoordSeparator separator = new TextureCoordSeparator(8, 8);
+
+        for (int round = 0; round < ROUNDS; round++) {
+            //первые раунды - прогрев.
+            boolean isPrint = round >= 2;
+            measure("allocate (old)", isPrint, iterations, () -> legacyPath(separator, iterations));
+            measure("allocate (table)", isPrint, iterations, () -> allocatePath(separator, iterations));
+            measure("fill TextureCoord", isPrint, iterations, () -> fillPath(separator, iterations));
+            measure("writeCoords", isPrint, iterations, () -> writePath(separator, iterations));
+        }
+        System.out.println("checksum " + sink);
+    }
+
+
+    private static void measure(String name, boolean isPrint, int iterations, Runnable path) {
+        long startTime = System.nanoTime();
+        path.run();
+        long time = System.nanoTime() - startTime;
+
+        if (isPrint) {
+            System.out.println(String.format("%-18s %8.1f M frames/s", name, iterations / (time / 1000.0)));
+        }
+    }
+
+    /**
+     * Как было до таблицы: координаты считаются на каждый вызов и кладутся в новый TextureCoord.
+     */
+    private static void legacyPath(TextureCoordSeparator separator, int iterations) {
+        int countRow = separator.getCountRow();
+        int countColumn = separator.getCountColumn();
+        float sum = 0;
+        for (int i = 0; i < iterations; i++) {
+            int number = i % separator.getCountSubTexture();
+            int row = number / countColumn;
+            int column = number % countColumn;
+
+            float xMin = (column + 0.0F) / countColumn;
+            float xMax = (column + 1.0F) / countColumn;
+            float yMax = (row + 0.0F) / countRow;
+            float yMin = (row + 1.0F) / countRow;
+            TextureCoord coord = new TextureCoord(xMin, yMin, xMax, yMin, xMax, yMax, xMin, yMax);
+            sum += coord.getCoordX_2() + coord.getCoordY_2();
+        }
+        sink += sum;
+    }
+
+    private static void allocatePath(TextureCoordSeparator separator, int iterations) {
+        float sum = 0;
+        for (int i = 0; i < iterations; i++) {
+            TextureCoord coord = separator.getCoordForNumber(i);
+            sum += coord.getCoordX_2() + coord.getCoordY_2();
+        }
+        sink += sum;
+    }
+
+    private static void fillPath(TextureCoordSeparator separator, int iterations) {
+        TextureCoord coord = new TextureCoord();
+        float sum = 0;
+        for (int i = 0; i < iterations; i++) {
+            separator.getCoordForNumber(i, coord);
+            sum += coord.getCoordX_2() + coord.getCoordY_2();
+        }
+        sink += sum;
+    }
+
+    private static void writePath(TextureCoordSeparator separator, int iterations) {
+        float[] vertices = new float[4 * VERTEX_FLOATS];
+        float sum = 0;
+        for (int i = 0; i < iterations; i++) {
+            //текстурные координаты вершины лежат после позиции (3 float'а).
+            separator.writeCoords(i, vertices, 3, VERTEX_FLOATS);
+            sum += vertices[2 * VERTEX_FLOATS + 3] + vertices[2 * VERTEX_FLOATS + 4];
+        }
+        sink += sum;
+    }
+
+}
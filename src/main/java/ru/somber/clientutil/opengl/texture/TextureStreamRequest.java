@@ -0,0 +1,129 @@
+package ru.somber.clientutil.opengl.texture;
+
+import cpw.mods.fml.relauncher.Side;
+import cpw.mods.fml.relauncher.SideOnly;
+import net.minecraft.util.ResourceLocation;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Запрос на фоновую загрузку текстуры (см. {@link TextureStreamer}).
+ * <p>
+ * Текстура ({@link #getTexture()}) действительна сразу после запроса: до загрузки это заглушка 1x1,
+ * после загрузки объект Texture тот же, но ID и размер у него уже настоящие (поколение хранилища увеличивается).
+ */
+@SideOnly(Side.CLIENT)
+public class TextureStreamRequest implements Comparable<TextureStreamRequest> {
+
+    public enum State {
+        /** Ждет декодирования. */
+        QUEUED,
+        /** Декодирована, ждет загрузки в видеопамять. */
+        DECODED,
+        /** Загружается в видеопамять по частям. */
+        UPLOADING,
+        DONE,
+        FAILED,
+        CANCELLED
+    }
+
+    private final ResourceLocation location;
+    private final int priority;
+    /** Порядковый номер запроса, чтобы запросы с одинаковым приоритетом выполнялись по порядку. */
+    private final long sequence;
+    private final Texture texture;
+
+    private volatile State state;
+    private volatile boolean isCancelled;
+    private volatile Exception error;
+
+    /** Декодированные пиксели (ARGB в порядке байт платформы, строки сверху вниз). Выставляется рабочим потоком. */
+    ByteBuffer pixels;
+    int width;
+    int height;
+
+    /** Текстура, в которую идет загрузка по частям. Подменяет заглушку, когда загружена целиком. */
+    Texture stagingTexture;
+    int uploadedRows;
+
+
+    TextureStreamRequest(ResourceLocation location, int priority, long sequence, Texture texture) {
+        this.location = location;
+        this.priority = priority;
+        this.sequence = sequence;
+        this.texture = texture;
+        this.state = State.QUEUED;
+    }
+
+    public ResourceLocation getLocation() {
+        return location;
+    }
+
+    public int getPriority() {
+        return priority;
+    }
+
+    public Texture getTexture() {
+        return texture;
+    }
+
+    public State getState() {
+        return state;
+    }
+
+    public boolean isDone() {
+        return state == State.DONE;
+    }
+
+    /**
+     * Ошибка загрузки, если состояние {@link State#FAILED}.
+     */
+    public Exception getError() {
+        return error;
+    }
+
+    /**
+     * Отменяет запрос. Текстура остается заглушкой, ее по-прежнему нужно удалить через {@link Texture#deleteTexture(Texture)}.
+     * Уже загруженный запрос отменить нельзя.
+     */
+    public void cancel() {
+        if (state != State.DONE && state != State.FAILED) {
+            isCancelled = true;
+        }
+    }
+
+    public boolean isCancelled() {
+        return isCancelled;
+    }
+
+    /**
+     * Сначала больший приоритет, при равенстве - более ранний запрос.
+     */
+    @Override
+    public int compareTo(TextureStreamRequest o) {
+        if (priority != o.priority) {
+            return Integer.compare(o.priority, priority);
+        }
+        return Long.compare(sequence, o.sequence);
+    }
+
+    @Override
+    public String toString() {
+        return "TextureStreamRequest{" +
+                "location=" + location +
+                ", priority=" + priority +
+                ", state=" + state +
+                '}';
+    }
+
+
+    void setState(State state) {
+        this.state = state;
+    }
+
+    void fail(Exception error) {
+        this.error = error;
+        this.state = State.FAILED;
+    }
+
+}
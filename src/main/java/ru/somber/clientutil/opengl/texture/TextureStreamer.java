@@ -0,0 +1,419 @@
+package ru.somber.clientutil.opengl.texture;
+
+import cpw.mods.fml.relauncher.Side;
+import cpw.mods.fml.relauncher.SideOnly;
+import net.minecraft.client.Minecraft;
+import net.minecraft.util.ResourceLocation;
+import org.lwjgl.BufferUtils;
+import org.lwjgl.opengl.GL11;
+import org.lwjgl.opengl.GL12;
+import org.lwjgl.opengl.GL15;
+import org.lwjgl.opengl.GL21;
+import org.lwjgl.opengl.GL30;
+import ru.somber.clientutil.opengl.GLStateCache;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Фоновая загрузка текстур без фризов в потоке рендера.
+ * <ul>
+ *     <li>{@link #request(ResourceLocation, int)} сразу возвращает запрос с текстурой-заглушкой 1x1, которую уже можно использовать;</li>
+ *     <li>изображение декодируется в пуле рабочих потоков в переиспользуемый direct-буфер, запросы с большим приоритетом декодируются раньше;</li>
+ *     <li>{@link #update()} раз в кадр загружает декодированные изображения в видеопамять через PBO, не больше заданного
+ *     количества байт и времени за кадр. Большие изображения загружаются полосами строк за несколько кадров
+ *     в отдельную текстуру, которая подменяет заглушку, когда загружена целиком.</li>
+ * </ul>
+ * Методы, кроме {@link TextureStreamRequest#cancel()}, вызываются в потоке рендера.
+ */
+@SideOnly(Side.CLIENT)
+public class TextureStreamer {
+    /** Количество строк, которое декодер переводит в буфер за раз. */
+    private static final int DECODE_BAND_ROWS = 16;
+
+    private final ImageLoader loader;
+    private final ThreadPoolExecutor workers;
+    /** Декодированные запросы, ждущие загрузки, по приоритету. Пополняется рабочими потоками. */
+    private final PriorityBlockingQueue<TextureStreamRequest> decodedRequests;
+    private final DirectBufferPool bufferPool;
+
+    /** Запрос, который загружается по частям и еще не закончен. */
+    private TextureStreamRequest currentUpload;
+    private int pixelBufferID;
+    private ByteBuffer mappedBuffer;
+
+    private long uploadBytesPerFrame;
+    private long uploadNanosPerFrame;
+    private int placeholderColor;
+    private long nextSequence;
+
+    private long countUploadedBytes;
+    private int countCompleted;
+    private int countFailed;
+    private int countCancelled;
+
+
+    /**
+     * workerThreads - количество потоков декодирования,
+     * uploadBytesPerFrame и uploadNanosPerFrame - бюджет загрузки в видеопамять за один вызов {@link #update()}.
+     */
+    public TextureStreamer(int workerThreads, long uploadBytesPerFrame, long uploadNanosPerFrame, ImageLoader loader) {
+        if (workerThreads < 1) {
+            throw new IllegalArgumentException("Количество потоков должно быть не меньше 1.");
+        }
+
+        this.loader = loader;
+        this.decodedRequests = new PriorityBlockingQueue<>();
+        this.bufferPool = new DirectBufferPool(64L * 1024 * 1024);
+        this.pixelBufferID = -1;
+        this.uploadBytesPerFrame = uploadBytesPerFrame;
+        this.uploadNanosPerFrame = uploadNanosPerFrame;
+        this.placeholderColor = 0xFFFF00FF;
+
+        AtomicInteger threadIndex = new AtomicInteger();
+        this.workers = new ThreadPoolExecutor(workerThreads, workerThreads, 30, TimeUnit.SECONDS, new PriorityBlockingQueue<>(), runnable -> {
+            Thread thread = new Thread(runnable, "Somber texture streamer " + threadIndex.incrementAndGet());
+            thread.setDaemon(true);
+            thread.setPriority(Thread.MIN_PRIORITY);
+            return thread;
+        });
+        this.workers.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Два потока декодирования, до 4 МБ и 2 мс загрузки за кадр, изображения читаются через менеджер ресурсов майнкрафта.
+     */
+    public TextureStreamer() {
+        this(2, 4L * 1024 * 1024, 2_000_000L, TextureStreamer::readImage);
+    }
+
+    /**
+     * Ставит текстуру в очередь на загрузку. Чем больше priority, тем раньше она будет загружена.
+     */
+    public TextureStreamRequest request(ResourceLocation location, int priority) {
+        Texture placeholder = createPlaceholder();
+        TextureStreamRequest request = new TextureStreamRequest(location, priority, nextSequence++, placeholder);
+        workers.execute(new DecodeTask(request));
+        return request;
+    }
+
+    public TextureStreamRequest request(ResourceLocation location) {
+        return request(location, 0);
+    }
+
+    /**
+     * Загружает декодированные изображения в видеопамять в пределах бюджета. Вызывать в потоке рендера раз в кадр.
+     */
+    public void update() {
+        long startTime = System.nanoTime();
+        long remainingBytes = uploadBytesPerFrame;
+
+        while (remainingBytes > 0 && System.nanoTime() - startTime < uploadNanosPerFrame) {
+            if (currentUpload == null) {
+                currentUpload = decodedRequests.poll();
+                if (currentUpload == null) {
+                    break;
+                }
+            }
+
+            TextureStreamRequest request = currentUpload;
+            if (request.getState() == TextureStreamRequest.State.FAILED) {
+                countFailed++;
+                currentUpload = null;
+                continue;
+            }
+            if (request.isCancelled()) {
+                finishCancelled(request);
+                currentUpload = null;
+                continue;
+            }
+
+            remainingBytes -= uploadBand(request, remainingBytes);
+            if (request.uploadedRows == request.height) {
+                finishUpload(request);
+                currentUpload = null;
+            }
+        }
+    }
+
+    public int getCountQueued() {
+        return workers.getQueue().size() + decodedRequests.size() + (currentUpload != null ? 1 : 0);
+    }
+
+    public long getUploadBytesPerFrame() {
+        return uploadBytesPerFrame;
+    }
+
+    public void setUploadBytesPerFrame(long uploadBytesPerFrame) {
+        this.uploadBytesPerFrame = uploadBytesPerFrame;
+    }
+
+    public long getUploadNanosPerFrame() {
+        return uploadNanosPerFrame;
+    }
+
+    public void setUploadNanosPerFrame(long uploadNanosPerFrame) {
+        this.uploadNanosPerFrame = uploadNanosPerFrame;
+    }
+
+    /**
+     * Цвет заглушки (ARGB) для следующих запросов.
+     */
+    public void setPlaceholderColor(int argb) {
+        this.placeholderColor = argb;
+    }
+
+    public void printStatistics() {
+        System.out.println("TextureStreamer: completed " + countCompleted + ", failed " + countFailed + ", cancelled " + countCancelled +
+                ", queued " + getCountQueued() + ", uploaded " + (countUploadedBytes / 1024) + " KB, pooled " + (bufferPool.getPooledBytes() / 1024) + " KB");
+    }
+
+    /**
+     * Останавливает рабочие потоки и удаляет PBO. Незавершенные запросы отменяются и остаются заглушками.
+     */
+    public void delete() {
+        //задачи, которые так и не начали декодирование, иначе остались бы в состоянии QUEUED.
+        for (Runnable task : workers.shutdownNow()) {
+            finishCancelled(((DecodeTask) task).request);
+        }
+
+        if (currentUpload != null) {
+            finishCancelled(currentUpload);
+            currentUpload = null;
+        }
+        TextureStreamRequest request;
+        while ((request = decodedRequests.poll()) != null) {
+            finishCancelled(request);
+        }
+        bufferPool.clear();
+
+        if (pixelBufferID > 0) {
+            GL15.glDeleteBuffers(pixelBufferID);
+            pixelBufferID = -1;
+        }
+    }
+
+    /**
+     * Читает изображение через менеджер ресурсов майнкрафта.
+     */
+    public static BufferedImage readImage(ResourceLocation location) throws IOException {
+        try (InputStream input = Minecraft.getMinecraft().getResourceManager().getResource(location).getInputStream()) {
+            BufferedImage image = ImageIO.read(input);
+            if (image == null) {
+                throw new IOException("Неизвестный формат изображения " + location + ".");
+            }
+            return image;
+        }
+    }
+
+
+    private Texture createPlaceholder() {
+        Texture texture = Texture.createTexture(1, 1, GL12.GL_BGRA, GL11.GL_RGBA8, GL12.GL_UNSIGNED_INT_8_8_8_8_REV);
+
+        IntBuffer pixel = BufferUtils.createIntBuffer(1);
+        pixel.put(placeholderColor).flip();
+        GLStateCache.bindTexture(texture.getTextureID());
+        GL11.glTexSubImage2D(GL11.GL_TEXTURE_2D, 0, 0, 0, 1, 1, GL12.GL_BGRA, GL12.GL_UNSIGNED_INT_8_8_8_8_REV, pixel);
+        GLStateCache.bindTexture(0);
+
+        return texture;
+    }
+
+    /**
+     * Загружает очередную полосу строк не больше budgetBytes (но хотя бы одну строку). Возвращает количество загруженных байт.
+     */
+    private long uploadBand(TextureStreamRequest request, long budgetBytes) {
+        if (request.stagingTexture == null) {
+            request.stagingTexture = Texture.createTexture(request.width, request.height, GL12.GL_BGRA, GL11.GL_RGBA8, GL12.GL_UNSIGNED_INT_8_8_8_8_REV);
+            request.setState(TextureStreamRequest.State.UPLOADING);
+        }
+
+        int rowBytes = request.width * 4;
+        int rows = (int) Math.max(1, Math.min(request.height - request.uploadedRows, budgetBytes / rowBytes));
+        int offset = request.uploadedRows * rowBytes;
+        int size = rows * rowBytes;
+
+        ByteBuffer band = request.pixels.duplicate();
+        band.position(offset).limit(offset + size);
+
+        if (pixelBufferID <= 0) {
+            pixelBufferID = GL15.glGenBuffers();
+        }
+        GLStateCache.bindTexture(request.stagingTexture.getTextureID());
+        int previousUnpackAlignment = GL11.glGetInteger(GL11.GL_UNPACK_ALIGNMENT);
+        GL11.glPixelStorei(GL11.GL_UNPACK_ALIGNMENT, 4);
+
+        //переопределение хранилища PBO (orphaning) не ждет, пока видеокарта дочитает прошлую полосу.
+        GL15.glBindBuffer(GL21.GL_PIXEL_UNPACK_BUFFER, pixelBufferID);
+        GL15.glBufferData(GL21.GL_PIXEL_UNPACK_BUFFER, size, GL15.GL_STREAM_DRAW);
+        mappedBuffer = GL30.glMapBufferRange(GL21.GL_PIXEL_UNPACK_BUFFER, 0, size, GL30.GL_MAP_WRITE_BIT | GL30.GL_MAP_INVALIDATE_BUFFER_BIT, mappedBuffer);
+
+        boolean isMapped = mappedBuffer != null;
+        if (isMapped) {
+            mappedBuffer.clear();
+            mappedBuffer.put(band);
+            isMapped = GL15.glUnmapBuffer(GL21.GL_PIXEL_UNPACK_BUFFER);
+        }
+
+        if (isMapped) {
+            GL11.glTexSubImage2D(GL11.GL_TEXTURE_2D, 0, 0, request.uploadedRows, request.width, rows, GL12.GL_BGRA, GL12.GL_UNSIGNED_INT_8_8_8_8_REV, 0L);
+            GL15.glBindBuffer(GL21.GL_PIXEL_UNPACK_BUFFER, 0);
+        } else {
+            //данные PBO потеряны (или отобразить его не удалось), загружаем из памяти процессора.
+            GL15.glBindBuffer(GL21.GL_PIXEL_UNPACK_BUFFER, 0);
+            band.position(offset);
+            GL11.glTexSubImage2D(GL11.GL_TEXTURE_2D, 0, 0, request.uploadedRows, request.width, rows, GL12.GL_BGRA, GL12.GL_UNSIGNED_INT_8_8_8_8_REV, band);
+        }
+        GL11.glPixelStorei(GL11.GL_UNPACK_ALIGNMENT, previousUnpackAlignment);
+        GLStateCache.bindTexture(0);
+
+        request.uploadedRows += rows;
+        countUploadedBytes += size;
+        return size;
+    }
+
+    private void finishUpload(TextureStreamRequest request) {
+        Texture.takeStorage(request.getTexture(), request.stagingTexture);
+        request.stagingTexture = null;
+
+        bufferPool.release(request.pixels);
+        request.pixels = null;
+
+        request.setState(TextureStreamRequest.State.DONE);
+        countCompleted++;
+    }
+
+    private void finishCancelled(TextureStreamRequest request) {
+        if (request.stagingTexture != null) {
+            Texture.deleteTexture(request.stagingTexture);
+            request.stagingTexture = null;
+        }
+        if (request.pixels != null) {
+            bufferPool.release(request.pixels);
+            request.pixels = null;
+        }
+
+        request.setState(TextureStreamRequest.State.CANCELLED);
+        countCancelled++;
+    }
+
+
+    /**
+     * Загрузчик изображений. Вызывается в рабочих потоках, поэтому должен быть потокобезопасным.
+     */
+    public interface ImageLoader {
+        BufferedImage load(ResourceLocation location) throws IOException;
+    }
+
+
+    /**
+     * Декодирование одного запроса в рабочем потоке. Comparable - чтобы очередь пула выдавала задачи по приоритету.
+     */
+    private final class DecodeTask implements Runnable, Comparable<DecodeTask> {
+        private final TextureStreamRequest request;
+
+        private DecodeTask(TextureStreamRequest request) {
+            this.request = request;
+        }
+
+        @Override
+        public void run() {
+            //заглушку и статистику трогаем только в потоке рендера, поэтому отмененные и неудачные запросы тоже проходят через очередь.
+            if (request.isCancelled()) {
+                decodedRequests.add(request);
+                return;
+            }
+
+            try {
+                BufferedImage image = loader.load(request.getLocation());
+                int width = image.getWidth();
+                int height = image.getHeight();
+
+                ByteBuffer pixels = bufferPool.acquire(width * height * 4);
+                IntBuffer pixelsInt = pixels.asIntBuffer();
+                int[] band = new int[width * Math.min(DECODE_BAND_ROWS, height)];
+                for (int y = 0; y < height; y += DECODE_BAND_ROWS) {
+                    int rows = Math.min(DECODE_BAND_ROWS, height - y);
+                    image.getRGB(0, y, width, rows, band, 0, width);
+                    pixelsInt.put(band, 0, width * rows);
+                }
+                pixels.limit(width * height * 4);
+
+                request.pixels = pixels;
+                request.width = width;
+                request.height = height;
+                request.setState(TextureStreamRequest.State.DECODED);
+            } catch (Exception e) {
+                request.fail(e);
+                System.out.println("Не удалось загрузить текстуру " + request.getLocation() + ": " + e);
+            }
+
+            decodedRequests.add(request);
+        }
+
+        @Override
+        public int compareTo(DecodeTask o) {
+            return request.compareTo(o.request);
+        }
+    }
+
+
+    /**
+     * Пул direct-буферов для декодированных пикселей, чтобы не выделять память под каждое изображение.
+     * Буферы выделяются с размером, округленным до степени двойки, и хранятся, пока их суммарный размер не больше maxPooledBytes.
+     */
+    private static final class DirectBufferPool {
+        private final long maxPooledBytes;
+        private final List<ByteBuffer> buffers;
+        private long pooledBytes;
+
+        private DirectBufferPool(long maxPooledBytes) {
+            this.maxPooledBytes = maxPooledBytes;
+            this.buffers = new ArrayList<>();
+        }
+
+        private synchronized ByteBuffer acquire(int size) {
+            int bestIndex = -1;
+            for (int i = 0; i < buffers.size(); i++) {
+                int capacity = buffers.get(i).capacity();
+                if (capacity >= size && (bestIndex < 0 || capacity < buffers.get(bestIndex).capacity())) {
+                    bestIndex = i;
+                }
+            }
+
+            ByteBuffer buffer;
+            if (bestIndex >= 0) {
+                buffer = buffers.remove(bestIndex);
+                pooledBytes -= buffer.capacity();
+            } else {
+                buffer = BufferUtils.createByteBuffer(Integer.highestOneBit(Math.max(size - 1, 1)) << 1);
+            }
+            buffer.clear();
+            return buffer;
+        }
+
+        private synchronized void release(ByteBuffer buffer) {
+            if (pooledBytes + buffer.capacity() <= maxPooledBytes) {
+                buffers.add(buffer);
+                pooledBytes += buffer.capacity();
+            }
+        }
+
+        private synchronized long getPooledBytes() {
+            return pooledBytes;
+        }
+
+        private synchronized void clear() {
+            buffers.clear();
+            pooledBytes = 0;
+        }
+    }
+
+}
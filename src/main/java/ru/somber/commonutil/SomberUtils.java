@@ -55,10 +55,17 @@ public final class SomberUtils {
     }
 
     public static Vector3f interpolateMove(Entity entity, float interpolationFactor) {
-        float x = (float) (entity.lastTickPosX + (entity.posX - entity.lastTickPosX) * interpolationFactor);
-        float y = (float) (entity.lastTickPosY + (entity.posY - entity.lastTickPosY) * interpolationFactor);
-        float z = (float) (entity.lastTickPosZ + (entity.posZ - entity.lastTickPosZ) * interpolationFactor);
-        return new Vector3f(x, y, z);
+        return interpolateMove(entity, interpolationFactor, new Vector3f());
+    }
+
+    /**
+     * Записывает интерполированную позицию в уже существующий вектор dest, без выделения памяти.
+     */
+    public static Vector3f interpolateMove(Entity entity, float interpolationFactor, Vector3f dest) {
+        dest.x = interpolateMoveX(entity, interpolationFactor);
+        dest.y = interpolateMoveY(entity, interpolationFactor);
+        dest.z = interpolateMoveZ(entity, interpolationFactor);
+        return dest;
     }
 
 
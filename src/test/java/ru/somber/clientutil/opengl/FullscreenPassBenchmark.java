@@ -0,0 +1,100 @@
+package ru.somber.clientutil.opengl;
+
+import net.minecraft.client.renderer.Tessellator;
+import org.lwjgl.LWJGLException;
+import org.lwjgl.opengl.Display;
+import org.lwjgl.opengl.DisplayMode;
+import org.lwjgl.opengl.GL11;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Микробенчмарк отрисовки текстуры на весь экран: старый путь через Tessellator (с push/pop матриц)
+ * против {@link FullscreenPass}. Для каждого пути печатается время отправки одной отрисовки и время вместе с glFinish.
+ * <p>
+ * Запускается отдельно, {@link #main(String[])} создает свое окно. В мод не входит.
+ */
+public final class FullscreenPassBenchmark {
+    private static final int WARMUP_ITERATIONS = 100;
+
+    private FullscreenPassBenchmark() {}
+
+    public static void main(String[] args) throws LWJGLException {
+        int iterations = args.length > 0 ? Integer.parseInt(args[0]) : 10000;
+
+        Display.setDisplayMode(new DisplayMode(256, 256));
+        Display.create();
+
+        int textureID = GL11.glGenTextures();
+        GL11.glBindTexture(GL11.GL_TEXTURE_2D, textureID);
+        GL11.glTexImage2D(GL11.GL_TEXTURE_2D, 0, GL11.GL_RGBA8, 256, 256, 0, GL11.GL_RGBA, GL11.GL_UNSIGNED_BYTE, (ByteBuffer) null);
+        GL11.glBindTexture(GL11.GL_TEXTURE_2D, 0);
+
+        //прогрев: инициализация FullscreenPass и JIT.
+        for (int i = 0; i < WARMUP_ITERATIONS; i++) {
+            drawLegacy(textureID);
+            OpenGLUtils.drawTextureOverFramebuffer(textureID);
+        }
+        GL11.glFinish();
+
+        measure("Tessellator", textureID, iterations, true);
+        measure("FullscreenPass", textureID, iterations, false);
+
+        GL11.glDeleteTextures(textureID);
+        FullscreenPass.delete();
+        Display.destroy();
+    }
+
+
+    private static void measure(String name, int textureID, int iterations, boolean isLegacy) {
+        long startTime = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            if (isLegacy) {
+                drawLegacy(textureID);
+            } else {
+                OpenGLUtils.drawTextureOverFramebuffer(textureID);
+            }
+        }
+        long submitTime = System.nanoTime() - startTime;
+        GL11.glFinish();
+        long totalTime = System.nanoTime() - startTime;
+
+        System.out.println(String.format("%-15s submit %.2f us, with glFinish %.2f us",
+                name, submitTime / 1000.0 / iterations, totalTime / 1000.0 / iterations));
+    }
+
+    /**
+     * Старая реализация OpenGLUtils.drawTextureOverFramebuffer, без изменений.
+     */
+    private static void drawLegacy(int textureID) {
+        GL11.glEnable(GL11.GL_TEXTURE_2D);
+        GL11.glDisable(GL11.GL_DEPTH_TEST);
+
+        GL11.glPushAttrib(GL11.GL_LIGHTING_BIT);
+        GL11.glDisable(GL11.GL_LIGHTING);
+
+        GL11.glPushMatrix();
+
+        GL11.glMatrixMode(GL11.GL_PROJECTION);
+        GL11.glLoadIdentity();
+        GL11.glMatrixMode(GL11.GL_MODELVIEW);
+        GL11.glLoadIdentity();
+
+        GL11.glBindTexture(GL11.GL_TEXTURE_2D, textureID);
+        Tessellator tessellator = Tessellator.instance;
+        tessellator.startDrawingQuads();
+        tessellator.setColorRGBA_F(1, 1, 1, 1);
+        tessellator.addVertexWithUV(-1, -1, 0.2F, 0, 0);
+        tessellator.addVertexWithUV(1, -1, 0.2F, 1, 0);
+        tessellator.addVertexWithUV(1, 1, 0.2F, 1, 1);
+        tessellator.addVertexWithUV(-1, 1, 0.2F, 0, 1);
+        tessellator.draw();
+        GL11.glBindTexture(GL11.GL_TEXTURE_2D, 0);
+
+        GL11.glPopMatrix();
+
+        GL11.glPopAttrib();
+        GL11.glEnable(GL11.GL_DEPTH_TEST);
+    }
+
+}